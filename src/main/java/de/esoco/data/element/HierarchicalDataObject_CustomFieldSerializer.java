@@ -33,12 +33,25 @@ import com.google.gwt.user.client.rpc.SerializationStreamWriter;
 
 /********************************************************************
  * A GWT custom field serializer for the {@link HierarchicalDataObject} class.
+ * Because query results contain large numbers of these objects the serialized
+ * format is kept compact by combining the value count, the editable state,
+ * and the presence of flags and children into a single header integer.
+ * Repeated string values don't need special handling because they are already
+ * written only once per payload into the GWT RPC string table.
  *
  * @author eso
  */
 public class HierarchicalDataObject_CustomFieldSerializer
 	extends CustomFieldSerializer<HierarchicalDataObject>
 {
+	//~ Static fields/initializers ---------------------------------------------
+
+	private static final int HEADER_EDITABLE    = 0x01;
+	private static final int HEADER_FLAGS	    = 0x02;
+	private static final int HEADER_CHILD_LIST  = 0x04;
+	private static final int HEADER_CHILD_MODEL = 0x08;
+	private static final int HEADER_COUNT_SHIFT = 4;
+
 	//~ Static methods ---------------------------------------------------------
 
 	/***************************************
@@ -70,8 +83,9 @@ public class HierarchicalDataObject_CustomFieldSerializer
 	{
 		String				   sId		 = rReader.readString();
 		int					   nIndex    = rReader.readInt();
-		int					   nCount    = rReader.readInt();
-		boolean				   bReadonly = rReader.readBoolean();
+		int					   nHeader   = rReader.readInt();
+		int					   nCount    = nHeader >>> HEADER_COUNT_SHIFT;
+		boolean				   bReadonly = (nHeader & HEADER_EDITABLE) != 0;
 		List<String>		   aValues   = new ArrayList<String>(nCount);
 		Set<String>			   aFlags    = null;
 		HierarchicalDataObject rResult;
@@ -81,10 +95,9 @@ public class HierarchicalDataObject_CustomFieldSerializer
 			aValues.add(rReader.readString());
 		}
 
-		nCount = rReader.readInt();
-
-		if (nCount > 0)
+		if ((nHeader & HEADER_FLAGS) != 0)
 		{
+			nCount = rReader.readInt();
 			aFlags = new HashSet<String>(nCount);
 
 			for (int i = 0; i < nCount; i++)
@@ -93,9 +106,7 @@ public class HierarchicalDataObject_CustomFieldSerializer
 			}
 		}
 
-		nCount = rReader.readInt();
-
-		if (nCount < 0)
+		if ((nHeader & HEADER_CHILD_MODEL) != 0)
 		{
 			@SuppressWarnings("unchecked")
 			DataModel<DataModel<String>> aChildren =
@@ -113,8 +124,9 @@ public class HierarchicalDataObject_CustomFieldSerializer
 		{
 			List<DataModel<String>> aChildren = null;
 
-			if (nCount > 0)
+			if ((nHeader & HEADER_CHILD_LIST) != 0)
 			{
+				nCount    = rReader.readInt();
 				aChildren = new ArrayList<DataModel<String>>(nCount);
 
 				for (int i = 0; i < nCount; i++)
@@ -148,45 +160,64 @@ public class HierarchicalDataObject_CustomFieldSerializer
 		SerializationStreamWriter rWriter,
 		HierarchicalDataObject    rObject) throws SerializationException
 	{
+		Collection<String>			 rFlags    = rObject.getFlags();
+		DataModel<DataModel<String>> rChildren = rObject.aChildren;
+		int							 nHeader   =
+			rObject.rValues.size() << HEADER_COUNT_SHIFT;
+
+		if (rObject.bEditable)
+		{
+			nHeader |= HEADER_EDITABLE;
+		}
+
+		if (!rFlags.isEmpty())
+		{
+			nHeader |= HEADER_FLAGS;
+		}
+
+		if (rChildren instanceof ListDataModel)
+		{
+			if (rChildren.getElementCount() > 0)
+			{
+				nHeader |= HEADER_CHILD_LIST;
+			}
+		}
+		else if (rChildren != null)
+		{
+			nHeader |= HEADER_CHILD_MODEL;
+		}
+
 		rWriter.writeString(rObject.sId);
 		rWriter.writeInt(rObject.nIndex);
-		rWriter.writeInt(rObject.rValues.size());
-		rWriter.writeBoolean(rObject.bEditable);
+		rWriter.writeInt(nHeader);
 
 		for (String sValue : rObject)
 		{
 			rWriter.writeString(sValue);
 		}
 
-		Collection<String> rFlags = rObject.getFlags();
-
-		rWriter.writeInt(rFlags.size());
-
-		for (String sFlag : rFlags)
+		if ((nHeader & HEADER_FLAGS) != 0)
 		{
-			rWriter.writeString(sFlag);
+			rWriter.writeInt(rFlags.size());
+
+			for (String sFlag : rFlags)
+			{
+				rWriter.writeString(sFlag);
+			}
 		}
 
-		if (rObject.aChildren != null)
+		if ((nHeader & HEADER_CHILD_LIST) != 0)
 		{
-			if (rObject.aChildren instanceof ListDataModel)
-			{
-				rWriter.writeInt(rObject.aChildren.getElementCount());
+			rWriter.writeInt(rChildren.getElementCount());
 
-				for (DataModel<String> rChild : rObject.aChildren)
-				{
-					rWriter.writeObject(rChild);
-				}
-			}
-			else
+			for (DataModel<String> rChild : rChildren)
 			{
-				rWriter.writeInt(-1);
-				rWriter.writeObject(rObject.aChildren);
+				rWriter.writeObject(rChild);
 			}
 		}
-		else
+		else if ((nHeader & HEADER_CHILD_MODEL) != 0)
 		{
-			rWriter.writeInt(0);
+			rWriter.writeObject(rChildren);
 		}
 	}
 
@@ -16,10 +16,14 @@
 //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 package de.esoco.gwt.client.data;
 
+import de.esoco.data.element.DataElement;
+import de.esoco.data.element.DataElementList;
+import de.esoco.data.element.HierarchicalDataObject;
 import de.esoco.data.element.QueryResultElement;
 import de.esoco.data.element.StringDataElement;
 
 import de.esoco.gwt.client.ServiceRegistry;
+import de.esoco.gwt.shared.ServiceException;
 import de.esoco.gwt.shared.StorageService;
 
 import de.esoco.lib.model.Callback;
@@ -33,11 +37,14 @@ import de.esoco.lib.property.SortDirection;
 import java.io.Serializable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import static de.esoco.lib.property.ContentProperties.FILE_NAME;
@@ -62,14 +69,20 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 
 	private static final long serialVersionUID = 1L;
 
+	private static List<PendingQuery> aPendingQueries = new ArrayList<>();
+
 	//~ Instance fields --------------------------------------------------------
 
-	private String sQueryId;
-	private int    nQuerySize;
+	private String  sQueryId;
+	private int     nQuerySize;
+	private boolean bMoreRows;
+	private boolean bUseCursor;
 
 	private transient int					  nWindowSize;
 	private transient int					  nWindowStart;
 	private transient List<DataModel<String>> aCurrentData;
+	private transient int					  nDeltaVersion = -1;
+	private transient List<Map<String, ?>>	  aDeltaConstraints;
 
 	private transient Map<String, String> aFilters = new HashMap<>();
 
@@ -97,6 +110,96 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 	{
 	}
 
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Executes all queries that have been queued by {@link #queueQuery(
+	 * StringDataElement, AsyncCallback)}. A single query will be sent as a
+	 * {@link StorageService#QUERY} command, multiple queries will be combined
+	 * into one {@link StorageService#QUERY_BATCH} command.
+	 */
+	private static void executePendingQueries()
+	{
+		final List<PendingQuery> rQueries = aPendingQueries;
+
+		aPendingQueries = new ArrayList<>();
+
+		if (rQueries.size() == 1)
+		{
+			PendingQuery rQuery = rQueries.get(0);
+
+			ServiceRegistry.getStorageService()
+						   .executeCommand(
+			   				StorageService.QUERY,
+			   				rQuery.aQueryData,
+			   				rQuery.rCallback);
+		}
+		else
+		{
+			List<DataElement<?>> aQueryData =
+				new ArrayList<>(rQueries.size());
+
+			for (PendingQuery rQuery : rQueries)
+			{
+				aQueryData.add(rQuery.aQueryData);
+			}
+
+			ServiceRegistry.getStorageService()
+						   .executeCommand(
+			   				StorageService.QUERY_BATCH,
+			   				new DataElementList("QueryBatch", aQueryData),
+			   				new AsyncCallback<DataElementList>()
+			   				{
+			   					@Override
+			   					public void onFailure(Throwable e)
+			   					{
+			   						for (PendingQuery rQuery : rQueries)
+			   						{
+			   							rQuery.rCallback.onFailure(e);
+			   						}
+			   					}
+
+			   					@Override
+			   					public void onSuccess(DataElementList rResults)
+			   					{
+			   						for (int i = 0; i < rQueries.size(); i++)
+			   						{
+			   							rQueries.get(i).handleResult(
+			   								rResults.getElement(i));
+			   						}
+			   					}
+			   				});
+		}
+	}
+
+	/***************************************
+	 * Queues a query for execution at the end of the current event loop. All
+	 * queries that are queued while handling the same browser event, e.g. by
+	 * the tables of a process step that are initialized together, will then
+	 * be sent to the server in a single request.
+	 *
+	 * @param aQueryData The query data
+	 * @param rCallback  The callback to be invoked with the query result
+	 */
+	private static void queueQuery(
+		StringDataElement									 aQueryData,
+		AsyncCallback<QueryResultElement<DataModel<String>>> rCallback)
+	{
+		if (aPendingQueries.isEmpty())
+		{
+			Scheduler.get().scheduleFinally(new ScheduledCommand()
+				{
+					@Override
+					public void execute()
+					{
+						executePendingQueries();
+					}
+				});
+		}
+
+		aPendingQueries.add(new PendingQuery(aQueryData, rCallback));
+	}
+
 	//~ Methods ----------------------------------------------------------------
 
 	/***************************************
@@ -193,6 +296,17 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 		return aCurrentData.iterator();
 	}
 
+	/***************************************
+	 * Checks whether the query size of this model is only an estimate and
+	 * more rows than indicated by {@link #getElementCount()} may be available.
+	 *
+	 * @return TRUE if more rows may be available
+	 */
+	public boolean hasMoreRows()
+	{
+		return bMoreRows;
+	}
+
 	/***************************************
 	 * The integer limit parameter defines the maximum number of rows to
 	 * download.
@@ -233,6 +347,38 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 		}
 	}
 
+	/***************************************
+	 * Refreshes the current window of this model. Instead of re-reading the
+	 * complete window only the rows that have changed on the server will be
+	 * queried and then replaced in the current data. This is only possible
+	 * if the current data has been queried with the current filters and
+	 * sorting, otherwise the complete window will be queried again. If no
+	 * window has been set yet the callback will be invoked immediately.
+	 *
+	 * @param rCallback The callback to be invoked when the refresh is finished
+	 */
+	public void refreshWindow(
+		Callback<RemoteDataModel<DataModel<String>>> rCallback)
+	{
+		if (aCurrentData != null)
+		{
+			StringDataElement aQueryData =
+				createQueryData(nWindowStart, nWindowSize);
+
+			if (nDeltaVersion >= 0 &&
+				getConstraints().equals(aDeltaConstraints))
+			{
+				aQueryData.setProperty(StorageService.DELTA_REFRESH, true);
+			}
+
+			executeQuery(aQueryData, nWindowStart, nWindowSize, rCallback);
+		}
+		else
+		{
+			rCallback.onSuccess(this);
+		}
+	}
+
 	/***************************************
 	 * @see FilterableDataModel#removeAllFilters()
 	 */
@@ -302,7 +448,28 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 	}
 
 	/***************************************
+	 * Enables or disables the query cursor mode. In this mode the server
+	 * reads a snapshot of the query result on the first query and serves the
+	 * following windows from it so that concurrent modifications don't cause
+	 * rows to be skipped or repeated while scrolling. A refresh of the
+	 * current window will create a new snapshot.
+	 *
+	 * @param bUseCursor TRUE to use a query cursor
+	 *
+	 * @see   StorageService#QUERY_CURSOR
+	 */
+	public void setUseCursor(boolean bUseCursor)
+	{
+		this.bUseCursor = bUseCursor;
+	}
+
+	/***************************************
+	 * Setting the current window again will refresh it with {@link
+	 * #refreshWindow(Callback)}, i.e. only query the rows that have changed
+	 * since they have been read if the filters and sorting are unchanged.
+	 *
 	 * @see RemoteDataModel#setWindow(int, int, Callback)
+	 * @see #refreshWindow(Callback)
 	 */
 	@Override
 	public void setWindow(
@@ -310,6 +477,16 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 		int												   nQueryLimit,
 		final Callback<RemoteDataModel<DataModel<String>>> rCallback)
 	{
+		if (aCurrentData != null &&
+			!aCurrentData.isEmpty() &&
+			nQueryStart == nWindowStart &&
+			nQueryLimit == nWindowSize)
+		{
+			refreshWindow(rCallback);
+
+			return;
+		}
+
 		if (aCurrentData == null)
 		{
 			aCurrentData = new ArrayList<DataModel<String>>(nQueryLimit);
@@ -337,6 +514,13 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 		StringDataElement aQueryData =
 			createQueryData(nQueryStart, nQueryLimit);
 
+		if (nQueryStart > 0 && nQueryStart == nWindowEnd)
+		{
+			// moving forward sequentially allows the server to continue the
+			// query after the last row of the current window
+			aQueryData.setProperty(StorageService.KEYSET_PAGING, true);
+		}
+
 		executeQuery(aQueryData, nQueryStart, nQueryLimit, rCallback);
 	}
 
@@ -387,6 +571,17 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 			aQueryData.setProperty(QUERY_SEARCH, aFilters);
 		}
 
+		if (bUseCursor)
+		{
+			aQueryData.setProperty(StorageService.QUERY_CURSOR, Boolean.TRUE);
+		}
+
+		if (nDeltaVersion >= 0)
+		{
+			aQueryData.setProperty(StorageService.DELTA_VERSION,
+								   nDeltaVersion);
+		}
+
 		return aQueryData;
 	}
 
@@ -404,47 +599,92 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 		final int										   nCount,
 		final Callback<RemoteDataModel<DataModel<String>>> rCallback)
 	{
-		ServiceRegistry.getStorageService()
-					   .executeCommand(
-			   			StorageService.QUERY,
-			   			aQueryData,
-			   			new AsyncCallback<QueryResultElement<DataModel<String>>>()
-			   			{
-			   				@Override
-			   				public void onFailure(Throwable e)
-			   				{
-			   					rCallback.onError(e);
-			   				}
+		final List<Map<String, ?>> rConstraints = getConstraints();
 
-			   				@Override
-			   				public void onSuccess(
-			   					QueryResultElement<DataModel<String>> rResult)
-			   				{
-			   					setCurrentData(rResult, nStart, nCount);
+		queueQuery(
+			aQueryData,
+			new AsyncCallback<QueryResultElement<DataModel<String>>>()
+			{
+				@Override
+				public void onFailure(Throwable e)
+				{
+					rCallback.onError(e);
+				}
+
+				@Override
+				public void onSuccess(
+					QueryResultElement<DataModel<String>> rResult)
+				{
+					setCurrentData(rResult, nStart, nCount, rConstraints);
+
+					rCallback.onSuccess(QueryDataModel.this);
+				}
+			});
+	}
 
-			   					rCallback.onSuccess(QueryDataModel.this);
-			   				}
-			   			});
+	/***************************************
+	 * Returns a copy of the current filters and sorting of this model.
+	 *
+	 * @return A list containing copies of the filter and sort field maps
+	 */
+	private List<Map<String, ?>> getConstraints()
+	{
+		return Arrays.<Map<String, ?>>asList(new HashMap<>(aFilters),
+											 new HashMap<>(aSortFields));
 	}
 
 	/***************************************
 	 * Sets the current data of this model by converting query data elements
-	 * into data models.
+	 * into data models. If the query result only contains the changes of a
+	 * delta refresh the changed rows will be replaced in the current data.
 	 *
 	 * @param rQueryResult The data elements to convert
 	 * @param nStart       The starting index of the new elements
 	 * @param nCount
+	 * @param rConstraints The filters and sorting of the query
 	 */
 	private void setCurrentData(
 		QueryResultElement<DataModel<String>> rQueryResult,
 		int									  nStart,
-		int									  nCount)
+		int									  nCount,
+		List<Map<String, ?>>				  rConstraints)
 	{
-		nQuerySize = rQueryResult.getQuerySize();
+		nQuerySize		  = rQueryResult.getQuerySize();
+		nDeltaVersion	  =
+			rQueryResult.getIntProperty(StorageService.DELTA_VERSION, -1);
+		aDeltaConstraints = rConstraints;
+		bMoreRows  =
+			rQueryResult.getProperty(StorageService.MORE_ROWS_AVAILABLE,
+									 Boolean.FALSE);
+
+		int nDeltaCount =
+			rQueryResult.getIntProperty(StorageService.DELTA_ROW_COUNT, -1);
+
+		if (nDeltaCount >= 0)
+		{
+			for (DataModel<String> rRow : rQueryResult)
+			{
+				int nIndex =
+					((HierarchicalDataObject) rRow).getIndex() - nWindowStart;
+
+				if (nIndex < aCurrentData.size())
+				{
+					aCurrentData.set(nIndex, rRow);
+				}
+				else
+				{
+					aCurrentData.add(rRow);
+				}
+			}
 
-		if (nCount == nWindowSize ||
-			nCount == nQuerySize ||
-			nCount != rQueryResult.getElementCount())
+			while (aCurrentData.size() > nDeltaCount)
+			{
+				aCurrentData.remove(aCurrentData.size() - 1);
+			}
+		}
+		else if (nCount == nWindowSize ||
+				 nCount == nQuerySize ||
+				 nCount != rQueryResult.getElementCount())
 		{
 			aCurrentData.clear();
 			nWindowStart = nStart;
@@ -478,4 +718,59 @@ public class QueryDataModel implements RemoteDataModel<DataModel<String>>,
 			}
 		}
 	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * Holds the data of a query that is waiting to be sent to the server.
+	 *
+	 * @author eso
+	 */
+	private static class PendingQuery
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final StringDataElement									 aQueryData;
+		final AsyncCallback<QueryResultElement<DataModel<String>>> rCallback;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param aQueryData The query data
+		 * @param rCallback  The callback for the query result
+		 */
+		PendingQuery(
+			StringDataElement									 aQueryData,
+			AsyncCallback<QueryResultElement<DataModel<String>>> rCallback)
+		{
+			this.aQueryData = aQueryData;
+			this.rCallback  = rCallback;
+		}
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * Handles the result of this query in the result of a query batch.
+		 * The result is either a query result or an error element that
+		 * indicates that the query has failed.
+		 *
+		 * @param rResult The result element
+		 */
+		@SuppressWarnings("unchecked")
+		void handleResult(DataElement<?> rResult)
+		{
+			if (rResult instanceof QueryResultElement)
+			{
+				rCallback.onSuccess(
+					(QueryResultElement<DataModel<String>>) rResult);
+			}
+			else
+			{
+				rCallback.onFailure(
+					new ServiceException((String) rResult.getValue()));
+			}
+		}
+	}
 }
@@ -46,6 +46,7 @@ import de.esoco.lib.net.ExternalServiceDefinition;
 import de.esoco.lib.net.ExternalServiceRequest;
 import de.esoco.lib.property.HasProperties;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 
@@ -96,6 +97,29 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	public static final RelationType<Integer> AUTHENTICATION_TIMEOUT =
 		ExtraAttributes.newExtraAttribute();
 
+	/**
+	 * An extra attribute that defines the time in seconds after which idle
+	 * sessions will be passivated to disk. Zero disables session passivation.
+	 */
+	public static final RelationType<Integer> SESSION_PASSIVATION_TIMEOUT =
+		ExtraAttributes.newExtraAttribute();
+
+	/**
+	 * An extra attribute that defines the percentage of the maximum heap above
+	 * which sessions will be passivated before reaching the passivation
+	 * timeout. Zero disables the heap check.
+	 */
+	public static final RelationType<Integer> SESSION_HEAP_WATERMARK =
+		ExtraAttributes.newExtraAttribute();
+
+	/**
+	 * An extra attribute that defines the directory of the default session
+	 * store. If not set a directory in the temporary directory of the servlet
+	 * context will be used.
+	 */
+	public static final RelationType<String> SESSION_STORE_DIRECTORY =
+		ExtraAttributes.newExtraAttribute();
+
 	private static final String DEFAULT_UPLOAD_URL		   = "upload";
 	private static final String DEFAULT_DOWNLOAD_URL	   = "srv/download/";
 	private static final String DEFAULT_OAUTH_CALLBACK_URL = "/oauth";
@@ -105,6 +129,9 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	private static final RelationType<AuthorizationCallback> AUTHORIZATION_CALLBACK =
 		RelationTypes.newType();
 
+	private static final RelationType<SessionRegistry> SESSION_REGISTRY =
+		RelationTypes.newType();
+
 	static final RelationType<Map<String, UploadHandler>> SESSION_UPLOADS =
 		newMapType(false);
 
@@ -124,7 +151,10 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	//~ Static methods ---------------------------------------------------------
 
 	/***************************************
-	 * Returns the session data structures for all registered clients.
+	 * Returns the session data structures for all registered clients. If
+	 * session passivation is enabled the returned sessions will not be
+	 * activated and passivated sessions will therefore not contain their
+	 * passivated relations (see {@link SessionPassivator}).
 	 *
 	 * @param  rServletContext The servlet context to return the sessions for
 	 *
@@ -133,13 +163,13 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	protected static Collection<SessionData> getClientSessions(
 		ServletContext rServletContext)
 	{
-		return getSessionContext(rServletContext).get(SessionData.USER_SESSIONS)
-												 .values();
+		return getSessionRegistry(rServletContext).getSessions();
 	}
 
 	/***************************************
 	 * Returns the session context from a certain {@link ServletContext}. If no
-	 * session context exists yet it will be created.
+	 * session context exists yet it will be created together with the {@link
+	 * SessionRegistry} of the servlet context.
 	 *
 	 * @param  rServletContext The servlet context
 	 *
@@ -152,8 +182,26 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 		if (rSessionContext == null)
 		{
-			rSessionContext = new SessionContext();
-			rServletContext.setAttribute(ATTR_SESSION_CONTEXT, rSessionContext);
+			synchronized (rServletContext)
+			{
+				rSessionContext =
+					(SessionContext) rServletContext.getAttribute(ATTR_SESSION_CONTEXT);
+
+				if (rSessionContext == null)
+				{
+					SessionRegistry aRegistry = new SessionRegistry();
+
+					rSessionContext = new SessionContext();
+					rSessionContext.set(SESSION_REGISTRY, aRegistry);
+
+					// publish the registry sessions to code that expects the
+					// sessions in the standard session map
+					rSessionContext.set(SessionData.USER_SESSIONS,
+										aRegistry.getSessionMap());
+					rServletContext.setAttribute(ATTR_SESSION_CONTEXT,
+												 rSessionContext);
+				}
+			}
 		}
 
 		return rSessionContext;
@@ -177,10 +225,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	{
 		String sSessionId = rRequest.getSession().getId();
 
-		Map<String, SessionData> rSessionMap =
-			getSessionMap(rRequest.getServletContext());
-
-		SessionData rSessionData = rSessionMap.get(sSessionId);
+		SessionData rSessionData =
+			getSessionRegistry(rRequest.getServletContext()).get(sSessionId);
 
 		if (bCheckAuthentication && rSessionData == null)
 		{
@@ -191,16 +237,16 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	}
 
 	/***************************************
-	 * Returns the mapping from user names to {@link SessionData} objects.
+	 * Returns the registry that maps session IDs to {@link SessionData}
+	 * objects.
 	 *
-	 * @param  rServletContext The servlet context to read the map from
+	 * @param  rServletContext The servlet context to read the registry from
 	 *
-	 * @return The session map
+	 * @return The session registry
 	 */
-	static Map<String, SessionData> getSessionMap(
-		ServletContext rServletContext)
+	static SessionRegistry getSessionRegistry(ServletContext rServletContext)
 	{
-		return getSessionContext(rServletContext).get(SessionData.USER_SESSIONS);
+		return getSessionContext(rServletContext).get(SESSION_REGISTRY);
 	}
 
 	/***************************************
@@ -289,8 +335,17 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	@Override
 	public void destroy()
 	{
-		Collection<SessionData> rSessions =
-			getClientSessions(getServletContext());
+		SessionRegistry   rRegistry   = getSessionRegistry(getServletContext());
+		SessionPassivator rPassivator = rRegistry.getPassivator();
+
+		if (rPassivator != null)
+		{
+			// keep the state of all sessions in the store before ending them
+			rPassivator.stop();
+			Log.infof("Session passivation stopped: %s", rPassivator);
+		}
+
+		Collection<SessionData> rSessions = rRegistry.getSessions();
 
 		for (SessionData rSessionData : rSessions)
 		{
@@ -304,7 +359,7 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 			}
 		}
 
-		Log.info("Session cleanup finished");
+		Log.infof("Session cleanup finished: %s", rRegistry);
 
 		super.destroy();
 	}
@@ -407,8 +462,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	@Override
 	public Collection<SessionData> getSessions() throws Exception
 	{
-		return Collections.unmodifiableCollection(getSessionMap(getServletContext())
-												  .values());
+		return Collections.unmodifiableCollection(
+			getClientSessions(getServletContext()));
 	}
 
 	/***************************************
@@ -477,7 +532,10 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 	/***************************************
 	 * Invokes {@link EntityManager#setSessionManager(SessionManager)} and
-	 * {@link ServiceContext#setService(AuthenticatedServiceImpl)}.
+	 * {@link ServiceContext#setService(AuthenticatedServiceImpl)}. Also
+	 * starts the passivation of idle sessions to the store returned by {@link
+	 * #createSessionStore()} if enabled in the service configuration with
+	 * {@link #SESSION_PASSIVATION_TIMEOUT}.
 	 *
 	 * @throws ServletException On errors
 	 */
@@ -492,6 +550,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 		{
 			rContext.setService(this);
 		}
+
+		initSessionPassivation();
 	}
 
 	/***************************************
@@ -560,28 +620,27 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 			authorizeUser(rUser, rLoginData);
 
-			Map<String, SessionData> rSessionMap =
-				getSessionMap(getServletContext());
+			SessionRegistry rSessionRegistry =
+				getSessionRegistry(getServletContext());
 
 			HttpSession     rSession     = rRequest.getSession();
 			String		    sSessionId   = rSession.getId();
-			SessionData     rSessionData = rSessionMap.get(sSessionId);
 			DataElementList aUserData    = null;
+			SessionData     rSessionData;
 
 			String sPreviousSessionId =
 				rLoginData.getProperty(SESSION_ID, null);
 
 			if (sPreviousSessionId != null)
 			{
-				SessionData rPreviousSessionData =
-					rSessionMap.remove(sPreviousSessionId);
-
-				if (rSessionData == null && rPreviousSessionData != null)
-				{
-					rSessionData = rPreviousSessionData;
-				}
-
-				rSessionMap.put(sSessionId, rSessionData);
+				rSessionData =
+					rSessionRegistry.rekey(sPreviousSessionId,
+										   sSessionId,
+										   sLoginName);
+			}
+			else
+			{
+				rSessionData = rSessionRegistry.get(sSessionId);
 			}
 
 			rSession.setAttribute(LOGIN_NAME, sLoginName);
@@ -667,16 +726,13 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 	 */
 	public void removeSession(HttpSession rSession)
 	{
-		Map<String, SessionData> rSessionMap =
-			getSessionMap(getServletContext());
-
-		String	    sSessionId   = rSession.getId();
-		SessionData rSessionData = rSessionMap.get(sSessionId);
+		// remove first so that concurrent removals end a session only once
+		SessionData rSessionData =
+			getSessionRegistry(getServletContext()).remove(rSession.getId());
 
 		if (rSessionData != null)
 		{
 			endSession(rSessionData);
-			rSessionMap.remove(sSessionId);
 		}
 
 		rSession.removeAttribute(LOGIN_NAME);
@@ -816,11 +872,49 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 		String	    sSessionId   = getThreadLocalRequest().getSession().getId();
 		SessionData rSessionData = new SessionData();
 
-		getSessionMap(getServletContext()).put(sSessionId, rSessionData);
+		getSessionRegistry(getServletContext()).put(sSessionId, rSessionData);
 
 		return rSessionData;
 	}
 
+	/***************************************
+	 * Creates the store for the passivation of sessions. The default
+	 * implementation returns a {@link FileSessionStore} in the directory
+	 * defined by {@link #SESSION_STORE_DIRECTORY} and removes all records from
+	 * it that are older than {@link FileSessionStore#DEFAULT_MAX_RECORD_AGE}.
+	 * Subclasses can override this method to return a different store, e.g.
+	 * one that is shared between the nodes of a cluster.
+	 *
+	 * @return The new session store
+	 *
+	 * @throws IOException If creating the store fails
+	 */
+	protected SessionStore createSessionStore() throws IOException
+	{
+		String sDirectory =
+			getServiceConfiguration().getConfigValue(SESSION_STORE_DIRECTORY,
+													 null);
+		File   rDirectory;
+
+		if (sDirectory != null)
+		{
+			rDirectory = new File(sDirectory);
+		}
+		else
+		{
+			File rTempDir =
+				(File) getServletContext().getAttribute(ServletContext.TEMPDIR);
+
+			rDirectory = new File(rTempDir, "sessions");
+		}
+
+		FileSessionStore aStore = new FileSessionStore(rDirectory);
+
+		aStore.removeExpiredRecords(FileSessionStore.DEFAULT_MAX_RECORD_AGE);
+
+		return aStore;
+	}
+
 	/***************************************
 	 * Overridden to implement authenticated download functionality.
 	 *
@@ -836,8 +930,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 		HttpServletResponse rResponse) throws ServletException, IOException
 	{
 		SessionData rSessionData =
-			getSessionMap(getServletContext()).get(rRequest.getSession()
-												   .getId());
+			getSessionRegistry(getServletContext()).get(rRequest.getSession()
+														.getId());
 
 		if (rSessionData == null)
 		{
@@ -1184,6 +1278,51 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 		return sUrl;
 	}
 
+	/***************************************
+	 * Creates and starts the session passivator of the session registry if
+	 * enabled in the service configuration. Additional session relations can
+	 * be passivated by registering them with {@link
+	 * SessionPassivator#addPassivatedType(RelationType)}.
+	 *
+	 * @throws ServletException If creating the session store fails
+	 */
+	@SuppressWarnings("boxing")
+	private void initSessionPassivation() throws ServletException
+	{
+		ProvidesConfiguration rConfig = getServiceConfiguration();
+
+		int nTimeout   = rConfig.getConfigValue(SESSION_PASSIVATION_TIMEOUT, 0);
+		int nWatermark = rConfig.getConfigValue(SESSION_HEAP_WATERMARK, 0);
+
+		ServletContext  rServletContext = getServletContext();
+		SessionRegistry rRegistry	    = getSessionRegistry(rServletContext);
+
+		synchronized (rRegistry)
+		{
+			if (nTimeout > 0 && rRegistry.getPassivator() == null)
+			{
+				SessionPassivator aPassivator;
+
+				try
+				{
+					aPassivator =
+						new SessionPassivator(rRegistry, createSessionStore());
+				}
+				catch (IOException e)
+				{
+					throw new ServletException("Session store unavailable", e);
+				}
+
+				aPassivator.setIdleTimeout(nTimeout * 1000L);
+				aPassivator.setHeapWatermark(nWatermark / 100f);
+				aPassivator.addPassivatedType(SessionData.SESSION_USER_DATA);
+				aPassivator.start();
+
+				rRegistry.setPassivator(aPassivator);
+			}
+		}
+	}
+
 	/***************************************
 	 * Returns true if the given contenType is knwown to be character based.
 	 *
@@ -1201,7 +1340,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 	/***************************************
 	 * Uses a {@link ServletOutputStream} to write the data of an HTTP servlet
-	 * response.
+	 * response. If the data is a {@link DownloadProducer} it will write its
+	 * data directly to the output stream.
 	 *
 	 * @param  rResponse The response object
 	 * @param  rData     The response data
@@ -1220,6 +1360,17 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 			rOut.write(rBytes, 0, rBytes.length);
 		}
+		else if (rData instanceof DownloadProducer)
+		{
+			try
+			{
+				((DownloadProducer) rData).writeTo(rOut);
+			}
+			catch (Exception e)
+			{
+				throw new IOException("Producing download data failed", e);
+			}
+		}
 		else
 		{
 			rOut.print(rData.toString());
@@ -1268,7 +1419,8 @@ public abstract class AuthenticatedServiceImpl<E extends Entity>
 
 		if (rData != null)
 		{
-			if (isCharacterBasedData(sContentType))
+			if (isCharacterBasedData(sContentType) &&
+				!(rData instanceof DownloadProducer))
 			{
 				writeCharacterBasedOutput(rResponse, rData.toString());
 			}
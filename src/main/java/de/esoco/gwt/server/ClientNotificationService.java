@@ -16,6 +16,8 @@
 //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 package de.esoco.gwt.server;
 
+import de.esoco.gwt.server.ClientNotificationWebSocket.HttpSessionConfigurator;
+
 import de.esoco.lib.expression.monad.Try;
 import de.esoco.lib.logging.Log;
 
@@ -74,14 +76,28 @@ public class ClientNotificationService
 	 */
 	public void notifyClients(String sMessage)
 	{
-		aSessions.forEach(
-			rSession ->
-				Try.run(() -> rSession.getBasicRemote().sendText(sMessage))
-				.orElse(
-					e -> Log.errorf(
-							e,
-							"Notification of client %s failed",
-							rSession.getId())));
+		aSessions.forEach(rSession -> sendMessage(rSession, sMessage));
+	}
+
+	/***************************************
+	 * Notifies the clients of a certain HTTP session of a message.
+	 *
+	 * @param sHttpSessionId The ID of the HTTP session to notify
+	 * @param sMessage       The message string
+	 */
+	public void notifyClients(String sHttpSessionId, String sMessage)
+	{
+		for (Session rSession : aSessions)
+		{
+			Object rId =
+				rSession.getUserProperties()
+						.get(ClientNotificationWebSocket.HTTP_SESSION_ID);
+
+			if (sHttpSessionId.equals(rId))
+			{
+				sendMessage(rSession, sMessage);
+			}
+		}
 	}
 
 	/***************************************
@@ -110,7 +126,10 @@ public class ClientNotificationService
 			ServerEndpointConfig.Builder.create(
 											ClientNotificationWebSocket.class,
 											rContext.getContextPath() +
-											sWebSocketPath).build();
+											sWebSocketPath)
+										.configurator(
+											new HttpSessionConfigurator())
+										.build();
 
 		try
 		{
@@ -149,4 +168,20 @@ public class ClientNotificationService
 	{
 		return aSessions;
 	}
+
+	/***************************************
+	 * Sends a message to the client of a WebSocket session.
+	 *
+	 * @param rSession The WebSocket session
+	 * @param sMessage The message string
+	 */
+	private void sendMessage(Session rSession, String sMessage)
+	{
+		Try.run(() -> rSession.getBasicRemote().sendText(sMessage))
+		   .orElse(
+				e -> Log.errorf(
+						e,
+						"Notification of client %s failed",
+						rSession.getId()));
+	}
 }
@@ -18,15 +18,23 @@ package de.esoco.gwt.server;
 
 import de.esoco.lib.logging.Log;
 
+import javax.servlet.http.HttpSession;
+
 import javax.websocket.CloseReason;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpointConfig;
 
 
 /********************************************************************
- * The WebSocket endpoint for the {@link ClientNotificationService}.
+ * The WebSocket endpoint for the {@link ClientNotificationService}. The ID
+ * of the HTTP session of a client is stored in the user properties of it's
+ * WebSocket session under {@link #HTTP_SESSION_ID} so that notifications can
+ * be sent to the clients of a certain HTTP session.
  *
  * @author eso
  */
@@ -34,6 +42,9 @@ public class ClientNotificationWebSocket extends Endpoint
 {
 	//~ Static fields/initializers ---------------------------------------------
 
+	/** The user property that contains the ID of the HTTP session. */
+	static final String HTTP_SESSION_ID = "HttpSessionId";
+
 	private static ClientNotificationService rNotificationService;
 
 	//~ Static methods ---------------------------------------------------------
@@ -94,6 +105,14 @@ public class ClientNotificationWebSocket extends Endpoint
 	@Override
 	public void onOpen(Session rSession, EndpointConfig rConfig)
 	{
+		Object rHttpSessionId =
+			rConfig.getUserProperties().get(HTTP_SESSION_ID);
+
+		if (rHttpSessionId != null)
+		{
+			rSession.getUserProperties().put(HTTP_SESSION_ID, rHttpSessionId);
+		}
+
 		rNotificationService.getSessions().add(rSession);
 		rSession.addMessageHandler(
 			new MessageHandler.Whole<String>()
@@ -123,4 +142,35 @@ public class ClientNotificationWebSocket extends Endpoint
 	{
 		Log.warn("Client message ignored");
 	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * A configurator that stores the ID of the HTTP session of a client in the
+	 * endpoint configuration during the WebSocket handshake.
+	 *
+	 * @author eso
+	 */
+	static class HttpSessionConfigurator
+		extends ServerEndpointConfig.Configurator
+	{
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void modifyHandshake(ServerEndpointConfig rConfig,
+									HandshakeRequest	 rRequest,
+									HandshakeResponse    rResponse)
+		{
+			HttpSession rHttpSession = (HttpSession) rRequest.getHttpSession();
+
+			if (rHttpSession != null)
+			{
+				rConfig.getUserProperties()
+					   .put(HTTP_SESSION_ID, rHttpSession.getId());
+			}
+		}
+	}
 }
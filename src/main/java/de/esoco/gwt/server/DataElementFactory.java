@@ -60,6 +60,7 @@ import de.esoco.lib.expression.ElementAccess;
 import de.esoco.lib.expression.Function;
 import de.esoco.lib.expression.Functions;
 import de.esoco.lib.expression.Predicate;
+import de.esoco.lib.expression.Predicates;
 import de.esoco.lib.expression.function.FunctionChain;
 import de.esoco.lib.expression.predicate.FunctionPredicate;
 import de.esoco.lib.json.JsonObject;
@@ -83,9 +84,12 @@ import de.esoco.process.Process;
 import de.esoco.process.ProcessRelationTypes;
 import de.esoco.process.ProcessStep;
 
+import de.esoco.storage.Query;
 import de.esoco.storage.QueryList;
 import de.esoco.storage.QueryPredicate;
+import de.esoco.storage.Storage;
 import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageManager;
 import de.esoco.storage.StoragePredicates.SortPredicate;
 
 import java.math.BigDecimal;
@@ -101,6 +105,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 
@@ -968,6 +973,61 @@ public class DataElementFactory
 		Function<Entity, List<String>> fGetColumnData,
 		Collection<String>			   rFlags,
 		boolean						   bHierarchical) throws StorageException
+	{
+		return createEntityDataObject(
+			rEntity,
+			nIndex,
+			pChildCriteria,
+			pSortCriteria,
+			fGetColumnData,
+			rFlags,
+			bHierarchical,
+			null,
+			null);
+	}
+
+	/***************************************
+	 * Creates a data object for a certain entity in a storage query with
+	 * pre-calculated child counts as returned by {@link
+	 * #queryChildCounts(List, Predicate)}. If the child count of the entity is
+	 * contained in the map it will be used instead of querying it separately.
+	 * If the ID of the storage adapter that performs the query is given the
+	 * storage adapter for hierarchical children will not be created. Instead
+	 * the child data model will refer to a child adapter ID that is resolved
+	 * on demand by {@link DatabaseStorageAdapter#getChildAdapter(long)}.
+	 *
+	 * @param  rEntity        The entity to create the data element from
+	 * @param  nIndex         The index of the data object
+	 * @param  pChildCriteria A predicate that constrains the child entities to
+	 *                        be included in a hierarchical object or NULL for
+	 *                        none
+	 * @param  pSortCriteria  The sort criteria for child queries (NULL for
+	 *                        none)
+	 * @param  fGetColumnData The function to extract the entity's column data
+	 *                        into a list of strings
+	 * @param  rFlags         The flags for the entity object
+	 * @param  bHierarchical  TRUE, to include children of the same type as the
+	 *                        entity
+	 * @param  rChildCounts   A mapping from entity IDs to child counts or NULL
+	 *                        for none
+	 * @param  sAdapterId     The ID of the storage adapter that performs the
+	 *                        query or NULL to register child storage adapters
+	 *                        immediately
+	 *
+	 * @return The resulting data element
+	 *
+	 * @throws StorageException If creating the data object fails
+	 */
+	public HierarchicalDataObject createEntityDataObject(
+		Entity						   rEntity,
+		int							   nIndex,
+		Predicate<? super Entity>	   pChildCriteria,
+		Predicate<? super Entity>	   pSortCriteria,
+		Function<Entity, List<String>> fGetColumnData,
+		Collection<String>			   rFlags,
+		boolean						   bHierarchical,
+		Map<Long, Integer>			   rChildCounts,
+		String						   sAdapterId) throws StorageException
 	{
 		List<String> aValues = fGetColumnData.evaluate(rEntity);
 
@@ -981,7 +1041,10 @@ public class DataElementFactory
 					rEntity,
 					pChildCriteria,
 					pSortCriteria,
-					fGetColumnData);
+					fGetColumnData,
+					rChildCounts != null ? rChildCounts.get(rEntity.getId())
+										 : null,
+					sAdapterId);
 		}
 
 		return new HierarchicalDataObject(
@@ -1266,6 +1329,90 @@ public class DataElementFactory
 		return aResult;
 	}
 
+	/***************************************
+	 * Queries the number of children that match certain child criteria for
+	 * all hierarchical entities in a list. This is intended to be invoked for
+	 * all entities of a query result page before their data objects are
+	 * created. The children of each parent are counted with a separate count
+	 * query without reading the child entities because the storage API
+	 * doesn't support grouped counts. All count queries are performed with
+	 * the same storage. This is only needed if child criteria are applied
+	 * because otherwise the size of the child query lists can be used. The
+	 * entities in the list must have the same type.
+	 *
+	 * @param  rParents       The parent entities
+	 * @param  pChildCriteria The child criteria or NULL for none
+	 *
+	 * @return A mapping from parent entity IDs to child counts; will be empty
+	 *         if the child counts cannot be determined with a single storage
+	 *         (in which case the children are counted separately)
+	 *
+	 * @throws StorageException If a child count query fails
+	 */
+	@SuppressWarnings("boxing")
+	public Map<Long, Integer> queryChildCounts(
+		List<Entity>			  rParents,
+		Predicate<? super Entity> pChildCriteria) throws StorageException
+	{
+		Map<Long, Integer>				  aChildCounts  = new HashMap<>();
+		Map<Long, QueryPredicate<Entity>> aChildQueries = new HashMap<>();
+		Class<Entity>					  rChildType    = null;
+
+		for (Entity rParent : rParents)
+		{
+			RelationType<List<Entity>> rChildAttribute =
+				rParent.getDefinition().getHierarchyChildAttribute();
+
+			List<Entity> rChildList =
+				rChildAttribute != null ? rParent.get(rChildAttribute) : null;
+
+			if (rChildList instanceof QueryList)
+			{
+				QueryPredicate<Entity> qChildren =
+					((QueryList<Entity>) rChildList).getQuery();
+
+				if (rChildType != null &&
+					rChildType != qChildren.getQueryType())
+				{
+					return aChildCounts;
+				}
+
+				rChildType = qChildren.getQueryType();
+
+				aChildQueries.put(
+					rParent.getId(),
+					new QueryPredicate<>(
+						rChildType,
+						Predicates.and(qChildren.getCriteria(),
+									   pChildCriteria)));
+			}
+		}
+
+		if (rChildType != null)
+		{
+			Storage rStorage = StorageManager.getStorage(rChildType);
+
+			try
+			{
+				for (Entry<Long, QueryPredicate<Entity>> rChildQuery :
+					 aChildQueries.entrySet())
+				{
+					try (Query<Entity> aQuery =
+						 rStorage.query(rChildQuery.getValue()))
+					{
+						aChildCounts.put(rChildQuery.getKey(), aQuery.size());
+					}
+				}
+			}
+			finally
+			{
+				rStorage.release();
+			}
+		}
+
+		return aChildCounts;
+	}
+
 	/***************************************
 	 * Applies a list of string values by converting the values according to the
 	 * given datatype and storing them in a collection.
@@ -1566,6 +1713,13 @@ public class DataElementFactory
 	 * @param  pSortCriteria  The sort order criteria or NULL for none
 	 * @param  fGetColumnData The function to extract the entity's column data
 	 *                        into a list of strings
+	 * @param  rChildCount    The pre-calculated number of children that match
+	 *                        the child criteria or NULL to count them if
+	 *                        necessary; will only be used for query child
+	 *                        lists
+	 * @param  sAdapterId     The ID of the parent storage adapter to create a
+	 *                        child adapter ID for or NULL to register a child
+	 *                        storage adapter immediately
 	 *
 	 * @return A list containing the data elements for the children
 	 *
@@ -1577,7 +1731,9 @@ public class DataElementFactory
 		Entity						   rParent,
 		Predicate<? super Entity>	   pChildCriteria,
 		Predicate<? super Entity>	   pSortCriteria,
-		Function<Entity, List<String>> fGetColumnData) throws StorageException
+		Function<Entity, List<String>> fGetColumnData,
+		Integer						   rChildCount,
+		String						   sAdapterId) throws StorageException
 	{
 		RelationType<List<Entity>> rChildAttribute =
 			rParent.getDefinition().getHierarchyChildAttribute();
@@ -1586,45 +1742,81 @@ public class DataElementFactory
 
 		if (rChildAttribute != null && rParent.get(rChildAttribute) != null)
 		{
-			List<Entity> rChildList  = rParent.get(rChildAttribute);
-			int			 nChildCount = rChildList.size();
+			List<Entity> rChildList = rParent.get(rChildAttribute);
 
 			if (rChildList instanceof QueryList)
 			{
 				QueryPredicate<Entity> qChildren =
 					((QueryList<Entity>) rChildList).getQuery();
 
-				DatabaseStorageAdapter aAdapter =
-					new DatabaseStorageAdapter(this);
+				int nChildCount;
 
-				aAdapter.setQueryParameters(
-					qChildren,
-					fGetColumnData,
-					pChildCriteria,
-					pSortCriteria,
-					null);
+				DatabaseStorageAdapter aAdapter = null;
 
-				StorageAdapterId rAdapterId =
-					rStorageAdapterRegistry.registerStorageAdapter(aAdapter);
+				// with lazy child adapters an adapter is only needed to count
+				// the children if no pre-calculated count is available
+				if (sAdapterId == null ||
+					(pChildCriteria != null && rChildCount == null))
+				{
+					aAdapter = new DatabaseStorageAdapter(this);
+
+					aAdapter.setQueryParameters(
+						qChildren,
+						fGetColumnData,
+						pChildCriteria,
+						pSortCriteria,
+						null);
+				}
+
+				if (rChildCount != null)
+				{
+					nChildCount = rChildCount;
+				}
+				else if (pChildCriteria != null)
+				{
+					nChildCount = aAdapter.querySize();
+				}
+				else
+				{
+					nChildCount = rChildList.size();
+				}
 
 				if (pChildCriteria != null)
 				{
 					qChildren.set(HIERARCHY_CHILD_PREDICATE, pChildCriteria);
-					nChildCount = aAdapter.querySize();
 				}
 
-				aChildModel =
-					new QueryDataModel(rAdapterId.toString(), nChildCount);
+				if (sAdapterId != null)
+				{
+					// the child adapter will be created on demand by the
+					// parent adapter when the child query is first performed
+					aChildModel =
+						new QueryDataModel(
+							sAdapterId +
+							DatabaseStorageAdapter.CHILD_ADAPTER_SEPARATOR +
+							rParent.getId(),
+							nChildCount);
+				}
+				else
+				{
+					StorageAdapterId rAdapterId =
+						rStorageAdapterRegistry.registerStorageAdapter(
+							aAdapter);
 
-				// keep ID to prevent the adapter from being garbage collected
-				rParent.set(CHILD_STORAGE_ADAPTER_ID, rAdapterId);
+					aChildModel =
+						new QueryDataModel(rAdapterId.toString(), nChildCount);
+
+					// keep ID to prevent the adapter from being garbage
+					// collected
+					rParent.set(CHILD_STORAGE_ADAPTER_ID, rAdapterId);
+				}
 			}
-			else if (nChildCount > 0)
+			else if (!rChildList.isEmpty())
 			{
 				String sName = rChildAttribute.getName();
 
 				List<DataModel<String>> aChildObjects =
-					new ArrayList<DataModel<String>>(nChildCount);
+					new ArrayList<DataModel<String>>(rChildList.size());
 
 				int nIndex = 0;
 
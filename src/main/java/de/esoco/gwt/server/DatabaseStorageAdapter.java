@@ -28,7 +28,10 @@ import de.esoco.entity.EntityDefinition;
 import de.esoco.entity.EntityManager;
 import de.esoco.entity.EntityRelationTypes.HierarchicalQueryMode;
 
+import de.esoco.gwt.server.QueryCursorRegistry.QueryCursor;
+import de.esoco.gwt.server.QueryMetrics.Phase;
 import de.esoco.gwt.shared.ServiceException;
+import de.esoco.gwt.shared.StorageService;
 
 import de.esoco.lib.expression.Function;
 import de.esoco.lib.expression.Predicate;
@@ -36,33 +39,51 @@ import de.esoco.lib.expression.Predicates;
 import de.esoco.lib.expression.StringFunctions;
 import de.esoco.lib.expression.function.CalendarFunctions;
 import de.esoco.lib.expression.predicate.FunctionPredicate;
+import de.esoco.lib.logging.Log;
 import de.esoco.lib.model.ColumnDefinition;
 import de.esoco.lib.model.DataModel;
 import de.esoco.lib.property.SortDirection;
 import de.esoco.lib.text.TextUtil;
 
 import de.esoco.storage.Query;
+import de.esoco.storage.QueryList;
 import de.esoco.storage.QueryPredicate;
 import de.esoco.storage.QueryResult;
 import de.esoco.storage.Storage;
 import de.esoco.storage.StorageException;
 import de.esoco.storage.StorageManager;
+import de.esoco.storage.StoragePredicates.SortPredicate;
 import de.esoco.storage.StorageRelationTypes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.obrel.core.ObjectRelations;
 import org.obrel.core.Relatable;
 import org.obrel.core.RelationType;
+import org.obrel.core.RelationTypes;
+import org.obrel.type.MetaTypes;
 
 import static de.esoco.data.DataRelationTypes.CHILD_STORAGE_ADAPTER_ID;
 import static de.esoco.data.DataRelationTypes.FLAG_ATTRIBUTE;
@@ -72,6 +93,14 @@ import static de.esoco.entity.EntityRelationTypes.HIERARCHICAL_QUERY_MODE;
 import static de.esoco.entity.EntityRelationTypes.HIERARCHY_CHILD_PREDICATE;
 import static de.esoco.entity.EntityRelationTypes.HIERARCHY_ROOT_PREDICATE;
 
+import static de.esoco.gwt.shared.StorageService.DELTA_REFRESH;
+import static de.esoco.gwt.shared.StorageService.DELTA_ROW_COUNT;
+import static de.esoco.gwt.shared.StorageService.DELTA_VERSION;
+import static de.esoco.gwt.shared.StorageService.KEYSET_PAGING;
+import static de.esoco.gwt.shared.StorageService.MORE_ROWS_AVAILABLE;
+import static de.esoco.gwt.shared.StorageService.QUERY_CURSOR;
+import static de.esoco.gwt.shared.StorageService.SKIP_CHILDREN;
+
 import static de.esoco.lib.expression.CollectionPredicates.elementOf;
 import static de.esoco.lib.expression.Predicates.equalTo;
 import static de.esoco.lib.expression.Predicates.greaterOrEqual;
@@ -97,28 +126,101 @@ import static de.esoco.storage.StoragePredicates.sortBy;
 /********************************************************************
  * A storage adapter for accessing database storages.
  *
+ * <p>Queries on a single adapter instance can be executed concurrently. The
+ * query parameters are kept in a snapshot that is replaced as a whole by
+ * {@link #setQueryParameters(QueryPredicate, Function, Predicate, Predicate,
+ * List) setQueryParameters()}. Each query reads the current snapshot once and
+ * uses it throughout its execution. The parameters in a snapshot are final
+ * but it also holds the caches and other state of it's queries. These are
+ * thread-safe themselves, therefore only the replacement of the snapshot
+ * needs to be synchronized.</p>
+ *
  * @author eso
  */
 public class DatabaseStorageAdapter extends AbstractStorageAdapter
 {
 	//~ Static fields/initializers ---------------------------------------------
 
+	/**
+	 * The separator between the ID of a parent adapter and the ID of a parent
+	 * entity in the IDs of child adapters.
+	 */
+	public static final char CHILD_ADAPTER_SEPARATOR = '/';
+
+	/**
+	 * An annotation for string attributes that refers to a shadow attribute
+	 * which contains the lower-case value of the annotated attribute. Such a
+	 * shadow attribute should be backed by an indexed database column. Case
+	 * insensitive (i.e. lower-case) comparisons of the annotated attribute
+	 * will then be performed on the shadow attribute instead of converting
+	 * the attribute values of all rows to lower case. The shadow attribute
+	 * values can be updated with {@link
+	 * #updateCaseNormalizedAttributes(Entity)}.
+	 */
+	public static final RelationType<RelationType<String>> CASE_NORMALIZED_ATTRIBUTE =
+		RelationTypes.newType();
+
 	private static final long serialVersionUID = 1L;
 
-	private static int nNextQueryId = 1;
+	private static final int MAX_CACHED_QUERIES     = 8;
+	private static final int DEFAULT_MAX_CACHE_ROWS = 2000;
+	private static final int MAX_KEYSET_POSITIONS   = 16;
+	private static final int MAX_CACHED_CONSTRAINTS = 256;
+	private static final int PREFETCH_THREADS	    = 2;
+	private static final int MAX_PENDING_PREFETCHES = 64;
+	private static final int MAX_POSITION_INDEX	    = 10000;
+	private static final int MAX_CURSOR_ROWS	    = 10000;
+	private static final int MAX_CHILD_ADAPTERS	    = 32;
+	private static final int MAX_CHILD_PARENTS	    = 5000;
+
+	private static final long MAX_CACHE_AGE = 30 * 1000;
+
+	private static final AtomicInteger aNextQueryId = new AtomicInteger(1);
+
+	private static final Map<String, Predicate<? super Entity>> aConstraintCache =
+		createLruMap(MAX_CACHED_CONSTRAINTS);
+
+	private static final Map<Class<?>, AtomicLong> aModificationCounts =
+		new ConcurrentHashMap<>();
+
+	private static final ExecutorService aPrefetchExecutor =
+		createPrefetchExecutor();
+
+	private static volatile QueryMetrics rQueryMetrics =
+		new HistogramQueryMetrics();
+
+	private static volatile long nSlowQueryThreshold = 0;
+
+	static
+	{
+		RelationTypes.init(DatabaseStorageAdapter.class);
+	}
 
 	//~ Instance fields --------------------------------------------------------
 
 	private final DataElementFactory rDataElementFactory;
 
-	private QueryPredicate<Entity>		   qBaseQuery;
-	private QueryPredicate<Entity>		   qCurrentQuery;
-	private Predicate<? super Entity>	   pDefaultConstraints;
-	private Predicate<? super Entity>	   pDefaultSortCriteria;
-	private Function<Entity, List<String>> fGetAttributes;
-	private List<ColumnDefinition>		   rColumns;
+	private volatile String sAdapterId;
+
+	private volatile QueryParameters	    aParams;
+	private volatile QueryPredicate<Entity> qCurrentQuery;
+	private volatile boolean			    bEstimatedCount = false;
+	private volatile int				    nMaxCachedRows  =
+		DEFAULT_MAX_CACHE_ROWS;
+	private volatile int				    nPrefetchDepth  = 0;
 
-	private List<Entity> aLastQueryResult;
+	private final AtomicLong aCacheHits		   = new AtomicLong();
+	private final AtomicLong aCacheMisses	   = new AtomicLong();
+	private final AtomicLong aPrefetchesUsed   = new AtomicLong();
+	private final AtomicLong aPrefetchesWasted = new AtomicLong();
+
+	private final Map<String, Prefetch> aPendingPrefetches =
+		new ConcurrentHashMap<>();
+
+	private final Map<Long, DatabaseStorageAdapter> aChildAdapters =
+		createLruMap(MAX_CHILD_ADAPTERS);
+
+	private volatile QueryCursorRegistry rCursorRegistry;
 
 	private final Lock aLock = new ReentrantLock();
 
@@ -135,789 +237,3098 @@ public class DatabaseStorageAdapter extends AbstractStorageAdapter
 		DataElementFactory rDataElementFactory)
 	{
 		this.rDataElementFactory = rDataElementFactory;
+
+		aParams =
+			new QueryParameters(null, null, null, null, null, nMaxCachedRows);
 	}
 
-	//~ Methods ----------------------------------------------------------------
+	//~ Static methods ---------------------------------------------------------
 
 	/***************************************
-	 * @see AbstractStorageAdapter#getColumns()
+	 * Returns the registry that records the timings of the queries of all
+	 * adapter instances.
+	 *
+	 * @return The query metrics registry or NULL if disabled
 	 */
-	@Override
-	public List<ColumnDefinition> getColumns()
+	public static QueryMetrics getQueryMetrics()
 	{
-		return rColumns;
+		return rQueryMetrics;
 	}
 
 	/***************************************
-	 * Returns the current query of this instance. This will return the query
-	 * predicate that had been created by the last execution of the method
-	 * {@link #performQuery(StringDataElement)} .
+	 * Invalidates the query results that have been cached by all adapter
+	 * instances for a certain entity type. This should be invoked by the
+	 * application after entities of the type have been stored or deleted.
+	 * The adapters will discard their cached results on their next query.
+	 * Only the query type of an adapter is considered, therefore changes of
+	 * hierarchical child entities of another type need to be reported for
+	 * the parent type. Changes that are not reported will be picked up when
+	 * the cached results expire.
 	 *
-	 * @return The current query predicate or NULL if no query has been executed
-	 *         yet
+	 * @param rEntityType The modified entity type
 	 */
-	@Override
-	public QueryPredicate<Entity> getCurrentQueryCriteria()
+	public static void invalidateCaches(Class<? extends Entity> rEntityType)
 	{
-		return qCurrentQuery;
+		aModificationCounts.computeIfAbsent(rEntityType, t -> new AtomicLong())
+						   .incrementAndGet();
 	}
 
 	/***************************************
-	 * @see AbstractStorageAdapter#getStorageDescription()
+	 * Sets the registry that records the timings of the queries of all
+	 * adapter instances. The default is an instance of {@link
+	 * HistogramQueryMetrics}.
+	 *
+	 * @param rMetrics The new query metrics registry or NULL to disable the
+	 *                 recording of query timings
 	 */
-	@Override
-	public String getStorageDescription()
+	public static void setQueryMetrics(QueryMetrics rMetrics)
 	{
-		return String.format("%s, %s, %s",
-							 qBaseQuery,
-							 pDefaultConstraints,
-							 pDefaultSortCriteria);
+		rQueryMetrics = rMetrics;
 	}
 
 	/***************************************
-	 * Performs a query on a {@link Storage} and returns a data element that
-	 * contains the result.
-	 *
-	 * @param  rQueryParams A data element list containing the query parameters
-	 *
-	 * @return A data element containing the query result
+	 * Sets the duration above which queries will be logged as slow queries
+	 * together with the durations of their phases.
 	 *
-	 * @throws StorageException If accessing the storage fails
+	 * @param nMillis The threshold in milliseconds or zero to disable the
+	 *                logging of slow queries
 	 */
-	@Override
-	public QueryResultElement<DataModel<String>> performQuery(
-		StringDataElement rQueryParams) throws StorageException
+	public static void setSlowQueryThreshold(long nMillis)
 	{
-		aLock.lock();
+		nSlowQueryThreshold = nMillis;
+	}
 
-		try
+	/***************************************
+	 * Sets the values of the shadow attributes of all attributes of an entity
+	 * that are annotated with {@link #CASE_NORMALIZED_ATTRIBUTE} to the
+	 * lower-case values of the annotated attributes. This should be invoked
+	 * before the entity is stored.
+	 *
+	 * @param rEntity The entity to update
+	 */
+	public static void updateCaseNormalizedAttributes(Entity rEntity)
+	{
+		for (RelationType<?> rAttr : rEntity.getDefinition().getAttributes())
 		{
-			int nStart     = rQueryParams.getIntProperty(QUERY_START, 0);
-			int nLimit     = rQueryParams.getIntProperty(QUERY_LIMIT, 0);
-			int nQuerySize;
-
-			List<DataModel<String>> aQueryRows =
-				new ArrayList<DataModel<String>>();
-
-			Map<String, String>		   rConstraints =
-				rQueryParams.getProperty(QUERY_SEARCH, null);
-			Map<String, SortDirection> rSortFields  =
-				rQueryParams.getProperty(QUERY_SORT, null);
+			RelationType<String> rShadowAttr =
+				rAttr.get(CASE_NORMALIZED_ATTRIBUTE);
 
-			Storage rStorage =
-				StorageManager.getStorage(qBaseQuery.getQueryType());
-
-			try
+			if (rShadowAttr != null)
 			{
-				qCurrentQuery =
-					createFullQuery(qBaseQuery, rConstraints, rSortFields);
-
-				nQuerySize =
-					executeQuery(rStorage,
-								 qCurrentQuery,
-								 nStart,
-								 nLimit,
-								 aQueryRows,
-								 qBaseQuery.get(FLAG_ATTRIBUTE));
+				Object rValue = rEntity.get(rAttr);
 
-				return new QueryResultElement<DataModel<String>>("DBQ" +
-																 nNextQueryId++,
-																 aQueryRows,
-																 nQuerySize);
-			}
-			finally
-			{
-				rStorage.release();
+				rEntity.set(rShadowAttr,
+							rValue != null ? rValue.toString().toLowerCase()
+										   : null);
 			}
 		}
-		finally
-		{
-			aLock.unlock();
-		}
 	}
 
 	/***************************************
-	 * Allows to query the position of an entity with a certain ID in the query
-	 * result of this adapter.
-	 *
-	 * @param  rId The ID of the entity to query the position of
+	 * Creates the criteria to continue a query after the row with certain sort
+	 * key values. For a sort key (k1, ..., kn) this will be the predicate
+	 * (k1 &gt; v1) OR (k1 = v1 AND k2 &gt; v2) OR ... with the comparisons
+	 * reversed for descending attributes. Because the sort key always ends
+	 * with the entity ID the criteria select exactly the rows following the
+	 * given key values. Rows with NULL values in a sort attribute would never
+	 * match these comparisons, therefore keyset criteria must only be created
+	 * for sort keys that are accepted by {@link
+	 * #isKeysetCapable(QueryParameters, Map)}.
 	 *
-	 * @return The entity position or -1 if undefined
+	 * @param  rSortKey The sort key
+	 * @param  rValues  The sort key values of the last row
 	 *
-	 * @throws StorageException If the database query fails
+	 * @return The keyset criteria
 	 */
-	public int positionOf(Object rId) throws StorageException
+	static Predicate<? super Entity> createKeysetCriteria(
+		Map<RelationType<?>, SortDirection> rSortKey,
+		List<Object>						rValues)
 	{
-		return queryPositionOrSize(rId);
-	}
+		Predicate<? super Entity> pKeyset	   = null;
+		Predicate<? super Entity> pEqualPrefix = null;
+		int						  nValue	   = 0;
 
-	/***************************************
-	 * Allows to query the position of an entity with a certain ID in the query
-	 * result of this adapter.
-	 *
-	 * @return The entity position or -1 if undefined
-	 *
-	 * @throws StorageException If the database query fails
-	 */
-	public int querySize() throws StorageException
-	{
-		return queryPositionOrSize(null);
+		for (Entry<RelationType<?>, SortDirection> rKey : rSortKey.entrySet())
+		{
+			RelationType<?> rAttr	   = rKey.getKey();
+			SortDirection   eDirection = rKey.getValue();
+			Object		    rValue     = rValues.get(nValue++);
+
+			pKeyset =
+				Predicates.or(pKeyset,
+							  Predicates.and(pEqualPrefix,
+											 createKeyComparison(rAttr,
+																 rValue,
+																 eDirection,
+																 false)));
+
+			pEqualPrefix =
+				Predicates.and(pEqualPrefix,
+							   createKeyComparison(rAttr,
+												   rValue,
+												   eDirection,
+												   true));
+		}
+
+		return pKeyset;
 	}
 
 	/***************************************
-	 * Sets the query parameters of this instance.
+	 * Creates a comparison predicate for a single element of a sort key.
 	 *
-	 * @param pBaseQuery           A query predicate containing the base query
-	 * @param fGetAttributes       A function that retrieves the attribute value
-	 *                             strings from an entity
-	 * @param pDefaultCriteria     An optional predicate containing default
-	 *                             criteria to be used if no specific
-	 *                             constraints are given
-	 * @param pDefaultSortCriteria An optional predicate containing default sort
-	 *                             criteria to be used if no specific sort
-	 *                             fields are given
-	 * @param rColumns             The query columns
+	 * @param  rAttr      The sort key attribute
+	 * @param  rValue     The value to compare with
+	 * @param  eDirection The sort direction of the attribute
+	 * @param  bEqual     TRUE to compare for equality, FALSE for a comparison
+	 *                    in sort direction
+	 *
+	 * @return The comparison predicate
 	 */
 	@SuppressWarnings("unchecked")
-	public <E extends Entity> void setQueryParameters(
-		QueryPredicate<E>			   pBaseQuery,
-		Function<Entity, List<String>> fGetAttributes,
-		Predicate<? super E>		   pDefaultCriteria,
-		Predicate<? super E>		   pDefaultSortCriteria,
-		List<ColumnDefinition>		   rColumns)
+	private static <C extends Comparable<C>> Predicate<Entity>
+	createKeyComparison(
+		RelationType<?> rAttr,
+		Object			rValue,
+		SortDirection   eDirection,
+		boolean			bEqual)
 	{
-		aLock.lock();
+		RelationType<C> rComparableAttr = (RelationType<C>) rAttr;
+		C			    rCompareValue   = (C) rValue;
 
-		try
+		Predicate<Entity> pComparison;
+
+		if (bEqual)
 		{
-			this.qBaseQuery			  = (QueryPredicate<Entity>) pBaseQuery;
-			this.fGetAttributes		  = fGetAttributes;
-			this.rColumns			  = rColumns;
-			this.pDefaultConstraints  =
-				(Predicate<? super Entity>) pDefaultCriteria;
-			this.pDefaultSortCriteria =
-				(Predicate<? super Entity>) pDefaultSortCriteria;
+			pComparison = rComparableAttr.is(equalTo(rCompareValue));
 		}
-		finally
+		else if (eDirection == SortDirection.DESCENDING)
 		{
-			aLock.unlock();
+			pComparison = rComparableAttr.is(lessThan(rCompareValue));
 		}
+		else
+		{
+			pComparison = rComparableAttr.is(greaterThan(rCompareValue));
+		}
+
+		return pComparison;
 	}
 
 	/***************************************
-	 * Returns the query predicate.
+	 * Creates a synchronized map with a limited size that evicts the least
+	 * recently used entries if the size limit is exceeded.
 	 *
-	 * @return The query predicate
+	 * @param  nMaxSize The maximum number of entries in the map
+	 *
+	 * @return The new map
 	 */
-	protected final QueryPredicate<Entity> getQueryPredicate()
+	private static <K, V> Map<K, V> createLruMap(int nMaxSize)
 	{
-		return qBaseQuery;
+		return Collections.synchronizedMap(new LinkedHashMap<K, V>(nMaxSize + 1,
+																   0.75f,
+																   true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> rEldest)
+				{
+					return size() > nMaxSize;
+				}
+			});
 	}
 
 	/***************************************
-	 * Internal method to apply optional search constraints to a query predicate
-	 * if they are available.
-	 *
-	 * @param  pQuery       The query to apply the search constraints to
-	 * @param  rConstraints A {@link StringMapDataElement} containing the search
-	 *                      constraints map or NULL for none
+	 * Creates the executor for the background prefetching of query windows.
+	 * The executor uses a small number of daemon threads and rejects new
+	 * prefetches if too many are pending.
 	 *
-	 * @return A new query predicate if constraints are available or else the
-	 *         unchanged input predicate
+	 * @return The new executor
 	 */
-	private QueryPredicate<Entity> applyQueryConstraints(
-		QueryPredicate<Entity> pQuery,
-		Map<String, String>    rConstraints)
+	private static ExecutorService createPrefetchExecutor()
 	{
-		Predicate<? super Entity> pConstraints = null;
-
-		if (rConstraints != null)
-		{
-			EntityDefinition<Entity> rDef =
-				EntityManager.getEntityDefinition(pQuery.getQueryType());
-
-			for (Entry<String, String> rConstraint : rConstraints.entrySet())
-			{
-				String sAttr		   = rConstraint.getKey();
-				String sAttrConstraint = rConstraint.getValue().trim();
+		ThreadPoolExecutor aExecutor =
+			new ThreadPoolExecutor(PREFETCH_THREADS,
+								   PREFETCH_THREADS,
+								   60,
+								   TimeUnit.SECONDS,
+								   new ArrayBlockingQueue<>(MAX_PENDING_PREFETCHES),
+								   DatabaseStorageAdapter::createPrefetchThread);
 
-				RelationType<?> rAttr = rDef.getAttribute(sAttr);
+		aExecutor.allowCoreThreadTimeOut(true);
 
-				if (rAttr == null)
-				{
-					throw new IllegalArgumentException("Unknown search attribute: " +
-													   sAttr);
-				}
+		return aExecutor;
+	}
 
-				if (sAttrConstraint != null && sAttrConstraint.length() > 1)
-				{
-					boolean bAttrOr =
-						sAttrConstraint.charAt(0) == CONSTRAINT_OR_PREFIX;
+	/***************************************
+	 * Creates a daemon thread for the prefetch executor.
+	 *
+	 * @param  rTask The task to run
+	 *
+	 * @return The new thread
+	 */
+	private static Thread createPrefetchThread(Runnable rTask)
+	{
+		Thread aThread = new Thread(rTask, "QueryPrefetch");
 
-					Predicate<? super Entity> pAttrConstraints = null;
+		aThread.setDaemon(true);
 
-					for (String sConstraint :
-						 sAttrConstraint.split(CONSTRAINT_SEPARATOR))
-					{
-						boolean bOr =
-							sConstraint.charAt(0) == CONSTRAINT_OR_PREFIX;
+		return aThread;
+	}
 
-						sConstraint = sConstraint.substring(1);
+	/***************************************
+	 * Returns the number of times that the cached results of a certain entity
+	 * type have been invalidated with {@link #invalidateCaches(Class)}.
+	 *
+	 * @param  rEntityType The entity type
+	 *
+	 * @return The modification count
+	 */
+	private static long getModificationCount(Class<?> rEntityType)
+	{
+		AtomicLong rCount =
+			rEntityType != null ? aModificationCounts.get(rEntityType) : null;
 
-						Predicate<? super Entity> pAttrConstraint =
-							createAttributeConstraint(rAttr, sConstraint);
+		return rCount != null ? rCount.get() : 0;
+	}
 
-						pAttrConstraints =
-							combinePredicates(pAttrConstraints,
-											  pAttrConstraint,
-											  bOr);
-					}
+	//~ Methods ----------------------------------------------------------------
 
-					pConstraints =
-						combinePredicates(pConstraints,
-										  pAttrConstraints,
-										  bAttrOr);
-				}
-			}
-		}
+	/***************************************
+	 * Creates a copy of this adapter for the export of the current query,
+	 * e.g. into a download document. The copy has the same query parameters
+	 * but it's own state so that exporting a large number of rows doesn't
+	 * cancel the prefetches of this adapter, replace it's cached results, or
+	 * change it's current query. The copy has no adapter ID and no cursor
+	 * registry and it doesn't cache results because exported rows are
+	 * typically read only once.
+	 *
+	 * @return The new export adapter
+	 */
+	public DatabaseStorageAdapter createExportAdapter()
+	{
+		QueryParameters		   rParams = aParams;
+		DatabaseStorageAdapter aCopy   =
+			new DatabaseStorageAdapter(rDataElementFactory);
+
+		aCopy.bEstimatedCount = bEstimatedCount;
+		aCopy.nMaxCachedRows  = 0;
+		aCopy.aParams		  =
+			new QueryParameters(rParams.qBaseQuery,
+								rParams.fGetAttributes,
+								rParams.pDefaultConstraints,
+								rParams.pDefaultSortCriteria,
+								rParams.rColumns,
+								0);
+
+		return aCopy;
+	}
 
-		return checkNewQuery(pQuery, pConstraints);
+	/***************************************
+	 * Returns the ID under which this adapter can be accessed by clients.
+	 *
+	 * @return The adapter ID or NULL if not set
+	 */
+	public String getAdapterId()
+	{
+		return sAdapterId;
 	}
 
 	/***************************************
-	 * Internal method to apply optional sort fields to a query predicate if
-	 * they are available.
+	 * Returns the adapter for the hierarchical children of a certain entity in
+	 * the result of this adapter. Child adapters are created on demand when
+	 * they are first requested by the client, i.e. when a node in a tree table
+	 * is expanded. Only the most recently used child adapters are kept by
+	 * this instance until the query parameters change, others will be created
+	 * again if necessary. The ID of a child adapter consists of the ID of this
+	 * adapter and the parent entity ID, separated by {@link
+	 * #CHILD_ADAPTER_SEPARATOR}.
 	 *
-	 * @param  pQuery      The query predicate to apply the sort fields to
-	 * @param  rSortFields A {@link StringMapDataElement} containing the sort
-	 *                     field map or NULL for none
+	 * <p>Child adapters will only be returned for the parent entities of rows
+	 * that have been sent to the client by this adapter since the last change
+	 * of the query parameters. This prevents that a client can query the
+	 * children of arbitrary entities by modifying the child adapter ID.</p>
 	 *
-	 * @return A new query predicate if sort fields are available or else the
-	 *         unchanged input predicate
+	 * @param  nParentId The ID of the parent entity
+	 *
+	 * @return The child adapter or NULL if the entity doesn't exist, has no
+	 *         queryable children, or has not been sent by this adapter
+	 *
+	 * @throws StorageException If querying the parent entity fails
 	 */
-	private QueryPredicate<Entity> applySortFields(
-		QueryPredicate<Entity>	   pQuery,
-		Map<String, SortDirection> rSortFields)
+	@SuppressWarnings("boxing")
+	public DatabaseStorageAdapter getChildAdapter(long nParentId)
+		throws StorageException
 	{
-		Predicate<? super Entity> pSortCriteria = null;
+		QueryParameters rParams = aParams;
 
-		if (rSortFields != null)
+		if (rParams.aChildParentIds.get(nParentId) == null)
 		{
-			EntityDefinition<Entity> rDef =
-				EntityManager.getEntityDefinition(pQuery.getQueryType());
+			Log.warnf("Child adapter request for unknown parent %s%c%d",
+					  sAdapterId,
+					  CHILD_ADAPTER_SEPARATOR,
+					  nParentId);
 
-			for (Entry<String, SortDirection> rAttrSort :
-				 rSortFields.entrySet())
+			return null;
+		}
+
+		DatabaseStorageAdapter rChildAdapter = aChildAdapters.get(nParentId);
+
+		if (rChildAdapter == null)
+		{
+			rChildAdapter = createChildAdapter(rParams, nParentId);
+
+			if (rChildAdapter != null)
 			{
-				String		    sAttr = rAttrSort.getKey();
-				RelationType<?> rAttr = rDef.getAttribute(sAttr);
+				DatabaseStorageAdapter rExisting =
+					aChildAdapters.putIfAbsent(nParentId, rChildAdapter);
 
-				if (rAttr == null)
+				if (rExisting != null)
 				{
-					throw new IllegalArgumentException("Unknown attribute: " +
-													   sAttr);
+					rChildAdapter = rExisting;
 				}
-
-				pSortCriteria =
-					Predicates.and(pSortCriteria,
-								   sortBy(rAttr, rAttrSort.getValue()));
 			}
 		}
-		else
-		{
-			pSortCriteria = pDefaultSortCriteria;
-		}
 
-		return checkNewQuery(pQuery, pSortCriteria);
+		return rChildAdapter;
 	}
 
 	/***************************************
-	 * Helper method to check whether a new new query needs to be created if the
-	 * criteria have changed. If not the original query predicate will be
-	 * returned.
-	 *
-	 * @param  pQuery         The query predicate
-	 * @param  pExtraCriteria The new (or same
-	 *
-	 * @return Either the same or a new query predicate
+	 * @see AbstractStorageAdapter#getColumns()
 	 */
-	private QueryPredicate<Entity> checkNewQuery(
-		QueryPredicate<Entity>    pQuery,
-		Predicate<? super Entity> pExtraCriteria)
+	@Override
+	public List<ColumnDefinition> getColumns()
 	{
-		Predicate<? super Entity> pQueryCriteria = pQuery.getCriteria();
-		Predicate<? super Entity> pCriteria		 =
-			Predicates.and(pQueryCriteria, pExtraCriteria);
-
-		if (pCriteria != pQueryCriteria)
-		{
-			QueryPredicate<Entity> pNewQuery =
-				new QueryPredicate<Entity>(pQuery.getQueryType(), pCriteria);
-
-			ObjectRelations.copyRelations(pQuery, pNewQuery, false);
-			pQuery = pNewQuery;
-		}
-
-		return pQuery;
+		return aParams.rColumns;
 	}
 
 	/***************************************
-	 * Combines to predicates with either a logical OR or AND. Any of the
-	 * predicate arguments can be NULL.
+	 * Returns the number of query windows that have been served from the
+	 * result cache of this instance instead of querying the storage.
 	 *
-	 * @param  pFirst  The first predicate
-	 * @param  pSecond The second predicate
-	 * @param  bOr     TRUE for OR, FALSE for AND
+	 * @return The cache hit count
+	 */
+	public long getCacheHits()
+	{
+		return aCacheHits.get();
+	}
+
+	/***************************************
+	 * Returns the number of query windows that could not be served from the
+	 * result cache of this instance and caused a storage query.
 	 *
-	 * @return The resulting predicate
+	 * @return The cache miss count
 	 */
-	private Predicate<? super Entity> combinePredicates(
-		Predicate<? super Entity> pFirst,
-		Predicate<? super Entity> pSecond,
-		boolean					  bOr)
+	public long getCacheMisses()
 	{
-		if (bOr)
+		return aCacheMisses.get();
+	}
+
+	/***************************************
+	 * Returns the number of query windows that have been prefetched in the
+	 * background and then been requested by a query.
+	 *
+	 * @return The number of used prefetches
+	 */
+	public long getPrefetchesUsed()
+	{
+		return aPrefetchesUsed.get();
+	}
+
+	/***************************************
+	 * Returns the number of query windows that have been prefetched in the
+	 * background but have been discarded without being requested, e.g.
+	 * because the query parameters changed or the cache has been invalidated.
+	 *
+	 * @return The number of wasted prefetches
+	 */
+	public long getPrefetchesWasted()
+	{
+		return aPrefetchesWasted.get() +
+			   aParams.aResultCache.getWastedPrefetches();
+	}
+
+	/***************************************
+	 * Returns the current query of this instance. This will return the query
+	 * predicate that had been created by the last execution of the method
+	 * {@link #performQuery(StringDataElement)} .
+	 *
+	 * @return The current query predicate or NULL if no query has been executed
+	 *         yet
+	 */
+	@Override
+	public QueryPredicate<Entity> getCurrentQueryCriteria()
+	{
+		return qCurrentQuery;
+	}
+
+	/***************************************
+	 * Returns the entity type that is queried by this adapter.
+	 *
+	 * @return The query type or NULL if no query parameters have been set
+	 */
+	public Class<Entity> getQueryType()
+	{
+		QueryPredicate<Entity> qBaseQuery = aParams.qBaseQuery;
+
+		return qBaseQuery != null ? qBaseQuery.getQueryType() : null;
+	}
+
+	/***************************************
+	 * Returns the composite sort key that is used for queries of this adapter
+	 * with certain sort fields. The sort key contains the sort fields (or the
+	 * default sort attribute if no sort fields are given) followed by the
+	 * entity ID attribute as a final tie-breaker. This makes the order of the
+	 * query rows unique so that query windows are stable and can be served by
+	 * a database index on the sort columns and the ID.
+	 *
+	 * @param  rSortFields The sort fields or NULL for the default sort order
+	 *
+	 * @return An unmodifiable ordered mapping from sort attributes to sort
+	 *         directions or NULL if the default sort criteria of this adapter
+	 *         cannot be represented as a sort key (queries will then be
+	 *         sorted by the default criteria followed by the entity ID)
+	 */
+	public Map<RelationType<?>, SortDirection> getSortKey(
+		Map<String, SortDirection> rSortFields)
+	{
+		Map<RelationType<?>, SortDirection> rSortKey =
+			getSortKey(aParams, rSortFields);
+
+		return rSortKey != null ? Collections.unmodifiableMap(rSortKey) : null;
+	}
+
+	/***************************************
+	 * @see AbstractStorageAdapter#getStorageDescription()
+	 */
+	@Override
+	public String getStorageDescription()
+	{
+		QueryParameters rParams = aParams;
+
+		return String.format("%s, %s, %s",
+							 rParams.qBaseQuery,
+							 rParams.pDefaultConstraints,
+							 rParams.pDefaultSortCriteria);
+	}
+
+	/***************************************
+	 * Invalidates all query results that have been cached by this instance.
+	 * This should be invoked if the queried data has been modified and the
+	 * adapter is to be re-used without changing the query parameters (which
+	 * also invalidates the cache). The cache will also be invalidated by a
+	 * query with the flag {@link StorageService#DELTA_REFRESH} and after
+	 * {@link #invalidateCaches(Class)} has been invoked for the query type.
+	 */
+	public void invalidateCache()
+	{
+		invalidateCache(aParams);
+	}
+
+	/***************************************
+	 * Checks whether the entities queried by this instance have hierarchical
+	 * children. The rows of such queries contain child data models that may
+	 * need the context of the current request, e.g. to register child
+	 * storage adapters in the session.
+	 *
+	 * @return TRUE if the query type has hierarchical children
+	 */
+	public boolean isHierarchical()
+	{
+		Class<Entity> rQueryType = getQueryType();
+
+		return rQueryType != null &&
+			   EntityManager.getEntityDefinition(rQueryType)
+			   .getHierarchyChildAttribute() != null;
+	}
+
+	/***************************************
+	 * Performs a query on a {@link Storage} and returns a data element that
+	 * contains the result. Query windows that have already been queried with
+	 * the same constraints and sort fields will be served from an internal
+	 * cache if possible. If a prefetch depth has been set the following query
+	 * windows will then be queried in the background.
+	 *
+	 * <p>The adapter records a hash of every row it returns for the most
+	 * recent combination of constraints and sort fields and sets a new {@link
+	 * StorageService#DELTA_VERSION} on each result. If the query parameters
+	 * contain the flag {@link StorageService#DELTA_REFRESH} the window will
+	 * be re-queried from the storage and the result will only contain the
+	 * rows that differ from the rows sent previously. The recorded rows are
+	 * only compared if the query contains the delta version of the last
+	 * result. Otherwise the client may not have received that result and all
+	 * rows of the window will be returned.</p>
+	 *
+	 * <p>If the query parameters contain the flag {@link
+	 * StorageService#QUERY_CURSOR} the IDs of the query result will be read
+	 * into a cursor on the first query and the following windows will be
+	 * read by ID from this snapshot. This prevents rows from being skipped or
+	 * repeated by concurrent modifications while scrolling through a query.
+	 * If the query is too large for a cursor or if no cursor registry has
+	 * been set the query will be performed normally. A delta refresh will
+	 * discard the cursor so that the next query creates a new snapshot.</p>
+	 *
+	 * <p>The durations of the query phases are recorded in the registry that
+	 * has been set with {@link #setQueryMetrics(QueryMetrics)}. Queries that
+	 * exceed the threshold set with {@link #setSlowQueryThreshold(long)} will
+	 * be logged.</p>
+	 *
+	 * @param  rQueryParams A data element list containing the query parameters
+	 *
+	 * @return A data element containing the query result
+	 *
+	 * @throws StorageException If accessing the storage fails
+	 */
+	@Override
+	public QueryResultElement<DataModel<String>> performQuery(
+		StringDataElement rQueryParams) throws StorageException
+	{
+		QueryParameters rParams    = aParams;
+		long			nStartTime = System.nanoTime();
+
+		int nStart     = rQueryParams.getIntProperty(QUERY_START, 0);
+		int nLimit     = rQueryParams.getIntProperty(QUERY_LIMIT, 0);
+		int nQuerySize;
+
+		Map<String, String>		   rConstraints =
+			rQueryParams.getProperty(QUERY_SEARCH, null);
+		Map<String, SortDirection> rSortFields  =
+			rQueryParams.getProperty(QUERY_SORT, null);
+
+		boolean bWithChildren =
+			!rQueryParams.getProperty(SKIP_CHILDREN, Boolean.FALSE);
+		boolean bDelta		  =
+			rQueryParams.getProperty(DELTA_REFRESH, Boolean.FALSE);
+		boolean bCursor		  =
+			!bDelta && rQueryParams.getProperty(QUERY_CURSOR, Boolean.FALSE);
+
+		String sConstraintKey = createConstraintKey(rConstraints);
+		String sCacheKey	  = createCacheKey(sConstraintKey, rSortFields);
+
+		if (!bWithChildren)
+		{
+			sCacheKey += "|flat";
+		}
+
+		cancelPrefetches(sCacheKey);
+
+		if (bDelta || isModified(rParams))
+		{
+			// rows may have been added, changed, or removed since they have
+			// been cached
+			invalidateCache(rParams);
+		}
+
+		QueryWindow aWindow =
+			bCursor ? queryCursorWindow(rParams,
+										rConstraints,
+										rSortFields,
+										sCacheKey,
+										nStart,
+										nLimit,
+										bWithChildren) : null;
+
+		bCursor = aWindow != null;
+
+		// a delta refresh must always query the current state of the rows
+		List<DataModel<String>> rRows =
+			bDelta || bCursor ? null
+							  : rParams.aResultCache.getWindow(sCacheKey,
+															   nStart,
+															   nLimit);
+
+		int nCount = rParams.aResultCache.getCount(sConstraintKey);
+
+		if (rRows != null &&
+			(nCount >= 0
+			 ? nCount != rParams.aResultCache.getQuerySize(sCacheKey)
+			 : !bEstimatedCount))
+		{
+			// the count has expired or changed since the window has been
+			// cached, therefore the cached rows may be outdated
+			rParams.aResultCache.removeQuery(sCacheKey);
+			rRows = null;
+		}
+
+		if (bCursor)
+		{
+			qCurrentQuery = aWindow.qQuery;
+			nQuerySize    = aWindow.nQuerySize;
+			rRows		  = aWindow.aRows;
+		}
+		else if (rRows != null)
+		{
+			aCacheHits.incrementAndGet();
+
+			if (rParams.aResultCache.removePrefetched(sCacheKey, nStart))
+			{
+				aPrefetchesUsed.incrementAndGet();
+			}
+
+			qCurrentQuery = rParams.aResultCache.getQuery(sCacheKey);
+			nQuerySize    =
+				nCount >= 0 ? nCount
+							: rParams.aResultCache.getQuerySize(sCacheKey);
+		}
+		else
+		{
+			aCacheMisses.incrementAndGet();
+
+			aWindow =
+				queryWindow(rParams,
+							rConstraints,
+							rSortFields,
+							sConstraintKey,
+							sCacheKey,
+							nStart,
+							nLimit,
+							!bDelta &&
+							rQueryParams.getProperty(KEYSET_PAGING,
+													 Boolean.FALSE),
+							bWithChildren);
+
+			qCurrentQuery = aWindow.qQuery;
+			nQuerySize    = aWindow.nQuerySize;
+			rRows		  = aWindow.aRows;
+		}
+
+		List<DataModel<String>> aChangedRows = new ArrayList<>();
+
+		int nVersion =
+			updateSentRows(rParams,
+						   sCacheKey,
+						   nStart,
+						   nLimit,
+						   rRows,
+						   rQueryParams.getIntProperty(DELTA_VERSION, -1),
+						   aChangedRows);
+
+		QueryResultElement<DataModel<String>> aResult =
+			createQueryResult(rParams,
+							  bDelta ? aChangedRows : rRows,
+							  nQuerySize,
+							  sConstraintKey);
+
+		aResult.setProperty(DELTA_VERSION, nVersion);
+
+		if (bDelta)
+		{
+			aResult.setProperty(DELTA_ROW_COUNT, rRows.size());
+		}
+
+		if (nPrefetchDepth > 0 &&
+			!bCursor &&
+			bWithChildren &&
+			nLimit > 0 &&
+			nStart + nLimit < nQuerySize)
+		{
+			startPrefetch(rParams,
+						  rConstraints,
+						  rSortFields,
+						  sConstraintKey,
+						  sCacheKey,
+						  nStart + nLimit,
+						  nLimit,
+						  nQuerySize);
+		}
+
+		recordMetrics(rParams, aWindow, nStartTime, rRows.size());
+
+		return aResult;
+	}
+
+	/***************************************
+	 * Allows to query the position of an entity with a certain ID in the query
+	 * result of this adapter. If the query is not too large the IDs of all
+	 * entities will be read with a single query into a position index. The
+	 * index is kept in the query parameters snapshot and is therefore
+	 * discarded if the query parameters change. It is also discarded if the
+	 * cache is invalidated, on a delta refresh, and after a maximum age. If
+	 * an ID is not contained in the index or if the query is too large the
+	 * position will be queried from the storage. If the entity is found by
+	 * that query it has been added after the index has been built and the
+	 * index will be discarded.
+	 *
+	 * @param  rId The ID of the entity to query the position of
+	 *
+	 * @return The entity position or -1 if undefined
+	 *
+	 * @throws StorageException If the database query fails
+	 */
+	public int positionOf(Object rId) throws StorageException
+	{
+		QueryParameters rParams = aParams;
+
+		Map<Long, Integer> rPositions =
+			rId instanceof Number ? getPositionIndex(rParams) : null;
+
+		Integer rPosition =
+			rPositions != null ? rPositions.get(((Number) rId).longValue())
+							   : null;
+
+		if (rPosition != null)
+		{
+			return rPosition.intValue();
+		}
+
+		int nPosition = queryPositionOrSize(rId);
+
+		if (rPositions != null && nPosition >= 0)
+		{
+			rParams.aPositionIndex = null;
+		}
+
+		return nPosition;
+	}
+
+	/***************************************
+	 * Returns the size of the unconstrained query of this adapter. The size is
+	 * cached until the query parameters change.
+	 *
+	 * @return The query size
+	 *
+	 * @throws StorageException If the database query fails
+	 */
+	public int querySize() throws StorageException
+	{
+		return queryPositionOrSize(null);
+	}
+
+	/***************************************
+	 * Releases all child adapters of this instance. This includes adapters
+	 * that have been created on demand by {@link #getChildAdapter(long)} and
+	 * the registrations of child adapters that have been created for the
+	 * rows of previous queries. Registered child adapters are only referenced
+	 * through their IDs which are kept by this instance so that they can be
+	 * garbage collected after their release. This method is invoked
+	 * automatically if the query parameters change.
+	 */
+	public void releaseChildAdapters()
+	{
+		List<StorageAdapterId> rAdapterIds = get(STORAGE_ADAPTER_IDS);
+
+		aChildAdapters.clear();
+
+		synchronized (rAdapterIds)
+		{
+			rAdapterIds.clear();
+		}
+	}
+
+	/***************************************
+	 * Sets the ID under which this adapter can be accessed by clients. This
+	 * will be invoked when the adapter is registered. The ID is needed to
+	 * create the IDs of child adapters.
+	 *
+	 * @param sId The adapter ID
+	 */
+	public void setAdapterId(String sId)
+	{
+		sAdapterId = sId;
+	}
+
+	/***************************************
+	 * Sets the registry that holds the query cursors of this adapter. The
+	 * registry is typically shared by all adapters of a session to limit the
+	 * memory used by cursors. Child adapters will use the registry of their
+	 * parent. Without a registry queries that request a cursor will be
+	 * performed without one.
+	 *
+	 * @param rRegistry The cursor registry or NULL to disable query cursors
+	 */
+	public void setCursorRegistry(QueryCursorRegistry rRegistry)
+	{
+		rCursorRegistry = rRegistry;
+	}
+
+	/***************************************
+	 * Enables or disables the estimated count mode. In this mode the size of
+	 * constrained queries will not be determined with a separate count query.
+	 * Instead the query size will be estimated from the rows that have been
+	 * read so far and the result elements will have the flag {@link
+	 * StorageService#MORE_ROWS_AVAILABLE} set as long as the end of the query
+	 * has not been reached. This is intended for very large tables where a
+	 * full count is too expensive.
+	 *
+	 * @param bEstimatedCount TRUE to estimate query sizes, FALSE to count them
+	 */
+	public void setEstimatedCount(boolean bEstimatedCount)
+	{
+		this.bEstimatedCount = bEstimatedCount;
+	}
+
+	/***************************************
+	 * Sets the maximum number of result rows that will be cached for each
+	 * distinct combination of query constraints and sort fields. Setting this
+	 * value will invalidate the current cache content.
+	 *
+	 * @param nMaxRows The maximum number of cached rows or zero to disable the
+	 *                 result caching
+	 */
+	public void setMaxCachedRows(int nMaxRows)
+	{
+		aLock.lock();
+
+		try
+		{
+			nMaxCachedRows = nMaxRows;
+			aParams.aResultCache.setMaxRows(nMaxRows);
+		}
+		finally
+		{
+			aLock.unlock();
+		}
+	}
+
+	/***************************************
+	 * Sets the number of query windows that will be prefetched in the
+	 * background after a query window has been queried. Prefetching is only
+	 * performed for entity types that don't have hierarchical children
+	 * because the creation of child storage adapters needs the context of
+	 * the current request. Prefetched windows are stored in the result cache
+	 * and pending prefetches will be cancelled if a query with different
+	 * constraints or sort fields is performed.
+	 *
+	 * @param nDepth The number of windows to prefetch or zero to disable
+	 *               prefetching (the default)
+	 */
+	public void setPrefetchDepth(int nDepth)
+	{
+		nPrefetchDepth = nDepth;
+
+		if (nDepth == 0)
+		{
+			cancelPrefetches(null);
+		}
+	}
+
+	/***************************************
+	 * Sets the query parameters of this instance. The parameters will be
+	 * stored in a new snapshot that replaces the current one. Queries
+	 * that are executed concurrently will complete with the previous
+	 * parameters. This will also invalidate any cached query results.
+	 *
+	 * @param pBaseQuery           A query predicate containing the base query
+	 * @param fGetAttributes       A function that retrieves the attribute value
+	 *                             strings from an entity
+	 * @param pDefaultCriteria     An optional predicate containing default
+	 *                             criteria to be used if no specific
+	 *                             constraints are given
+	 * @param pDefaultSortCriteria An optional predicate containing default sort
+	 *                             criteria to be used if no specific sort
+	 *                             fields are given
+	 * @param rColumns             The query columns
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Entity> void setQueryParameters(
+		QueryPredicate<E>			   pBaseQuery,
+		Function<Entity, List<String>> fGetAttributes,
+		Predicate<? super E>		   pDefaultCriteria,
+		Predicate<? super E>		   pDefaultSortCriteria,
+		List<ColumnDefinition>		   rColumns)
+	{
+		aLock.lock();
+
+		try
+		{
+			cancelPrefetches(null);
+			discardPrefetches(aParams);
+			releaseChildAdapters();
+
+			aParams =
+				new QueryParameters((QueryPredicate<Entity>) pBaseQuery,
+									fGetAttributes,
+									(Predicate<? super Entity>)
+									pDefaultCriteria,
+									(Predicate<? super Entity>)
+									pDefaultSortCriteria,
+									rColumns,
+									nMaxCachedRows);
+		}
+		finally
+		{
+			aLock.unlock();
+		}
+	}
+
+	/***************************************
+	 * Returns the query predicate.
+	 *
+	 * @return The query predicate
+	 */
+	protected final QueryPredicate<Entity> getQueryPredicate()
+	{
+		return aParams.qBaseQuery;
+	}
+
+	/***************************************
+	 * Internal method to apply optional search constraints to a query predicate
+	 * if they are available. The predicates that are parsed from the
+	 * constraint strings are cached for each combination of query type and
+	 * constraints so that repeated queries with the same constraints (e.g.
+	 * when scrolling through a result) don't need to parse them again.
+	 *
+	 * @param  pQuery       The query to apply the search constraints to
+	 * @param  rConstraints A {@link StringMapDataElement} containing the search
+	 *                      constraints map or NULL for none
+	 *
+	 * @return A new query predicate if constraints are available or else the
+	 *         unchanged input predicate
+	 */
+	private QueryPredicate<Entity> applyQueryConstraints(
+		QueryPredicate<Entity> pQuery,
+		Map<String, String>    rConstraints)
+	{
+		Predicate<? super Entity> pConstraints = null;
+
+		if (rConstraints != null && !rConstraints.isEmpty())
+		{
+			EntityTextIndex rTextIndex =
+				EntityTextIndex.get(pQuery.getQueryType());
+
+			// constraints that have been resolved with a text index are only
+			// valid as long as the index is not modified
+			String sKey =
+				pQuery.getQueryType().getName() + ':' +
+				(rTextIndex != null ? rTextIndex.getVersion() : 0) + ':' +
+				createConstraintKey(rConstraints);
+
+			pConstraints = aConstraintCache.get(sKey);
+
+			if (pConstraints == null)
+			{
+				pConstraints =
+					parseQueryConstraints(pQuery.getQueryType(),
+										  rConstraints,
+										  rTextIndex);
+
+				if (pConstraints != null)
+				{
+					aConstraintCache.put(sKey, pConstraints);
+				}
+			}
+		}
+
+		return checkNewQuery(pQuery, pConstraints);
+	}
+
+	/***************************************
+	 * Internal method to apply the sort criteria to a query predicate. The
+	 * criteria always end with the entity ID as a tie-breaker so that the
+	 * order of the query rows is deterministic, even if the sort key could
+	 * not be determined and the default sort criteria are applied instead.
+	 *
+	 * @param  pQuery      The query predicate to apply the sort fields to
+	 * @param  rSortFields A {@link StringMapDataElement} containing the sort
+	 *                     field map or NULL for none
+	 * @param  rSortKey    The sort key as returned by {@link
+	 *                     #getSortKey(QueryParameters, Map)} or NULL if no
+	 *                     sort key could be determined
+	 * @param  pDefaultSort The default sort criteria to apply if no sort key
+	 *                      is available
+	 *
+	 * @return A new query predicate with the sort criteria
+	 */
+	private QueryPredicate<Entity> applySortFields(
+		QueryPredicate<Entity>				pQuery,
+		Map<String, SortDirection>			rSortFields,
+		Map<RelationType<?>, SortDirection> rSortKey,
+		Predicate<? super Entity>			pDefaultSort)
+	{
+		Predicate<? super Entity> pSortCriteria = null;
+
+		if (rSortKey != null)
+		{
+			for (Entry<RelationType<?>, SortDirection> rAttrSort :
+				 rSortKey.entrySet())
+			{
+				pSortCriteria =
+					Predicates.and(pSortCriteria,
+								   sortBy(rAttrSort.getKey(),
+										  rAttrSort.getValue()));
+			}
+		}
+		else
+		{
+			RelationType<?> rIdAttr =
+				EntityManager.getEntityDefinition(pQuery.getQueryType())
+							 .getIdAttribute();
+
+			pSortCriteria =
+				Predicates.and(pDefaultSort,
+							   sortBy(rIdAttr, SortDirection.ASCENDING));
+		}
+
+		return checkNewQuery(pQuery, pSortCriteria);
+	}
+
+	/***************************************
+	 * Resolves a single attribute constraint with a text index. A similarity
+	 * constraint will be replaced with a constraint on the IDs of the similar
+	 * entities. All other constraints are returned unchanged because their
+	 * result must not depend on the state of the index. The same applies if
+	 * the index cannot resolve a similarity constraint, in which case it will
+	 * be evaluated by the database.
+	 *
+	 * @param  rDef        The entity definition of the query type
+	 * @param  rTextIndex  The text index of the query type
+	 * @param  rAttr       The constraint attribute
+	 * @param  sConstraint The raw constraint
+	 * @param  pConstraint The constraint predicate created from the raw
+	 *                     constraint
+	 *
+	 * @return The resulting constraint predicate
+	 */
+	private Predicate<? super Entity> applyTextIndex(
+		EntityDefinition<Entity>  rDef,
+		EntityTextIndex			  rTextIndex,
+		RelationType<?>			  rAttr,
+		String					  sConstraint,
+		Predicate<? super Entity> pConstraint)
+	{
+		if (sConstraint.charAt(0) == '~')
+		{
+			Set<Long> rIds =
+				rTextIndex.findSimilar(rAttr,
+									   sConstraint.substring(1)
+									   .replaceAll(CONSTRAINT_SEPARATOR_ESCAPE,
+												   CONSTRAINT_SEPARATOR));
+
+			if (rIds != null)
+			{
+				pConstraint = rDef.getIdAttribute().is(elementOf(rIds));
+			}
+		}
+
+		return pConstraint;
+	}
+
+	/***************************************
+	 * Cancels the pending prefetches of this instance.
+	 *
+	 * @param sKeepKey The cache key of a prefetch that should not be cancelled
+	 *                 or NULL to cancel all prefetches
+	 */
+	private void cancelPrefetches(String sKeepKey)
+	{
+		for (Entry<String, Prefetch> rPrefetch : aPendingPrefetches.entrySet())
+		{
+			if (!rPrefetch.getKey().equals(sKeepKey))
+			{
+				rPrefetch.getValue().cancel();
+				aPendingPrefetches.remove(rPrefetch.getKey(),
+										  rPrefetch.getValue());
+			}
+		}
+	}
+
+	/***************************************
+	 * Helper method to check whether a new new query needs to be created if the
+	 * criteria have changed. If not the original query predicate will be
+	 * returned.
+	 *
+	 * @param  pQuery         The query predicate
+	 * @param  pExtraCriteria The new (or same
+	 *
+	 * @return Either the same or a new query predicate
+	 */
+	private QueryPredicate<Entity> checkNewQuery(
+		QueryPredicate<Entity>    pQuery,
+		Predicate<? super Entity> pExtraCriteria)
+	{
+		Predicate<? super Entity> pQueryCriteria = pQuery.getCriteria();
+		Predicate<? super Entity> pCriteria		 =
+			Predicates.and(pQueryCriteria, pExtraCriteria);
+
+		if (pCriteria != pQueryCriteria)
+		{
+			QueryPredicate<Entity> pNewQuery =
+				new QueryPredicate<Entity>(pQuery.getQueryType(), pCriteria);
+
+			ObjectRelations.copyRelations(pQuery, pNewQuery, false);
+			pQuery = pNewQuery;
+		}
+
+		return pQuery;
+	}
+
+	/***************************************
+	 * Combines to predicates with either a logical OR or AND. Any of the
+	 * predicate arguments can be NULL.
+	 *
+	 * @param  pFirst  The first predicate
+	 * @param  pSecond The second predicate
+	 * @param  bOr     TRUE for OR, FALSE for AND
+	 *
+	 * @return The resulting predicate
+	 */
+	private Predicate<? super Entity> combinePredicates(
+		Predicate<? super Entity> pFirst,
+		Predicate<? super Entity> pSecond,
+		boolean					  bOr)
+	{
+		if (bOr)
+		{
+			pFirst = Predicates.or(pFirst, pSecond);
+		}
+		else
+		{
+			pFirst = Predicates.and(pFirst, pSecond);
+		}
+
+		return pFirst;
+	}
+
+	/***************************************
+	 * Converts queried entities into the data objects of a query window.
+	 *
+	 * @param rParams       The query parameters snapshot
+	 * @param qEntities     The predicate of the query the entities have been
+	 *                      read with
+	 * @param nStart        The index of the first entity in the query result
+	 * @param aWindow       The window to add the data objects to
+	 * @param rEntities     The entities to convert
+	 * @param bWithChildren TRUE to include the children of hierarchical
+	 *                      entities in the result rows
+	 *
+	 * @throws StorageException If querying the child counts fails
+	 */
+	@SuppressWarnings("boxing")
+	private void convertEntities(QueryParameters		rParams,
+								 QueryPredicate<Entity> qEntities,
+								 int					nStart,
+								 QueryWindow			aWindow,
+								 List<Entity>			rEntities,
+								 boolean				bWithChildren)
+		throws StorageException
+	{
+		RelationType<?> rFlagAttribute = rParams.qBaseQuery.get(FLAG_ATTRIBUTE);
+
+		Predicate<? super Entity> pChildCriteria =
+			qEntities.get(HIERARCHY_CHILD_PREDICATE);
+
+		Map<Long, Integer> rChildCounts = null;
+
+		if (bWithChildren && pChildCriteria != null)
+		{
+			// count the constrained children of all rows on one storage
+			// before the rows are created instead of creating a child adapter
+			// for each row; without criteria the child lists are counted
+			rChildCounts =
+				rDataElementFactory.queryChildCounts(rEntities,
+													 pChildCriteria);
+		}
+
+		for (Entity rEntity : rEntities)
+		{
+			Set<String> aFlags = null;
+
+			if (rFlagAttribute != null)
+			{
+				Object rFlagValue = rEntity.get(rFlagAttribute);
+
+				if (rFlagValue != null)
+				{
+					aFlags = Collections.singleton(rFlagValue.toString());
+				}
+			}
+
+			HierarchicalDataObject aDataObject =
+				rDataElementFactory.createEntityDataObject(rEntity,
+														   nStart++,
+														   pChildCriteria,
+														   rParams.pDefaultSortCriteria,
+														   rParams.fGetAttributes,
+														   aFlags,
+														   bWithChildren,
+														   rChildCounts,
+														   sAdapterId);
+
+			aWindow.aRows.add(aDataObject);
+
+			if (bWithChildren && sAdapterId != null)
+			{
+				// remember parents of lazy child adapters for their validation
+				rParams.aChildParentIds.put(rEntity.getId(), Boolean.TRUE);
+			}
+
+			StorageAdapterId rChildAdapterId =
+				rEntity.get(CHILD_STORAGE_ADAPTER_ID);
+
+			// the parent adapter keeps the IDs of registered child adapters
+			// to prevent their garbage collection until they are released;
+			// the entities are not needed after the conversion
+			if (rChildAdapterId != null)
+			{
+				List<StorageAdapterId> rAdapterIds = get(STORAGE_ADAPTER_IDS);
+
+				synchronized (rAdapterIds)
+				{
+					rAdapterIds.add(rChildAdapterId);
+				}
+
+				rEntity.deleteRelation(CHILD_STORAGE_ADAPTER_ID);
+			}
+		}
+	}
+
+	/***************************************
+	 * Creates a constraint predicate for a certain attributes.
+	 *
+	 * @param  rAttr       The attribute to create the constraint for
+	 * @param  sConstraint The constraint string
+	 *
+	 * @return The predicate containing the attribute constraint or NULL if the
+	 *         constraint is not valid
+	 */
+	@SuppressWarnings({ "unchecked" })
+	private Predicate<Entity> createAttributeConstraint(
+		RelationType<?> rAttr,
+		String			sConstraint)
+	{
+		Class<?>     rDatatype   = rAttr.getTargetType();
+		Predicate<?> pAttribute  = null;
+		char		 cComparison = sConstraint.charAt(0);
+
+		if (CONSTRAINT_COMPARISON_CHARS.indexOf(sConstraint.charAt(0)) >= 0)
+		{
+			sConstraint = sConstraint.substring(1);
+		}
+
+		sConstraint =
+			sConstraint.replaceAll(CONSTRAINT_SEPARATOR_ESCAPE,
+								   CONSTRAINT_SEPARATOR);
+
+		if (sConstraint.length() > 0)
+		{
+			if (cComparison == '#')
+			{
+				String[] aRawValues = sConstraint.split(",");
+
+				List<Object> aValues = new ArrayList<Object>(aRawValues.length);
+
+				for (String sValue : aRawValues)
+				{
+					aValues.add(parseConstraintValue(sValue.trim(), rDatatype));
+				}
+
+				pAttribute = rAttr.is(elementOf(aValues));
+			}
+			else
+			{
+				Object rValue = parseConstraintValue(sConstraint, rDatatype);
+
+				if (rValue instanceof Comparable)
+				{
+					pAttribute =
+						createComparableConstraint(rAttr,
+												   cComparison,
+												   rValue,
+												   sConstraint);
+				}
+			}
+		}
+
+		return (Predicate<Entity>) pAttribute;
+	}
+
+	/***************************************
+	 * Creates a query constraint predicate for a comparable value.
+	 *
+	 * @param  rAttr       The attribute to create the predicate for
+	 * @param  cComparison The comparison to perform
+	 * @param  rValue      The comparable value
+	 * @param  sConstraint The constraint string
+	 *
+	 * @return A predicate containing the query constraint
+	 */
+	@SuppressWarnings({ "unchecked" })
+	private <C extends Comparable<C>> Predicate<?> createComparableConstraint(
+		RelationType<?> rAttr,
+		char			cComparison,
+		Object			rValue,
+		String			sConstraint)
+	{
+		Predicate<?> pAttribute;
+
+		RelationType<C> rComparableAttr = (RelationType<C>) rAttr;
+		C			    rCompareValue   = (C) rValue;
+
+		switch (cComparison)
+		{
+			case '<':
+				pAttribute = rComparableAttr.is(lessThan(rCompareValue));
+				break;
+
+			case '>':
+				pAttribute = rComparableAttr.is(greaterThan(rCompareValue));
+				break;
+
+			case '\u2264': // <=
+				pAttribute = rComparableAttr.is(lessOrEqual(rCompareValue));
+				break;
+
+			case '\u2265': // >=
+				pAttribute = rComparableAttr.is(greaterOrEqual(rCompareValue));
+				break;
+
+			case '~':
+				pAttribute = rComparableAttr.is(similarTo(sConstraint));
+				break;
+
+			default:
+				pAttribute =
+					createValueConstraint(rComparableAttr,
+										  cComparison,
+										  rCompareValue,
+										  sConstraint);
+		}
+
+		return pAttribute;
+	}
+
+	/***************************************
+	 * Creates the final query predicate for this instance by applying
+	 * constraints and sort fields (if available) to the base query predicate.
+	 *
+	 * @param  rParams      The query parameters snapshot
+	 * @param  rConstraints The additional query constraints (NULL for none)
+	 * @param  rSortFields  The optional sort fields (NULL for none)
+	 * @param  rSortKey     The sort key as returned by {@link
+	 *                      #getSortKey(QueryParameters, Map)} (NULL for none)
+	 *
+	 * @return A query predicate for the query type of the base query that
+	 *         combines the base criteria with the hierarchy, default and
+	 *         additional constraints and the sort criteria
+	 */
+	private QueryPredicate<Entity> createFullQuery(
+		QueryParameters						rParams,
+		Map<String, String>					rConstraints,
+		Map<String, SortDirection>			rSortFields,
+		Map<RelationType<?>, SortDirection> rSortKey)
+	{
+		QueryPredicate<Entity> qBaseQuery = rParams.qBaseQuery;
+
+		Class<Entity>			  rQueryType = qBaseQuery.getQueryType();
+		Predicate<? super Entity> pCriteria  = qBaseQuery.getCriteria();
+
+		HierarchicalQueryMode eHierarchyMode =
+			qBaseQuery.get(HIERARCHICAL_QUERY_MODE);
+
+		boolean bNoConstraints =
+			rConstraints == null || rConstraints.size() == 0;
+		boolean bHierarchical  =
+			eHierarchyMode == HierarchicalQueryMode.ALWAYS ||
+			eHierarchyMode == HierarchicalQueryMode.UNCONSTRAINED &&
+			bNoConstraints;
+
+		if (bHierarchical)
+		{
+			Predicate<? super Entity> pIsHierarchyRoot =
+				qBaseQuery.get(HIERARCHY_ROOT_PREDICATE);
+
+			if (pIsHierarchyRoot == null)
+			{
+				RelationType<? extends Entity> rParentAttribute =
+					EntityManager.getEntityDefinition(rQueryType)
+								 .getParentAttribute();
+
+				if (rParentAttribute != null)
+				{
+					pIsHierarchyRoot = rParentAttribute.is(isNull());
+				}
+			}
+
+			if (pIsHierarchyRoot != null)
+			{
+				pCriteria = Predicates.and(pCriteria, pIsHierarchyRoot);
+			}
+		}
+
+		if (bNoConstraints && rParams.pDefaultConstraints != null)
+		{
+			pCriteria = Predicates.and(pCriteria, rParams.pDefaultConstraints);
+		}
+
+		QueryPredicate<Entity> qFullQuery = qBaseQuery;
+
+		if (pCriteria != qBaseQuery.getCriteria())
+		{
+			qFullQuery = new QueryPredicate<Entity>(rQueryType, pCriteria);
+
+			ObjectRelations.copyRelations(qBaseQuery, qFullQuery, false);
+		}
+
+		qFullQuery = applyQueryConstraints(qFullQuery, rConstraints);
+		qFullQuery =
+			applySortFields(qFullQuery,
+							rSortFields,
+							rSortKey,
+							rParams.pDefaultSortCriteria);
+
+		return qFullQuery;
+	}
+
+	/***************************************
+	 * Creates the key for the caching of query results with certain
+	 * constraints and sort fields. The order of the sort fields is relevant
+	 * for the result and is therefore retained.
+	 *
+	 * @param  sConstraintKey The constraint key as returned by {@link
+	 *                        #createConstraintKey(Map)}
+	 * @param  rSortFields    The sort fields (NULL for none)
+	 *
+	 * @return The cache key
+	 */
+	private String createCacheKey(
+		String					   sConstraintKey,
+		Map<String, SortDirection> rSortFields)
+	{
+		return rSortFields != null ? sConstraintKey + '|' + rSortFields
+								   : sConstraintKey + '|';
+	}
+
+	/***************************************
+	 * Creates a new adapter for the hierarchical children of a certain entity
+	 * in the result of this adapter.
+	 *
+	 * @param  rParams   The query parameters snapshot
+	 * @param  nParentId The ID of the parent entity
+	 *
+	 * @return The new child adapter or NULL if the entity doesn't exist or has
+	 *         no queryable children
+	 *
+	 * @throws StorageException If querying the parent entity fails
+	 */
+	@SuppressWarnings("boxing")
+	private DatabaseStorageAdapter createChildAdapter(
+		QueryParameters rParams,
+		long			nParentId) throws StorageException
+	{
+		Class<Entity>			 rQueryType = rParams.qBaseQuery.getQueryType();
+		EntityDefinition<Entity> rDef	    =
+			EntityManager.getEntityDefinition(rQueryType);
+
+		RelationType<List<Entity>> rChildAttribute =
+			rDef.getHierarchyChildAttribute();
+
+		DatabaseStorageAdapter aChildAdapter = null;
+
+		if (rChildAttribute != null)
+		{
+			Entity rParent =
+				EntityManager.queryEntity(rQueryType,
+										  rDef.getIdAttribute(),
+										  nParentId,
+										  false);
+
+			List<Entity> rChildList =
+				rParent != null ? rParent.get(rChildAttribute) : null;
+
+			if (rChildList instanceof QueryList)
+			{
+				QueryPredicate<Entity> qChildren =
+					((QueryList<Entity>) rChildList).getQuery();
+
+				Predicate<? super Entity> pChildCriteria =
+					rParams.qBaseQuery.get(HIERARCHY_CHILD_PREDICATE);
+
+				if (pChildCriteria != null)
+				{
+					qChildren.set(HIERARCHY_CHILD_PREDICATE, pChildCriteria);
+				}
+
+				aChildAdapter = new DatabaseStorageAdapter(rDataElementFactory);
+
+				aChildAdapter.setQueryParameters(qChildren,
+												 rParams.fGetAttributes,
+												 pChildCriteria,
+												 rParams.pDefaultSortCriteria,
+												 null);
+				aChildAdapter.setAdapterId(sAdapterId +
+										   CHILD_ADAPTER_SEPARATOR +
+										   nParentId);
+				aChildAdapter.setCursorRegistry(rCursorRegistry);
+			}
+		}
+
+		return aChildAdapter;
+	}
+
+	/***************************************
+	 * Creates the key for the caching of query data that only depends on the
+	 * query constraints, like the query size. The constraints are ordered by
+	 * attribute name so that equal constraints always yield the same key.
+	 *
+	 * @param  rConstraints The query constraints (NULL for none)
+	 *
+	 * @return The constraint key
+	 */
+	private String createConstraintKey(Map<String, String> rConstraints)
+	{
+		return rConstraints != null && !rConstraints.isEmpty()
+			   ? new TreeMap<String, String>(rConstraints).toString() : "";
+	}
+
+	/***************************************
+	 * Creates a new query cursor by reading the IDs of all entities in the
+	 * result of a query.
+	 *
+	 * @param  rStorage     The storage to query the IDs from
+	 * @param  rParams      The query parameters snapshot
+	 * @param  rConstraints The query constraints (NULL for none)
+	 * @param  rSortFields  The sort fields (NULL for none)
+	 * @param  sCacheKey    The cache key of the query
+	 *
+	 * @return The new cursor or NULL if the query contains more than {@link
+	 *         #MAX_CURSOR_ROWS} entities
+	 *
+	 * @throws StorageException If the query fails
+	 */
+	private QueryCursor createCursor(Storage					rStorage,
+									 QueryParameters			rParams,
+									 Map<String, String>		rConstraints,
+									 Map<String, SortDirection> rSortFields,
+									 String					    sCacheKey)
+		throws StorageException
+	{
+		QueryPredicate<Entity> qQuery =
+			createFullQuery(rParams,
+							rConstraints,
+							rSortFields,
+							getSortKey(rParams, rSortFields));
+
+		long[] aIds = queryIds(rStorage, qQuery, MAX_CURSOR_ROWS);
+
+		return aIds != null ? new QueryCursor(rParams, sCacheKey, qQuery, aIds)
+							: null;
+	}
+
+	/***************************************
+	 * Creates the result element for a query. If the query size has only been
+	 * estimated the result will have the flag {@link
+	 * StorageService#MORE_ROWS_AVAILABLE} set.
+	 *
+	 * @param  rParams        The query parameters snapshot
+	 * @param  rRows          The result rows
+	 * @param  nQuerySize     The (possibly estimated) query size
+	 * @param  sConstraintKey The constraint key of the query
+	 *
+	 * @return The new query result element
+	 */
+	private QueryResultElement<DataModel<String>> createQueryResult(
+		QueryParameters			rParams,
+		List<DataModel<String>> rRows,
+		int						nQuerySize,
+		String					sConstraintKey)
+	{
+		QueryResultElement<DataModel<String>> aResult =
+			new QueryResultElement<DataModel<String>>("DBQ" +
+													  aNextQueryId
+													  .getAndIncrement(),
+													  rRows,
+													  nQuerySize);
+
+		if (bEstimatedCount &&
+			rParams.aResultCache.getCount(sConstraintKey) < 0)
+		{
+			aResult.setProperty(MORE_ROWS_AVAILABLE, Boolean.TRUE);
+		}
+
+		return aResult;
+	}
+
+	/***************************************
+	 * Creates a comparison predicate for a single-day constraint.
+	 *
+	 * @param  rAttribute    The attribute to create the comparison for
+	 * @param  rCompareValue The compare value
+	 * @param  bNegate       TRUE to negate the comparison
+	 *
+	 * @return The comparison predicate
+	 */
+	private Predicate<Entity> createSingleDayComparison(
+		RelationType<Date> rAttribute,
+		Date			   rCompareValue,
+		boolean			   bNegate)
+	{
+		Calendar		  rCalendar		 = Calendar.getInstance();
+		Predicate<Entity> pDayComparison;
+		Predicate<Entity> pLastDate;
+
+		rCalendar.setTime(rCompareValue);
+		CalendarFunctions.clearTime(rCalendar);
+		rCompareValue = rCalendar.getTime();
+
+		if (bNegate)
+		{
+			pDayComparison = rAttribute.is(lessThan(rCompareValue));
+		}
+		else
+		{
+			pDayComparison = rAttribute.is(greaterOrEqual(rCompareValue));
+		}
+
+		rCalendar.add(Calendar.DAY_OF_MONTH, 1);
+		rCompareValue = rCalendar.getTime();
+
+		if (bNegate)
+		{
+			pLastDate = rAttribute.is(greaterOrEqual(rCompareValue));
+		}
+		else
+		{
+			pLastDate = rAttribute.is(lessThan(rCompareValue));
+		}
+
+		pDayComparison = pDayComparison.and(pLastDate);
+
+		return pDayComparison;
+	}
+
+	/***************************************
+	 * Creates a single value comparison query constraint predicate. Lower-case
+	 * comparisons of string attributes that have a {@link
+	 * #CASE_NORMALIZED_ATTRIBUTE} will be performed on the shadow attribute.
+	 *
+	 * @param  rAttr       The attribute to create the predicate for
+	 * @param  cComparison The comparison to perform
+	 * @param  rValue      The comparable value
+	 * @param  sConstraint The constraint string
+	 *
+	 * @return A predicate containing the query constraint
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Predicate<?> createValueConstraint(RelationType<?> rAttr,
+											   char			   cComparison,
+											   Comparable	   rValue,
+											   String		   sConstraint)
+	{
+		Predicate<?> pAttribute;
+		boolean		 bNegate = (cComparison == '\u2260'); // !=
+
+		sConstraint = StorageManager.convertToSqlConstraint(sConstraint);
+
+		if (NULL_CONSTRAINT_VALUE.equals(rValue))
+		{
+			rValue = null;
+		}
+
+		if (rValue instanceof Date)
+		{
+			pAttribute =
+				createSingleDayComparison((RelationType<Date>) rAttr,
+										  (Date) rValue,
+										  bNegate);
+		}
+		else
+		{
+			Class<?>		  rDatatype   = rAttr.getTargetType();
+			Predicate<Object> pComparison;
+
+			if (sConstraint.indexOf('%') >= 0 || sConstraint.indexOf('_') >= 0)
+			{
+				pComparison = like(sConstraint);
+			}
+			else
+			{
+				pComparison = equalTo(rValue);
+			}
+
+			if (bNegate)
+			{
+				pComparison = Predicates.not(pComparison);
+			}
+
+			boolean bLowerCase =
+				(rDatatype == String.class || rDatatype.isEnum()) &&
+				!TextUtil.containsUpperCase(sConstraint);
+
+			RelationType<String> rShadowAttr =
+				bLowerCase && rDatatype == String.class
+				? rAttr.get(CASE_NORMALIZED_ATTRIBUTE) : null;
+
+			if (rShadowAttr != null)
+			{
+				// the shadow attribute already contains the lower-case value
+				// so that the comparison can use a database index
+				pAttribute = rShadowAttr.is(pComparison);
+			}
+			else if (bLowerCase)
+			{
+				Function<Relatable, String> fAttr =
+					StringFunctions.toLowerCase()
+								   .from((Function<Relatable, String>) rAttr);
+
+				pAttribute =
+					new FunctionPredicate<Entity, String>(fAttr, pComparison);
+			}
+			else
+			{
+				pAttribute = rAttr.is(pComparison);
+			}
+		}
+
+		return pAttribute;
+	}
+
+	/***************************************
+	 * Discards the cached results of a query parameters snapshot that is
+	 * replaced and adds the prefetched windows that have not been used to
+	 * the wasted prefetches of this instance.
+	 *
+	 * @param rParams The query parameters snapshot
+	 */
+	private void discardPrefetches(QueryParameters rParams)
+	{
+		rParams.aResultCache.clear();
+		aPrefetchesWasted.addAndGet(rParams.aResultCache.getWastedPrefetches());
+	}
+
+	/***************************************
+	 * Executes a storage query with certain parameters. The query object will
+	 * be closed after successful execution.
+	 *
+	 * @param  rStorage       The storage to execute the query on
+	 * @param  rParams        The query parameters snapshot
+	 * @param  qEntities      The predicate of the query to execute
+	 * @param  nStart         The starting index of the entities to query
+	 * @param  nLimit         The maximum number of entities to retrieve
+	 * @param  bKeyset        TRUE if the query contains keyset criteria that
+	 *                        select the rows from the start index on, FALSE
+	 *                        to skip the rows before the start index
+	 * @param  aWindow        The window to store the queried data objects
+	 *                        and the phase durations in
+	 * @param  aResultEntities The list to store the queried entities in
+	 * @param  bWithChildren  TRUE to include the children of hierarchical
+	 *                        entities in the result rows
+	 *
+	 * @return TRUE if the query contains more rows after the queried window
+	 *
+	 * @throws StorageException If accessing the storage fails
+	 * @throws ServiceException If creating a result data object fails
+	 */
+	private boolean executeQuery(Storage				 rStorage,
+								 QueryParameters		 rParams,
+								 QueryPredicate<Entity>  qEntities,
+								 int					 nStart,
+								 int					 nLimit,
+								 boolean				 bKeyset,
+								 QueryWindow			 aWindow,
+								 List<Entity>			 aResultEntities,
+								 boolean				 bWithChildren)
+		throws StorageException
+	{
+		boolean bMoreRows;
+		long    nPhaseStart = System.nanoTime();
+
+		try (Query<Entity> aQuery = rStorage.query(qEntities))
+		{
+			// query one additional row to detect whether more rows exist
+			aQuery.set(StorageRelationTypes.QUERY_LIMIT, nLimit + 1);
+			aQuery.set(StorageRelationTypes.QUERY_OFFSET, bKeyset ? 0 : nStart);
+
+			QueryResult<Entity> aEntities = aQuery.execute();
+
+			while (nLimit-- > 0 && aEntities.hasNext())
+			{
+				aResultEntities.add(aEntities.next());
+			}
+
+			bMoreRows = aEntities.hasNext();
+		}
+
+		nPhaseStart = aWindow.addPhaseTime(Phase.QUERY, nPhaseStart);
+
+		convertEntities(rParams,
+						qEntities,
+						nStart,
+						aWindow,
+						aResultEntities,
+						bWithChildren);
+
+		aWindow.addPhaseTime(Phase.CONVERSION, nPhaseStart);
+
+		return bMoreRows;
+	}
+
+	/***************************************
+	 * Returns the query with the default criteria and sort order of a query
+	 * parameters snapshot. The query will be created on the first invocation
+	 * and then kept in the snapshot.
+	 *
+	 * @param  rParams The query parameters snapshot
+	 *
+	 * @return The default query
+	 */
+	private QueryPredicate<Entity> getDefaultQuery(QueryParameters rParams)
+	{
+		QueryPredicate<Entity> qDefaultQuery = rParams.qDefaultQuery;
+
+		if (qDefaultQuery == null)
+		{
+			qDefaultQuery =
+				createFullQuery(rParams, null, null, getSortKey(rParams, null));
+
+			rParams.qDefaultQuery = qDefaultQuery;
+		}
+
+		return qDefaultQuery;
+	}
+
+	/***************************************
+	 * Returns the index of the positions of all entities in the default query
+	 * of this adapter. The index will be built from the IDs of the query if it
+	 * doesn't exist in the given query parameters snapshot or if it is older
+	 * than {@link #MAX_CACHE_AGE}. If the query is too large to be indexed
+	 * this will also be recorded for the same duration.
+	 *
+	 * @param  rParams The query parameters snapshot
+	 *
+	 * @return A mapping from entity IDs to positions or NULL if the query is
+	 *         too large to be indexed
+	 *
+	 * @throws StorageException If querying the entity IDs fails
+	 */
+	@SuppressWarnings("boxing")
+	private Map<Long, Integer> getPositionIndex(QueryParameters rParams)
+		throws StorageException
+	{
+		PositionIndex rIndex = rParams.aPositionIndex;
+
+		if (rIndex == null ||
+			System.currentTimeMillis() - rIndex.nTime > MAX_CACHE_AGE)
+		{
+			Storage rStorage =
+				StorageManager.getStorage(rParams.qBaseQuery.getQueryType());
+
+			try
+			{
+				long[] aIds =
+					queryIds(rStorage,
+							 getDefaultQuery(rParams),
+							 MAX_POSITION_INDEX);
+
+				rIndex = new PositionIndex(aIds != null);
+
+				if (aIds != null)
+				{
+					for (int i = 0; i < aIds.length; i++)
+					{
+						rIndex.aPositions.put(aIds[i], i);
+					}
+				}
+			}
+			finally
+			{
+				rStorage.release();
+			}
+
+			rParams.aPositionIndex = rIndex;
+		}
+
+		return rIndex.aPositions;
+	}
+
+	/***************************************
+	 * Returns the size of a query. If a query window did not reach the end of
+	 * the query the size can be derived from the window without counting. In
+	 * all other cases the size will be taken from the cache or, if not
+	 * available, counted with a separate query and then cached for the given
+	 * constraint key. In estimated count mode the query will not be counted
+	 * but the size will be estimated to extend one window beyond the current
+	 * one.
+	 *
+	 * @param  rStorage       The storage to query the size from
+	 * @param  rParams        The query parameters snapshot
+	 * @param  qQuery         The full query predicate
+	 * @param  sConstraintKey The key of the query constraints
+	 * @param  nStart         The start index of the queried window
+	 * @param  nLimit         The maximum size of the queried window
+	 * @param  nRows          The number of rows in the queried window
+	 * @param  bMoreRows      TRUE if the query contains more rows after the
+	 *                        window
+	 *
+	 * @return The query size
+	 *
+	 * @throws StorageException If counting the query fails
+	 */
+	private int getQuerySize(Storage				rStorage,
+							 QueryParameters		rParams,
+							 QueryPredicate<Entity> qQuery,
+							 String					sConstraintKey,
+							 int					nStart,
+							 int					nLimit,
+							 int					nRows,
+							 boolean				bMoreRows)
+		throws StorageException
+	{
+		QueryResultCache rCache     = rParams.aResultCache;
+		int				 nQuerySize = rCache.getCount(sConstraintKey);
+
+		if (nQuerySize < 0)
+		{
+			if (!bMoreRows && (nRows > 0 || nStart == 0))
+			{
+				nQuerySize = nStart + nRows;
+				rCache.putCount(sConstraintKey, nQuerySize);
+			}
+			else if (bEstimatedCount)
+			{
+				nQuerySize = nStart + nRows + (bMoreRows ? nLimit : 0);
+			}
+			else
+			{
+				try (Query<Entity> aQuery = rStorage.query(qQuery))
+				{
+					nQuerySize = aQuery.size();
+				}
+
+				rCache.putCount(sConstraintKey, nQuerySize);
+			}
+		}
+
+		return nQuerySize;
+	}
+
+	/***************************************
+	 * Calculates a hash value over the visible content of a result row.
+	 *
+	 * @param  rRow The row
+	 *
+	 * @return The row hash
+	 */
+	private int getRowHash(DataModel<String> rRow)
+	{
+		int nHash = 17;
+
+		for (String sValue : rRow)
+		{
+			nHash = nHash * 31 + Objects.hashCode(sValue);
+		}
+
+		if (rRow instanceof HierarchicalDataObject)
+		{
+			HierarchicalDataObject rObject = (HierarchicalDataObject) rRow;
+
+			nHash = nHash * 31 + Objects.hashCode(rObject.getId());
+			nHash = nHash * 31 + rObject.getFlags().hashCode();
+		}
+
+		return nHash;
+	}
+
+	/***************************************
+	 * Returns the sort key for a query of this adapter. The sort key is an
+	 * ordered mapping from the sort attributes to the sort direction that
+	 * always ends with the entity ID attribute to make the ordering of the
+	 * query rows unique. This is necessary for stable query windows and to
+	 * continue a query from the sort key values of a certain row (keyset
+	 * pagination).
+	 *
+	 * @param  rParams     The query parameters snapshot
+	 * @param  rSortFields The sort fields of the query or NULL to use the
+	 *                     default sort criteria of this adapter
+	 *
+	 * @return The sort key or NULL if the default sort criteria cannot be
+	 *         converted into a sort key
+	 */
+	private Map<RelationType<?>, SortDirection> getSortKey(
+		QueryParameters			   rParams,
+		Map<String, SortDirection> rSortFields)
+	{
+		Predicate<? super Entity> pDefaultSortCriteria =
+			rParams.pDefaultSortCriteria;
+
+		EntityDefinition<Entity> rDef =
+			EntityManager.getEntityDefinition(rParams.qBaseQuery
+											  .getQueryType());
+
+		Map<RelationType<?>, SortDirection> aSortKey = new LinkedHashMap<>();
+
+		if (rSortFields != null)
 		{
-			pFirst = Predicates.or(pFirst, pSecond);
+			for (Entry<String, SortDirection> rAttrSort :
+				 rSortFields.entrySet())
+			{
+				String		    sAttr = rAttrSort.getKey();
+				RelationType<?> rAttr = rDef.getAttribute(sAttr);
+
+				if (rAttr == null)
+				{
+					throw new IllegalArgumentException("Unknown attribute: " +
+													   sAttr);
+				}
+
+				aSortKey.put(rAttr, rAttrSort.getValue());
+			}
 		}
-		else
+		else if (pDefaultSortCriteria instanceof SortPredicate)
 		{
-			pFirst = Predicates.and(pFirst, pSecond);
+			SortPredicate<?> pSort = (SortPredicate<?>) pDefaultSortCriteria;
+			Object			 rAttr = pSort.getElementDescriptor();
+
+			if (!(rAttr instanceof RelationType))
+			{
+				return null;
+			}
+
+			SortDirection eDirection = pSort.get(MetaTypes.SORT_DIRECTION);
+
+			aSortKey.put((RelationType<?>) rAttr,
+						 eDirection != null ? eDirection
+											: SortDirection.ASCENDING);
+		}
+		else if (pDefaultSortCriteria != null)
+		{
+			return null;
 		}
 
-		return pFirst;
+		RelationType<?> rIdAttr = rDef.getIdAttribute();
+
+		if (!aSortKey.containsKey(rIdAttr))
+		{
+			aSortKey.put(rIdAttr, SortDirection.ASCENDING);
+		}
+
+		return aSortKey;
 	}
 
 	/***************************************
-	 * Creates a constraint predicate for a certain attributes.
+	 * Invalidates the query results that have been cached for a query
+	 * parameters snapshot.
 	 *
-	 * @param  rAttr       The attribute to create the constraint for
-	 * @param  sConstraint The constraint string
+	 * @param rParams The query parameters snapshot
+	 */
+	private void invalidateCache(QueryParameters rParams)
+	{
+		cancelPrefetches(null);
+		rParams.aResultCache.clear();
+		rParams.aPositionIndex = null;
+		removeCursor();
+	}
+
+	/***************************************
+	 * Checks whether the query type of a query parameters snapshot has been
+	 * modified since the last check. The cached results of the snapshot
+	 * must then be invalidated.
 	 *
-	 * @return The predicate containing the attribute constraint or NULL if the
-	 *         constraint is not valid
+	 * @param  rParams The query parameters snapshot
+	 *
+	 * @return TRUE if the query type has been modified
 	 */
-	@SuppressWarnings({ "unchecked" })
-	private Predicate<Entity> createAttributeConstraint(
-		RelationType<?> rAttr,
-		String			sConstraint)
+	private boolean isModified(QueryParameters rParams)
 	{
-		Class<?>     rDatatype   = rAttr.getTargetType();
-		Predicate<?> pAttribute  = null;
-		char		 cComparison = sConstraint.charAt(0);
+		long nCount =
+			getModificationCount(rParams.qBaseQuery != null
+								 ? rParams.qBaseQuery.getQueryType() : null);
 
-		if (CONSTRAINT_COMPARISON_CHARS.indexOf(sConstraint.charAt(0)) >= 0)
+		boolean bModified = nCount != rParams.nModificationCount;
+
+		rParams.nModificationCount = nCount;
+
+		return bModified;
+	}
+
+	/***************************************
+	 * Checks whether a sort key can be used for keyset pagination. This is
+	 * only the case if none of the sort attributes can contain NULL values
+	 * because NULL values don't match the comparisons of the keyset criteria
+	 * and their position in the sort order depends on the database. Besides
+	 * the entity ID only attributes that are flagged as {@link
+	 * MetaTypes#MANDATORY} are considered to be free of NULL values. Queries
+	 * that are sorted by other attributes will always use offset paging.
+	 *
+	 * @param  rParams  The query parameters snapshot
+	 * @param  rSortKey The sort key
+	 *
+	 * @return TRUE if keyset pagination is possible for the sort key
+	 */
+	private boolean isKeysetCapable(
+		QueryParameters						rParams,
+		Map<RelationType<?>, SortDirection> rSortKey)
+	{
+		RelationType<?> rIdAttr =
+			EntityManager.getEntityDefinition(rParams.qBaseQuery
+											  .getQueryType())
+						 .getIdAttribute();
+
+		for (RelationType<?> rAttr : rSortKey.keySet())
 		{
-			sConstraint = sConstraint.substring(1);
+			if (rAttr != rIdAttr && !rAttr.hasFlag(MetaTypes.MANDATORY))
+			{
+				return false;
+			}
 		}
 
-		sConstraint =
-			sConstraint.replaceAll(CONSTRAINT_SEPARATOR_ESCAPE,
-								   CONSTRAINT_SEPARATOR);
+		return true;
+	}
 
-		if (sConstraint.length() > 0)
+	/***************************************
+	 * Parses the search constraints of a query into a predicate.
+	 *
+	 * @param  rQueryType   The entity type of the query
+	 * @param  rConstraints The search constraints map
+	 * @param  rTextIndex   The text index of the query type or NULL for none
+	 *
+	 * @return The constraints predicate or NULL if the map contains no valid
+	 *         constraints
+	 */
+	private Predicate<? super Entity> parseQueryConstraints(
+		Class<Entity>		rQueryType,
+		Map<String, String> rConstraints,
+		EntityTextIndex		rTextIndex)
+	{
+		Predicate<? super Entity> pConstraints = null;
+
+		EntityDefinition<Entity> rDef =
+			EntityManager.getEntityDefinition(rQueryType);
+
+		for (Entry<String, String> rConstraint : rConstraints.entrySet())
 		{
-			if (cComparison == '#')
+			String sAttr		   = rConstraint.getKey();
+			String sAttrConstraint = rConstraint.getValue().trim();
+
+			RelationType<?> rAttr = rDef.getAttribute(sAttr);
+
+			if (rAttr == null)
 			{
-				String[] aRawValues = sConstraint.split(",");
+				throw new IllegalArgumentException("Unknown search attribute: " +
+												   sAttr);
+			}
 
-				List<Object> aValues = new ArrayList<Object>(aRawValues.length);
+			if (sAttrConstraint != null && sAttrConstraint.length() > 1)
+			{
+				boolean bAttrOr =
+					sAttrConstraint.charAt(0) == CONSTRAINT_OR_PREFIX;
 
-				for (String sValue : aRawValues)
+				Predicate<? super Entity> pAttrConstraints = null;
+
+				for (String sConstraint :
+					 sAttrConstraint.split(CONSTRAINT_SEPARATOR))
 				{
-					aValues.add(parseConstraintValue(sValue.trim(), rDatatype));
+					boolean bOr =
+						sConstraint.charAt(0) == CONSTRAINT_OR_PREFIX;
+
+					sConstraint = sConstraint.substring(1);
+
+					Predicate<? super Entity> pAttrConstraint =
+						createAttributeConstraint(rAttr, sConstraint);
+
+					if (rTextIndex != null &&
+						pAttrConstraint != null &&
+						rTextIndex.isIndexed(rAttr))
+					{
+						pAttrConstraint =
+							applyTextIndex(rDef,
+										   rTextIndex,
+										   rAttr,
+										   sConstraint,
+										   pAttrConstraint);
+					}
+
+					pAttrConstraints =
+						combinePredicates(pAttrConstraints,
+										  pAttrConstraint,
+										  bOr);
 				}
 
-				pAttribute = rAttr.is(elementOf(aValues));
+				pConstraints =
+					combinePredicates(pConstraints,
+									  pAttrConstraints,
+									  bAttrOr);
 			}
-			else
+		}
+
+		return pConstraints;
+	}
+
+	/***************************************
+	 * Queries a window from the cursor of this adapter. If no cursor exists
+	 * for the current query it will be created. The entities of the window
+	 * will be read by their IDs and returned in the order of the cursor.
+	 * The IDs of entities that have been deleted since the creation of the
+	 * cursor will be removed from it and the window will be read again so
+	 * that it is filled with the following rows and the indices of later
+	 * windows stay consistent with the query size.
+	 *
+	 * @param  rParams       The query parameters snapshot
+	 * @param  rConstraints  The query constraints (NULL for none)
+	 * @param  rSortFields   The sort fields (NULL for none)
+	 * @param  sCacheKey     The cache key of the query
+	 * @param  nStart        The index of the first row in the window
+	 * @param  nLimit        The maximum number of rows in the window
+	 * @param  bWithChildren TRUE to include the children of hierarchical
+	 *                       entities in the result rows
+	 *
+	 * @return The query window or NULL if no cursor is available for the
+	 *         query
+	 *
+	 * @throws StorageException If accessing the storage fails
+	 */
+	private QueryWindow queryCursorWindow(
+		QueryParameters			   rParams,
+		Map<String, String>		   rConstraints,
+		Map<String, SortDirection> rSortFields,
+		String					   sCacheKey,
+		int						   nStart,
+		int						   nLimit,
+		boolean					   bWithChildren) throws StorageException
+	{
+		QueryCursorRegistry rRegistry = rCursorRegistry;
+		String			    sId		  = sAdapterId;
+
+		if (rRegistry == null || sId == null)
+		{
+			return null;
+		}
+
+		Class<Entity> rQueryType = rParams.qBaseQuery.getQueryType();
+		Storage		  rStorage   = StorageManager.getStorage(rQueryType);
+		QueryWindow   aWindow    = null;
+
+		try
+		{
+			long	    nPhaseStart = System.nanoTime();
+			QueryCursor rCursor     =
+				rRegistry.getCursor(sId, rParams, sCacheKey);
+
+			if (rCursor == null)
 			{
-				Object rValue = parseConstraintValue(sConstraint, rDatatype);
+				rCursor =
+					createCursor(rStorage,
+								 rParams,
+								 rConstraints,
+								 rSortFields,
+								 sCacheKey);
+
+				if (rCursor != null && !rRegistry.putCursor(sId, rCursor))
+				{
+					rCursor = null;
+				}
+			}
 
-				if (rValue instanceof Comparable)
+			if (rCursor != null)
+			{
+				List<Entity> aRows		 = new ArrayList<>();
+				List<Long>   aDeletedIds = new ArrayList<>();
+				long[]		 rIds;
+
+				do
 				{
-					pAttribute =
-						createComparableConstraint(rAttr,
-												   cComparison,
-												   rValue,
-												   sConstraint);
+					aRows.clear();
+					aDeletedIds.clear();
+
+					rIds = rCursor.aIds;
+
+					int		   nEnd		  =
+						Math.min(nStart + nLimit, rIds.length);
+					List<Long> aWindowIds = new ArrayList<>();
+
+					for (int i = nStart; i < nEnd; i++)
+					{
+						aWindowIds.add(rIds[i]);
+					}
+
+					Map<Long, Entity> aEntities = new HashMap<>();
+
+					if (!aWindowIds.isEmpty())
+					{
+						Predicate<? super Entity> pIds =
+							EntityManager.getEntityDefinition(rQueryType)
+										 .getIdAttribute()
+										 .is(elementOf(aWindowIds));
+
+						try (Query<Entity> aQuery =
+							 rStorage.query(new QueryPredicate<>(rQueryType,
+																 pIds)))
+						{
+							QueryResult<Entity> aResult = aQuery.execute();
+
+							while (aResult.hasNext())
+							{
+								Entity rEntity = aResult.next();
+
+								aEntities.put(rEntity.getId(), rEntity);
+							}
+						}
+					}
+
+					for (Long rId : aWindowIds)
+					{
+						Entity rEntity = aEntities.get(rId);
+
+						if (rEntity != null)
+						{
+							aRows.add(rEntity);
+						}
+						else
+						{
+							aDeletedIds.add(rId);
+						}
+					}
+
+					if (!aDeletedIds.isEmpty())
+					{
+						rRegistry.removeIds(sId, rCursor, aDeletedIds);
+					}
 				}
+				while (!aDeletedIds.isEmpty());
+
+				aWindow			   = new QueryWindow();
+				aWindow.qQuery     = rCursor.qQuery;
+				aWindow.nQuerySize = rIds.length;
+
+				nPhaseStart = aWindow.addPhaseTime(Phase.QUERY, nPhaseStart);
+
+				convertEntities(rParams,
+								rCursor.qQuery,
+								nStart,
+								aWindow,
+								aRows,
+								bWithChildren);
+
+				aWindow.addPhaseTime(Phase.CONVERSION, nPhaseStart);
 			}
 		}
+		finally
+		{
+			rStorage.release();
+		}
 
-		return (Predicate<Entity>) pAttribute;
+		return aWindow;
 	}
 
 	/***************************************
-	 * Creates a query constraint predicate for a comparable value.
+	 * Reads the IDs of the entities of a query in the query order. The query
+	 * is limited to one row more than the maximum so that too large queries
+	 * are detected without counting them first. The storage API always reads
+	 * complete entities, therefore only the IDs are retained while the
+	 * entities are discarded immediately.
 	 *
-	 * @param  rAttr       The attribute to create the predicate for
-	 * @param  cComparison The comparison to perform
-	 * @param  rValue      The comparable value
-	 * @param  sConstraint The constraint string
+	 * @param  rStorage The storage to perform the query on
+	 * @param  qQuery   The query predicate
+	 * @param  nMaxIds  The maximum number of IDs to read
 	 *
-	 * @return A predicate containing the query constraint
+	 * @return The entity IDs or NULL if the query contains more than the
+	 *         maximum number of entities
+	 *
+	 * @throws StorageException If the query fails
 	 */
-	@SuppressWarnings({ "unchecked" })
-	private <C extends Comparable<C>> Predicate<?> createComparableConstraint(
-		RelationType<?> rAttr,
-		char			cComparison,
-		Object			rValue,
-		String			sConstraint)
+	private long[] queryIds(Storage				   rStorage,
+							QueryPredicate<Entity> qQuery,
+							int					   nMaxIds)
+		throws StorageException
 	{
-		Predicate<?> pAttribute;
+		long[] aIds  = new long[256];
+		int    nRows = 0;
 
-		RelationType<C> rComparableAttr = (RelationType<C>) rAttr;
-		C			    rCompareValue   = (C) rValue;
+		try (Query<Entity> aQuery = rStorage.query(qQuery))
+		{
+			aQuery.set(StorageRelationTypes.QUERY_LIMIT, nMaxIds + 1);
 
-		switch (cComparison)
+			QueryResult<Entity> aEntities = aQuery.execute();
+
+			while (aEntities.hasNext())
+			{
+				if (nRows == nMaxIds)
+				{
+					return null;
+				}
+
+				if (nRows == aIds.length)
+				{
+					aIds = Arrays.copyOf(aIds, nRows * 2);
+				}
+
+				aIds[nRows++] = aEntities.next().getId();
+			}
+		}
+
+		return Arrays.copyOf(aIds, nRows);
+	}
+
+	/***************************************
+	 * Allows to query the position of an entity with a certain ID in the query
+	 * result of this adapter.
+	 *
+	 * @param  rId The ID of the entity to query the position or NULL for the
+	 *             query size
+	 *
+	 * @return The entity position or -1 if undefined
+	 *
+	 * @throws StorageException If the database query fails
+	 */
+	private int queryPositionOrSize(Object rId) throws StorageException
+	{
+		QueryParameters rParams = aParams;
+
+		int nResult = rId == null ? rParams.aResultCache.getCount("") : -1;
+
+		if (nResult < 0)
 		{
-			case '<':
-				pAttribute = rComparableAttr.is(lessThan(rCompareValue));
-				break;
+			QueryPredicate<Entity> qDefaultQuery = getDefaultQuery(rParams);
 
-			case '>':
-				pAttribute = rComparableAttr.is(greaterThan(rCompareValue));
-				break;
+			Storage rStorage =
+				StorageManager.getStorage(rParams.qBaseQuery.getQueryType());
 
-			case '\u2264': // <=
-				pAttribute = rComparableAttr.is(lessOrEqual(rCompareValue));
-				break;
+			try (Query<Entity> rQuery = rStorage.query(qDefaultQuery))
+			{
+				if (rId != null)
+				{
+					nResult = rQuery.positionOf(rId);
+				}
+				else
+				{
+					nResult = rQuery.size();
+					rParams.aResultCache.putCount("", nResult);
+				}
+			}
+			finally
+			{
+				rStorage.release();
+			}
+		}
 
-			case '\u2265': // >=
-				pAttribute = rComparableAttr.is(greaterOrEqual(rCompareValue));
-				break;
+		return nResult;
+	}
 
-			case '~':
-				pAttribute = rComparableAttr.is(similarTo(sConstraint));
-				break;
+	/***************************************
+	 * Queries a window of a query and stores the result in the cache of the
+	 * query parameters snapshot.
+	 *
+	 * @param  rParams        The query parameters snapshot
+	 * @param  rConstraints   The query constraints (NULL for none)
+	 * @param  rSortFields    The sort fields (NULL for none)
+	 * @param  sConstraintKey The key of the query constraints
+	 * @param  sCacheKey      The cache key of the query
+	 * @param  nStart         The index of the first row in the window
+	 * @param  nLimit         The maximum number of rows in the window
+	 * @param  bKeysetPaging  TRUE to continue from a stored keyset position
+	 *                        if possible
+	 * @param  bWithChildren  TRUE to include the children of hierarchical
+	 *                        entities in the result rows
+	 *
+	 * @return The queried window
+	 *
+	 * @throws StorageException If accessing the storage fails
+	 */
+	private QueryWindow queryWindow(QueryParameters			   rParams,
+									Map<String, String>		   rConstraints,
+									Map<String, SortDirection> rSortFields,
+									String					   sConstraintKey,
+									String					   sCacheKey,
+									int						   nStart,
+									int						   nLimit,
+									boolean					   bKeysetPaging,
+									boolean					   bWithChildren)
+		throws StorageException
+	{
+		QueryWindow aWindow = new QueryWindow();
+
+		Storage rStorage =
+			StorageManager.getStorage(rParams.qBaseQuery.getQueryType());
+
+		try
+		{
+			long nPhaseStart = System.nanoTime();
+
+			Map<RelationType<?>, SortDirection> aSortKey =
+				getSortKey(rParams, rSortFields);
+
+			List<Entity> aEntities	   = new ArrayList<>();
+			List<Object> rKeysetValues = null;
+			boolean		 bMoreRows;
+			boolean		 bKeyset	   =
+				aSortKey != null && isKeysetCapable(rParams, aSortKey);
+
+			aWindow.qQuery =
+				createFullQuery(rParams, rConstraints, rSortFields, aSortKey);
+
+			QueryPredicate<Entity> qQuery = aWindow.qQuery;
+
+			if (bKeyset && bKeysetPaging)
+			{
+				rKeysetValues =
+					rParams.aKeysetPositions.get(sCacheKey + '@' + nStart);
+			}
+
+			if (rKeysetValues != null)
+			{
+				qQuery =
+					checkNewQuery(qQuery,
+								  createKeysetCriteria(aSortKey,
+													   rKeysetValues));
+			}
+
+			aWindow.addPhaseTime(Phase.CONSTRAINTS, nPhaseStart);
+
+			bMoreRows =
+				executeQuery(rStorage,
+							 rParams,
+							 qQuery,
+							 nStart,
+							 nLimit,
+							 rKeysetValues != null,
+							 aWindow,
+							 aEntities,
+							 bWithChildren);
+
+			nPhaseStart = System.nanoTime();
+
+			aWindow.nQuerySize =
+				getQuerySize(rStorage,
+							 rParams,
+							 aWindow.qQuery,
+							 sConstraintKey,
+							 nStart,
+							 nLimit,
+							 aWindow.aRows.size(),
+							 bMoreRows);
+
+			aWindow.addPhaseTime(Phase.COUNT, nPhaseStart);
+
+			if (bKeyset && !aEntities.isEmpty())
+			{
+				storeKeysetPosition(rParams,
+									sCacheKey,
+									nStart + aWindow.aRows.size(),
+									aSortKey,
+									aEntities.get(aEntities.size() - 1));
+			}
 
-			default:
-				pAttribute =
-					createValueConstraint(rComparableAttr,
-										  cComparison,
-										  rCompareValue,
-										  sConstraint);
+			rParams.aResultCache.putWindow(sCacheKey,
+										   aWindow.qQuery,
+										   nStart,
+										   aWindow.aRows,
+										   aWindow.nQuerySize);
+		}
+		finally
+		{
+			rStorage.release();
 		}
 
-		return pAttribute;
+		return aWindow;
 	}
 
 	/***************************************
-	 * Creates the final query predicate for this instance by applying
-	 * constraints and sort fields (if available) to the base query predicate.
-	 *
-	 * @param  qBaseQuery   The base query predicate
-	 * @param  rConstraints The additional query constraints (NULL for none)
-	 * @param  rSortFields  The optional sort fields (NULL for none)
-	 *
-	 * @return The total size of the query
+	 * Records the phase durations of a query in the query metrics registry
+	 * and logs the query if it exceeded the slow query threshold.
 	 *
-	 * @throws StorageException If accessing the storage fails
-	 * @throws ServiceException If creating a result data object fails
+	 * @param rParams    The query parameters snapshot
+	 * @param rWindow    The window that has been queried from the storage or
+	 *                   NULL if the rows have been taken from the cache
+	 * @param nStartTime The start time of the query in nanoseconds
+	 * @param nRows      The number of result rows
 	 */
-	private QueryPredicate<Entity> createFullQuery(
-		QueryPredicate<Entity>	   qBaseQuery,
-		Map<String, String>		   rConstraints,
-		Map<String, SortDirection> rSortFields)
+	private void recordMetrics(QueryParameters rParams,
+							   QueryWindow	   rWindow,
+							   long			   nStartTime,
+							   int			   nRows)
 	{
-		Class<Entity>			  rQueryType = qBaseQuery.getQueryType();
-		Predicate<? super Entity> pCriteria  = qBaseQuery.getCriteria();
+		long		 nDuration = System.nanoTime() - nStartTime;
+		long		 nMillis   = nDuration / 1_000_000;
+		QueryMetrics rMetrics  = rQueryMetrics;
+		String		 sType     =
+			rParams.qBaseQuery.getQueryType().getSimpleName();
 
-		HierarchicalQueryMode eHierarchyMode =
-			qBaseQuery.get(HIERARCHICAL_QUERY_MODE);
+		if (rMetrics != null)
+		{
+			if (rWindow != null)
+			{
+				for (Phase ePhase : Phase.values())
+				{
+					long nPhaseNanos = rWindow.aPhaseNanos[ePhase.ordinal()];
 
-		boolean bNoConstraints =
-			rConstraints == null || rConstraints.size() == 0;
-		boolean bHierarchical  =
-			eHierarchyMode == HierarchicalQueryMode.ALWAYS ||
-			eHierarchyMode == HierarchicalQueryMode.UNCONSTRAINED &&
-			bNoConstraints;
+					if (nPhaseNanos > 0)
+					{
+						rMetrics.record(ePhase,
+										sType,
+										sAdapterId,
+										nPhaseNanos,
+										nRows);
+					}
+				}
+			}
 
-		if (bHierarchical)
+			rMetrics.record(Phase.TOTAL, sType, sAdapterId, nDuration, nRows);
+		}
+
+		if (nSlowQueryThreshold > 0 && nMillis >= nSlowQueryThreshold)
 		{
-			Predicate<? super Entity> pIsHierarchyRoot =
-				qBaseQuery.get(HIERARCHY_ROOT_PREDICATE);
+			StringBuilder aPhases = new StringBuilder();
 
-			if (pIsHierarchyRoot == null)
+			if (rWindow != null)
 			{
-				RelationType<? extends Entity> rParentAttribute =
-					EntityManager.getEntityDefinition(rQueryType)
-								 .getParentAttribute();
-
-				if (rParentAttribute != null)
+				for (Phase ePhase : Phase.values())
 				{
-					pIsHierarchyRoot = rParentAttribute.is(isNull());
+					long nPhaseNanos = rWindow.aPhaseNanos[ePhase.ordinal()];
+
+					if (nPhaseNanos > 0)
+					{
+						aPhases.append(' ').append(ePhase).append('=');
+						aPhases.append(nPhaseNanos / 1_000_000).append("ms");
+					}
 				}
 			}
-
-			if (pIsHierarchyRoot != null)
+			else
 			{
-				pCriteria = Predicates.and(pCriteria, pIsHierarchyRoot);
+				aPhases.append(" cached");
 			}
-		}
 
-		if (bNoConstraints && pDefaultConstraints != null)
-		{
-			pCriteria = Predicates.and(pCriteria, pDefaultConstraints);
+			Log.warnf("Slow query on %s (adapter %s, %d rows, %d ms):%s\n%s",
+					  sType,
+					  sAdapterId,
+					  nRows,
+					  nMillis,
+					  aPhases,
+					  rWindow != null ? rWindow.qQuery : qCurrentQuery);
 		}
+	}
 
-		QueryPredicate<Entity> qFullQuery = qBaseQuery;
+	/***************************************
+	 * Removes the query cursor of this adapter from the cursor registry.
+	 */
+	private void removeCursor()
+	{
+		QueryCursorRegistry rRegistry = rCursorRegistry;
 
-		if (pCriteria != qBaseQuery.getCriteria())
+		if (rRegistry != null && sAdapterId != null)
 		{
-			qFullQuery = new QueryPredicate<Entity>(rQueryType, pCriteria);
-
-			ObjectRelations.copyRelations(qBaseQuery, qFullQuery, false);
+			rRegistry.removeCursor(sAdapterId);
 		}
-
-		qFullQuery = applyQueryConstraints(qFullQuery, rConstraints);
-		qFullQuery = applySortFields(qFullQuery, rSortFields);
-
-		return qFullQuery;
 	}
 
 	/***************************************
-	 * Creates a comparison predicate for a single-day constraint.
-	 *
-	 * @param  rAttribute    The attribute to create the comparison for
-	 * @param  rCompareValue The compare value
-	 * @param  bNegate       TRUE to negate the comparison
+	 * Starts the background prefetching of the query windows following a
+	 * queried window. Nothing will be done if the entity type of the query
+	 * has hierarchical children or if a prefetch for the same query is still
+	 * pending.
 	 *
-	 * @return The comparison predicate
+	 * @param rParams        The query parameters snapshot
+	 * @param rConstraints   The query constraints (NULL for none)
+	 * @param rSortFields    The sort fields (NULL for none)
+	 * @param sConstraintKey The key of the query constraints
+	 * @param sCacheKey      The cache key of the query
+	 * @param nStart         The index of the first row to prefetch
+	 * @param nLimit         The size of the windows to prefetch
+	 * @param nQuerySize     The current query size
 	 */
-	private Predicate<Entity> createSingleDayComparison(
-		RelationType<Date> rAttribute,
-		Date			   rCompareValue,
-		boolean			   bNegate)
+	private void startPrefetch(QueryParameters			  rParams,
+							   Map<String, String>		  rConstraints,
+							   Map<String, SortDirection> rSortFields,
+							   String					  sConstraintKey,
+							   String					  sCacheKey,
+							   int						  nStart,
+							   int						  nLimit,
+							   int						  nQuerySize)
 	{
-		Calendar		  rCalendar		 = Calendar.getInstance();
-		Predicate<Entity> pDayComparison;
-		Predicate<Entity> pLastDate;
-
-		rCalendar.setTime(rCompareValue);
-		CalendarFunctions.clearTime(rCalendar);
-		rCompareValue = rCalendar.getTime();
+		EntityDefinition<Entity> rDef =
+			EntityManager.getEntityDefinition(rParams.qBaseQuery
+											  .getQueryType());
 
-		if (bNegate)
-		{
-			pDayComparison = rAttribute.is(lessThan(rCompareValue));
-		}
-		else
+		if (rDef.getHierarchyChildAttribute() == null)
 		{
-			pDayComparison = rAttribute.is(greaterOrEqual(rCompareValue));
+			Prefetch aPrefetch =
+				new Prefetch(rParams,
+							 rConstraints,
+							 rSortFields,
+							 sConstraintKey,
+							 sCacheKey,
+							 nStart,
+							 nLimit,
+							 nQuerySize);
+
+			if (aPendingPrefetches.putIfAbsent(sCacheKey, aPrefetch) == null)
+			{
+				try
+				{
+					aPrefetchExecutor.execute(aPrefetch);
+				}
+				catch (RejectedExecutionException e)
+				{
+					aPendingPrefetches.remove(sCacheKey, aPrefetch);
+				}
+			}
 		}
+	}
 
-		rCalendar.add(Calendar.DAY_OF_MONTH, 1);
-		rCompareValue = rCalendar.getTime();
+	/***************************************
+	 * Stores the sort key values of the last row of a query window so that a
+	 * subsequent query for the following window can continue from there with
+	 * keyset pagination. Nothing will be stored if one of the values is NULL
+	 * or not comparable. This method must only be invoked for sort keys that
+	 * are accepted by {@link #isKeysetCapable(QueryParameters, Map)}.
+	 *
+	 * @param rParams     The query parameters snapshot
+	 * @param sQueryKey   The query cache key
+	 * @param nNextIndex  The index of the row following the window
+	 * @param rSortKey    The sort key of the query
+	 * @param rLastEntity The entity of the last row in the window
+	 */
+	private void storeKeysetPosition(
+		QueryParameters						rParams,
+		String								sQueryKey,
+		int									nNextIndex,
+		Map<RelationType<?>, SortDirection> rSortKey,
+		Entity								rLastEntity)
+	{
+		List<Object> aValues = new ArrayList<>(rSortKey.size());
 
-		if (bNegate)
-		{
-			pLastDate = rAttribute.is(greaterOrEqual(rCompareValue));
-		}
-		else
+		for (RelationType<?> rAttr : rSortKey.keySet())
 		{
-			pLastDate = rAttribute.is(lessThan(rCompareValue));
-		}
+			Object rValue = rLastEntity.get(rAttr);
 
-		pDayComparison = pDayComparison.and(pLastDate);
+			if (rValue == null ||
+				rValue instanceof Entity ||
+				!(rValue instanceof Comparable))
+			{
+				return;
+			}
 
-		return pDayComparison;
+			aValues.add(rValue);
+		}
+
+		rParams.aKeysetPositions.put(sQueryKey + '@' + nNextIndex, aValues);
 	}
 
 	/***************************************
-	 * Creates a single value comparison query constraint predicate.
+	 * Records the hashes of the rows of a query window that is returned to
+	 * the client and determines which of the rows differ from the rows that
+	 * have been sent before at the same positions. The hashes are only kept
+	 * for the most recent query key because a client model only holds the
+	 * rows of a single query. Each update creates a new version of the sent
+	 * rows that the client must send with it's next query. If the client
+	 * sends another version or the query key changes the recorded hashes
+	 * will be discarded because the client may not have the rows they refer
+	 * to. Recorded hashes for positions in the window that are no longer
+	 * occupied will be removed so that rows which re-appear there will be
+	 * detected as changed.
 	 *
-	 * @param  rAttr       The attribute to create the predicate for
-	 * @param  cComparison The comparison to perform
-	 * @param  rValue      The comparable value
-	 * @param  sConstraint The constraint string
+	 * @param  rParams      The query parameters snapshot
+	 * @param  sCacheKey    The cache key of the query
+	 * @param  nStart       The index of the first row in the window
+	 * @param  nLimit       The requested size of the window
+	 * @param  rRows        The rows of the window
+	 * @param  nBaseVersion The version of the sent rows that the client has
+	 *                      received last or -1 for none
+	 * @param  rChangedRows A list to add the rows to that have been updated
+	 *                      or inserted since they have last been sent
 	 *
-	 * @return A predicate containing the query constraint
+	 * @return The new version of the sent rows
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private Predicate<?> createValueConstraint(RelationType<?> rAttr,
-											   char			   cComparison,
-											   Comparable	   rValue,
-											   String		   sConstraint)
+	private int updateSentRows(QueryParameters			rParams,
+							   String					sCacheKey,
+							   int						nStart,
+							   int						nLimit,
+							   List<DataModel<String>>	rRows,
+							   int						nBaseVersion,
+							   List<DataModel<String>>	rChangedRows)
 	{
-		Predicate<?> pAttribute;
-		boolean		 bNegate = (cComparison == '\u2260'); // !=
-
-		sConstraint = StorageManager.convertToSqlConstraint(sConstraint);
-
-		if (NULL_CONSTRAINT_VALUE.equals(rValue))
-		{
-			rValue = null;
-		}
+		SentRows rSentRows = rParams.aSentRows;
 
-		if (rValue instanceof Date)
-		{
-			pAttribute =
-				createSingleDayComparison((RelationType<Date>) rAttr,
-										  (Date) rValue,
-										  bNegate);
-		}
-		else
+		synchronized (rSentRows)
 		{
-			Class<?>		  rDatatype   = rAttr.getTargetType();
-			Predicate<Object> pComparison;
+			Map<Integer, Integer> rHashes = rSentRows.aHashes;
 
-			if (sConstraint.indexOf('%') >= 0 || sConstraint.indexOf('_') >= 0)
-			{
-				pComparison = like(sConstraint);
-			}
-			else
+			// forgetting hashes only causes the next delta refresh to send
+			// the affected rows again
+			if (nBaseVersion != rSentRows.nVersion ||
+				!sCacheKey.equals(rSentRows.sCacheKey) ||
+				rHashes.size() + rRows.size() > DEFAULT_MAX_CACHE_ROWS)
 			{
-				pComparison = equalTo(rValue);
+				rHashes.clear();
+				rSentRows.sCacheKey = sCacheKey;
 			}
 
-			if (bNegate)
-			{
-				pComparison = Predicates.not(pComparison);
-			}
+			int nIndex = nStart;
 
-			if ((rDatatype == String.class || rDatatype.isEnum()) &&
-				!TextUtil.containsUpperCase(sConstraint))
+			for (DataModel<String> rRow : rRows)
 			{
-				Function<Relatable, String> fAttr =
-					StringFunctions.toLowerCase()
-								   .from((Function<Relatable, String>) rAttr);
+				Integer rHash = Integer.valueOf(getRowHash(rRow));
 
-				pAttribute =
-					new FunctionPredicate<Entity, String>(fAttr, pComparison);
+				if (!rHash.equals(rHashes.put(nIndex++, rHash)))
+				{
+					rChangedRows.add(rRow);
+				}
 			}
-			else
+
+			while (nIndex < nStart + nLimit)
 			{
-				pAttribute = rAttr.is(pComparison);
+				rHashes.remove(nIndex++);
 			}
-		}
 
-		return pAttribute;
+			rSentRows.nVersion = aNextQueryId.getAndIncrement();
+
+			return rSentRows.nVersion;
+		}
 	}
 
-	/***************************************
-	 * Executes a storage query with certain parameters. The query object will
-	 * be closed after successful execution.
-	 *
-	 * @param  rStorage
-	 * @param  qEntities      The predicate of the query to execute
-	 * @param  nStart         The starting index of the entities to query
-	 * @param  nLimit         The maximum number of entities to retrieve
-	 * @param  aResultRows    The list to store the queried data objects in
-	 * @param  rFlagAttribute The attribute that should be set as the data
-	 *                        objects flag
-	 *
-	 * @return The total size of the query
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * A snapshot of the query parameters of an adapter. The parameters are
+	 * final, but a snapshot also contains the mutable data that has been
+	 * cached or recorded for queries with these parameters, like results,
+	 * keyset positions, and sent rows. This data is accessed concurrently
+	 * and must therefore be kept in thread-safe structures or volatile
+	 * fields. It is discarded together with the snapshot.
 	 *
-	 * @throws StorageException If accessing the storage fails
-	 * @throws ServiceException If creating a result data object fails
+	 * @author eso
 	 */
-	private int executeQuery(Storage				 rStorage,
-							 QueryPredicate<Entity>  qEntities,
-							 int					 nStart,
-							 int					 nLimit,
-							 List<DataModel<String>> aResultRows,
-							 RelationType<?>		 rFlagAttribute)
-		throws StorageException
+	private static class QueryParameters
 	{
-		Predicate<? super Entity> pChildCriteria =
-			qEntities.get(HIERARCHY_CHILD_PREDICATE);
-
-		int nQuerySize;
-
-		try (Query<Entity> aQuery = rStorage.query(qEntities))
+		//~ Instance fields ----------------------------------------------------
+
+		final QueryPredicate<Entity>		 qBaseQuery;
+		final Function<Entity, List<String>> fGetAttributes;
+		final Predicate<? super Entity>		 pDefaultConstraints;
+		final Predicate<? super Entity>		 pDefaultSortCriteria;
+		final List<ColumnDefinition>		 rColumns;
+
+		final QueryResultCache			aResultCache;
+		final Map<String, List<Object>> aKeysetPositions;
+		final Map<Long, Boolean>		aChildParentIds;
+
+		final SentRows aSentRows = new SentRows();
+
+		volatile QueryPredicate<Entity> qDefaultQuery;
+		volatile PositionIndex			aPositionIndex;
+		volatile long					nModificationCount;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param qBaseQuery           The base query predicate
+		 * @param fGetAttributes       The attribute value function
+		 * @param pDefaultConstraints  The default constraints or NULL
+		 * @param pDefaultSortCriteria The default sort criteria or NULL
+		 * @param rColumns             The query columns
+		 * @param nMaxCachedRows       The maximum number of cached rows per
+		 *                             query
+		 */
+		QueryParameters(QueryPredicate<Entity>		   qBaseQuery,
+						Function<Entity, List<String>> fGetAttributes,
+						Predicate<? super Entity>	   pDefaultConstraints,
+						Predicate<? super Entity>	   pDefaultSortCriteria,
+						List<ColumnDefinition>		   rColumns,
+						int							   nMaxCachedRows)
 		{
-			aQuery.set(StorageRelationTypes.QUERY_LIMIT, nLimit);
-			aQuery.set(StorageRelationTypes.QUERY_OFFSET, nStart);
+			this.qBaseQuery			  = qBaseQuery;
+			this.fGetAttributes		  = fGetAttributes;
+			this.pDefaultConstraints  = pDefaultConstraints;
+			this.pDefaultSortCriteria = pDefaultSortCriteria;
+			this.rColumns			  = rColumns;
 
-			QueryResult<Entity> aEntities = aQuery.execute();
+			aResultCache =
+				new QueryResultCache(MAX_CACHED_QUERIES,
+									 nMaxCachedRows,
+									 MAX_CACHE_AGE);
 
-			nQuerySize		 = aQuery.size();
-			aLastQueryResult = new ArrayList<Entity>(Math.min(nLimit, 1000));
+			aKeysetPositions = createLruMap(MAX_KEYSET_POSITIONS);
+			aChildParentIds  = createLruMap(MAX_CHILD_PARENTS);
 
-			while (nLimit-- > 0 && aEntities.hasNext())
-			{
-				Entity	    rEntity = aEntities.next();
-				Set<String> aFlags  = null;
+			nModificationCount =
+				getModificationCount(qBaseQuery != null
+									 ? qBaseQuery.getQueryType() : null);
+		}
+	}
 
-				if (rFlagAttribute != null)
-				{
-					Object rFlagValue = rEntity.get(rFlagAttribute);
+	/********************************************************************
+	 * The result of querying a single query window.
+	 *
+	 * @author eso
+	 */
+	private static class QueryWindow
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		QueryPredicate<Entity> qQuery;
+		int					   nQuerySize;
+
+		final List<DataModel<String>> aRows		  = new ArrayList<>();
+		final long[]				  aPhaseNanos =
+			new long[Phase.values().length];
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * Adds the time that has elapsed since a certain start time to the
+		 * duration of a query phase.
+		 *
+		 * @param  ePhase      The query phase
+		 * @param  nPhaseStart The start time of the phase in nanoseconds
+		 *
+		 * @return The current time in nanoseconds which can be used as the
+		 *         start time of the next phase
+		 */
+		long addPhaseTime(Phase ePhase, long nPhaseStart)
+		{
+			long nNow = System.nanoTime();
 
-					if (rFlagValue != null)
-					{
-						aFlags = Collections.singleton(rFlagValue.toString());
-					}
-				}
+			aPhaseNanos[ePhase.ordinal()] += nNow - nPhaseStart;
 
-				HierarchicalDataObject aDataObject =
-					rDataElementFactory.createEntityDataObject(rEntity,
-															   nStart++,
-															   pChildCriteria,
-															   pDefaultSortCriteria,
-															   fGetAttributes,
-															   aFlags,
-															   true);
+			return nNow;
+		}
+	}
 
-				aResultRows.add(aDataObject);
+	/********************************************************************
+	 * An index of the positions of the entities in the default query of an
+	 * adapter.
+	 *
+	 * @author eso
+	 */
+	private static class PositionIndex
+	{
+		//~ Instance fields ----------------------------------------------------
 
-				StorageAdapterId rChildAdapterId =
-					rEntity.get(CHILD_STORAGE_ADAPTER_ID);
+		final Map<Long, Integer> aPositions;
+		final long				 nTime = System.currentTimeMillis();
 
-				if (rChildAdapterId != null)
-				{
-					get(STORAGE_ADAPTER_IDS).add(rChildAdapterId);
-					rEntity.deleteRelation(CHILD_STORAGE_ADAPTER_ID);
-				}
+		//~ Constructors -------------------------------------------------------
 
-				// keep result entities to prevent garbage collection of child list
-				// storage adapters which are only stored in weak references
-				aLastQueryResult.add(rEntity);
-			}
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param bIndexed TRUE if the query could be indexed, FALSE if it is
+		 *                 too large
+		 */
+		PositionIndex(boolean bIndexed)
+		{
+			aPositions = bIndexed ? new HashMap<>() : null;
 		}
-
-		return nQuerySize;
 	}
 
-	/***************************************
-	 * Allows to query the position of an entity with a certain ID in the query
-	 * result of this adapter.
-	 *
-	 * @param  rId The ID of the entity to query the position or NULL for the
-	 *             query size
+	/********************************************************************
+	 * A background task that prefetches the query windows following a
+	 * certain window into the result cache.
 	 *
-	 * @return The entity position or -1 if undefined
-	 *
-	 * @throws StorageException If the database query fails
+	 * @author eso
 	 */
-	private int queryPositionOrSize(Object rId) throws StorageException
+	private class Prefetch implements Runnable
 	{
-		int nResult;
+		//~ Instance fields ----------------------------------------------------
+
+		private final QueryParameters			 rParams;
+		private final Map<String, String>		 rConstraints;
+		private final Map<String, SortDirection> rSortFields;
+		private final String					 sConstraintKey;
+		private final String					 sCacheKey;
+		private final int						 nStart;
+		private final int						 nLimit;
+		private final int						 nQuerySize;
+
+		private volatile boolean bCancelled = false;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param rParams        The query parameters snapshot
+		 * @param rConstraints   The query constraints (NULL for none)
+		 * @param rSortFields    The sort fields (NULL for none)
+		 * @param sConstraintKey The key of the query constraints
+		 * @param sCacheKey      The cache key of the query
+		 * @param nStart         The index of the first row to prefetch
+		 * @param nLimit         The size of the windows to prefetch
+		 * @param nQuerySize     The current query size
+		 */
+		Prefetch(QueryParameters			rParams,
+				 Map<String, String>		rConstraints,
+				 Map<String, SortDirection> rSortFields,
+				 String						sConstraintKey,
+				 String						sCacheKey,
+				 int						nStart,
+				 int						nLimit,
+				 int						nQuerySize)
+		{
+			this.rParams	    = rParams;
+			this.rConstraints   = rConstraints;
+			this.rSortFields    = rSortFields;
+			this.sConstraintKey = sConstraintKey;
+			this.sCacheKey	    = sCacheKey;
+			this.nStart		    = nStart;
+			this.nLimit		    = nLimit;
+			this.nQuerySize	    = nQuerySize;
+		}
 
-		aLock.lock();
+		//~ Methods ------------------------------------------------------------
 
-		try
+		/***************************************
+		 * Cancels this prefetch. A prefetch that is already running will stop
+		 * after the current window.
+		 */
+		public void cancel()
 		{
-			Storage rStorage =
-				StorageManager.getStorage(qBaseQuery.getQueryType());
+			bCancelled = true;
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run()
+		{
+			int nWindowStart = nStart;
+			int nSize		 = nQuerySize;
+
+			try
+			{
+				for (int i = 0;
+					 i < nPrefetchDepth && nWindowStart < nSize &&
+					 !bCancelled && rParams == aParams;
+					 i++)
+				{
+					if (rParams.aResultCache.getWindow(sCacheKey,
+													   nWindowStart,
+													   nLimit) == null)
+					{
+						QueryWindow aWindow =
+							queryWindow(rParams,
+										rConstraints,
+										rSortFields,
+										sConstraintKey,
+										sCacheKey,
+										nWindowStart,
+										nLimit,
+										true,
+										true);
+
+						rParams.aResultCache.markPrefetched(sCacheKey,
+															nWindowStart);
+						nSize = aWindow.nQuerySize;
+					}
 
-			try (Query<Entity> rQuery =
-				 rStorage.query(createFullQuery(qBaseQuery, null, null)))
+					nWindowStart += nLimit;
+				}
+			}
+			catch (Exception e)
 			{
-				nResult =
-					(rId != null ? rQuery.positionOf(rId) : rQuery.size());
+				Log.warnf(e, "Query prefetch failed: %s", sCacheKey);
 			}
 			finally
 			{
-				rStorage.release();
+				aPendingPrefetches.remove(sCacheKey, this);
 			}
 		}
-		finally
-		{
-			aLock.unlock();
-		}
+	}
 
-		return nResult;
+	/********************************************************************
+	 * Holds the hashes of the rows that have been sent to the client for the
+	 * most recent query key of an adapter. The fields must only be accessed
+	 * while synchronized on the instance.
+	 *
+	 * @author eso
+	 */
+	private static class SentRows
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		String sCacheKey;
+		int    nVersion = -1;
+
+		final Map<Integer, Integer> aHashes = new HashMap<>();
 	}
 }
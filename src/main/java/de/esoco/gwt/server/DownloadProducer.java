@@ -0,0 +1,47 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.data.DownloadData;
+
+import java.io.OutputStream;
+
+
+/********************************************************************
+ * An interface for download data that is produced on demand and written
+ * directly to the output stream of a download response instead of being
+ * created in advance. Instances can be set as the result of the data function
+ * of a {@link DownloadData} object. This allows to stream large downloads
+ * without keeping the complete data in the session until the download is
+ * requested.
+ *
+ * @author eso
+ */
+public interface DownloadProducer
+{
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Produces the download data and writes it to the given output stream.
+	 * The stream will be closed by the caller.
+	 *
+	 * @param  rOutput The output stream to write the data to
+	 *
+	 * @throws Exception If producing or writing the data fails
+	 */
+	public void writeTo(OutputStream rOutput) throws Exception;
+}
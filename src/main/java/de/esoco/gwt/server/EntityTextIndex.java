@@ -0,0 +1,585 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.entity.Entity;
+
+import de.esoco.lib.logging.Log;
+
+import de.esoco.storage.Query;
+import de.esoco.storage.QueryPredicate;
+import de.esoco.storage.QueryResult;
+import de.esoco.storage.Storage;
+import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.obrel.core.RelationType;
+
+
+/********************************************************************
+ * An in-memory index of the trigrams in the lower-case values of string
+ * attributes of a certain entity type. A {@link DatabaseStorageAdapter} uses
+ * such an index to resolve similarity ('~') constraints on indexed attributes
+ * to sets of entity IDs before the storage query is executed. This allows the
+ * database to select the rows by their primary key instead of scanning the
+ * complete table. All other constraints are always evaluated by the database
+ * so that their results don't depend on the state of the index.
+ *
+ * <p>An index is enabled for an entity type with {@link #enable(Class,
+ * RelationType...)} and is built on the first access by reading all entities
+ * of the type. It is therefore intended for master data tables that have a
+ * limited size but are frequently filtered by free text. The index is built
+ * without blocking other threads, which will perform their queries without
+ * the index until the build is finished. The application should keep the
+ * index up to date by invoking {@link #entityChanged(Entity)} and {@link
+ * #entityDeleted(Entity)} after an entity of an indexed type has been stored
+ * or deleted. Changes that are not reported will be picked up when the index
+ * is rebuilt after {@link #MAX_INDEX_AGE}.</p>
+ *
+ * <p>With an index a similarity constraint matches all values that share at
+ * least {@link #SIMILARITY_THRESHOLD} of their trigrams with the constraint
+ * value. If no similar values can be found or if they are too many the
+ * constraint will be executed by the database without the index.</p>
+ *
+ * @author eso
+ */
+public class EntityTextIndex
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/**
+	 * The minimum ratio of shared trigrams for values that match a similarity
+	 * constraint.
+	 */
+	public static final double SIMILARITY_THRESHOLD = 0.3;
+
+	/** The maximum age of an index in milliseconds before it is rebuilt. */
+	public static final long MAX_INDEX_AGE = 10 * 60 * 1000;
+
+	private static final int NGRAM_LENGTH    = 3;
+	private static final int MAX_ID_SET_SIZE = 500;
+
+	private static final Map<Class<?>, EntityTextIndex> aIndexes =
+		new ConcurrentHashMap<>();
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final Class<Entity>				 rEntityType;
+	private final List<RelationType<String>> rAttributes;
+
+	private final ReadWriteLock aLock	  = new ReentrantReadWriteLock();
+	private final AtomicLong    aVersion  = new AtomicLong();
+	private final AtomicBoolean aBuilding = new AtomicBoolean();
+
+	private Map<RelationType<?>, AttributeIndex> aAttributeIndexes =
+		new HashMap<>();
+	private Map<Long, Entity>					 aBuildChanges;
+
+	private volatile boolean bBuilt	    = false;
+	private volatile long    nBuildTime = 0;
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance.
+	 *
+	 * @param rEntityType The entity type
+	 * @param rAttributes The string attributes to index
+	 */
+	@SuppressWarnings("unchecked")
+	private EntityTextIndex(
+		Class<? extends Entity> rEntityType,
+		RelationType<String>[]  rAttributes)
+	{
+		this.rEntityType = (Class<Entity>) rEntityType;
+		this.rAttributes = Arrays.asList(rAttributes);
+	}
+
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Disables the index of a certain entity type.
+	 *
+	 * @param rEntityType The entity type
+	 */
+	public static void disable(Class<? extends Entity> rEntityType)
+	{
+		aIndexes.remove(rEntityType);
+	}
+
+	/***************************************
+	 * Enables the index of certain string attributes of an entity type. If an
+	 * index already exists for the type it will be replaced.
+	 *
+	 * @param  rEntityType The entity type
+	 * @param  rAttributes The string attributes to index
+	 *
+	 * @return The new index
+	 */
+	@SafeVarargs
+	public static EntityTextIndex enable(
+		Class<? extends Entity> rEntityType,
+		RelationType<String>... rAttributes)
+	{
+		EntityTextIndex aIndex = new EntityTextIndex(rEntityType, rAttributes);
+
+		aIndexes.put(rEntityType, aIndex);
+
+		return aIndex;
+	}
+
+	/***************************************
+	 * Updates the index of an entity's type after the entity has been stored.
+	 * Does nothing if no index has been enabled for the entity type.
+	 *
+	 * @param rEntity The changed entity
+	 */
+	public static void entityChanged(Entity rEntity)
+	{
+		EntityTextIndex rIndex = aIndexes.get(rEntity.getClass());
+
+		if (rIndex != null)
+		{
+			rIndex.update(rEntity);
+		}
+	}
+
+	/***************************************
+	 * Removes an entity from the index of it's type after the entity has been
+	 * deleted. Does nothing if no index has been enabled for the entity type.
+	 *
+	 * @param rEntity The deleted entity
+	 */
+	public static void entityDeleted(Entity rEntity)
+	{
+		EntityTextIndex rIndex = aIndexes.get(rEntity.getClass());
+
+		if (rIndex != null)
+		{
+			rIndex.remove(rEntity.getId());
+		}
+	}
+
+	/***************************************
+	 * Returns the index of a certain entity type.
+	 *
+	 * @param  rEntityType The entity type
+	 *
+	 * @return The index or NULL if no index has been enabled for the type
+	 */
+	public static EntityTextIndex get(Class<?> rEntityType)
+	{
+		return aIndexes.get(rEntityType);
+	}
+
+	/***************************************
+	 * Returns the distinct trigrams of a text.
+	 *
+	 * @param  sText   The text
+	 * @param  bPadded TRUE to pad the text with spaces so that the start and
+	 *                 end of the text are contained in separate trigrams
+	 *
+	 * @return The set of trigrams
+	 */
+	private static Set<String> getNgrams(String sText, boolean bPadded)
+	{
+		Set<String> aNgrams = new HashSet<>();
+
+		if (bPadded)
+		{
+			sText = ' ' + sText + ' ';
+		}
+
+		for (int i = 0; i + NGRAM_LENGTH <= sText.length(); i++)
+		{
+			aNgrams.add(sText.substring(i, i + NGRAM_LENGTH));
+		}
+
+		return aNgrams;
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Returns the IDs of the entities with values that are similar to a
+	 * certain text.
+	 *
+	 * @param  rAttr The attribute to search
+	 * @param  sText The text to search for
+	 *
+	 * @return The IDs of the similar entities or NULL if none could be found
+	 *         or if they are too many
+	 */
+	public Set<Long> findSimilar(RelationType<?> rAttr, String sText)
+	{
+		Set<Long> aIds = null;
+
+		if (isIndexed(rAttr) && checkBuilt())
+		{
+			Set<String>		   aTextNgrams =
+				getNgrams(sText.toLowerCase(Locale.ROOT), true);
+			Map<Long, Integer> aShared     = new HashMap<>();
+
+			aLock.readLock().lock();
+
+			try
+			{
+				AttributeIndex rIndex = aAttributeIndexes.get(rAttr);
+
+				for (String sNgram : aTextNgrams)
+				{
+					Set<Long> rNgramIds = rIndex.aNgrams.get(sNgram);
+
+					if (rNgramIds != null)
+					{
+						for (Long rId : rNgramIds)
+						{
+							aShared.merge(rId, 1, Integer::sum);
+						}
+					}
+				}
+
+				aIds = new HashSet<>();
+
+				for (Map.Entry<Long, Integer> rEntry : aShared.entrySet())
+				{
+					int nShared = rEntry.getValue().intValue();
+					int nValue  =
+						getNgrams(rIndex.aValues.get(rEntry.getKey()), true)
+						.size();
+
+					if (nShared >= SIMILARITY_THRESHOLD *
+						(aTextNgrams.size() + nValue - nShared))
+					{
+						aIds.add(rEntry.getKey());
+					}
+				}
+			}
+			finally
+			{
+				aLock.readLock().unlock();
+			}
+		}
+
+		return aIds != null && !aIds.isEmpty() &&
+			   aIds.size() <= MAX_ID_SET_SIZE ? aIds : null;
+	}
+
+	/***************************************
+	 * Returns the version of this index which changes on every modification.
+	 * This can be used to detect whether ID sets that have been determined
+	 * from the index are still valid.
+	 *
+	 * @return The index version
+	 */
+	public long getVersion()
+	{
+		return aVersion.get();
+	}
+
+	/***************************************
+	 * Checks whether a certain attribute is indexed.
+	 *
+	 * @param  rAttr The attribute
+	 *
+	 * @return TRUE if the attribute is indexed
+	 */
+	public boolean isIndexed(RelationType<?> rAttr)
+	{
+		return rAttributes.contains(rAttr);
+	}
+
+	/***************************************
+	 * Removes an entity from this index.
+	 *
+	 * @param nId The ID of the entity to remove
+	 */
+	public void remove(long nId)
+	{
+		aLock.writeLock().lock();
+
+		try
+		{
+			if (aBuildChanges != null)
+			{
+				aBuildChanges.put(nId, null);
+			}
+
+			for (AttributeIndex rIndex : aAttributeIndexes.values())
+			{
+				rIndex.remove(nId);
+			}
+
+			aVersion.incrementAndGet();
+		}
+		finally
+		{
+			aLock.writeLock().unlock();
+		}
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("%s[%s: %s]",
+							 getClass().getSimpleName(),
+							 rEntityType.getSimpleName(),
+							 rAttributes);
+	}
+
+	/***************************************
+	 * Updates the indexed values of an entity.
+	 *
+	 * @param rEntity The entity to update
+	 */
+	public void update(Entity rEntity)
+	{
+		aLock.writeLock().lock();
+
+		try
+		{
+			if (aBuildChanges != null)
+			{
+				aBuildChanges.put(rEntity.getId(), rEntity);
+			}
+
+			add(aAttributeIndexes, rEntity);
+			aVersion.incrementAndGet();
+		}
+		finally
+		{
+			aLock.writeLock().unlock();
+		}
+	}
+
+	/***************************************
+	 * Adds or replaces the values of an entity in certain attribute indexes.
+	 * Only the lower-case text values are stored, not the entity itself.
+	 *
+	 * @param rIndexes The attribute indexes
+	 * @param rEntity  The entity to add
+	 */
+	private void add(Map<RelationType<?>, AttributeIndex> rIndexes,
+					 Entity								  rEntity)
+	{
+		long nId = rEntity.getId();
+
+		for (Map.Entry<RelationType<?>, AttributeIndex> rEntry :
+			 rIndexes.entrySet())
+		{
+			AttributeIndex rIndex = rEntry.getValue();
+			Object		   rValue = rEntity.get(rEntry.getKey());
+
+			rIndex.remove(nId);
+
+			if (rValue != null)
+			{
+				rIndex.add(nId, rValue.toString().toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/***************************************
+	 * Builds new attribute indexes from all entities of the indexed type and
+	 * replaces the current indexes with them. The entities are read without
+	 * holding the lock of this index so that concurrent queries and updates
+	 * are not blocked. Updates that occur while the indexes are built are
+	 * recorded and applied to the new indexes before they replace the
+	 * current ones.
+	 *
+	 * @throws StorageException If reading the entities fails
+	 */
+	private void build() throws StorageException
+	{
+		Map<RelationType<?>, AttributeIndex> aNewIndexes = new HashMap<>();
+
+		for (RelationType<String> rAttr : rAttributes)
+		{
+			aNewIndexes.put(rAttr, new AttributeIndex());
+		}
+
+		aLock.writeLock().lock();
+		aBuildChanges = new HashMap<>();
+		aLock.writeLock().unlock();
+
+		try
+		{
+			Storage rStorage = StorageManager.getStorage(rEntityType);
+
+			try (Query<Entity> aQuery =
+				 rStorage.query(new QueryPredicate<>(rEntityType, null)))
+			{
+				QueryResult<Entity> aEntities = aQuery.execute();
+
+				while (aEntities.hasNext())
+				{
+					add(aNewIndexes, aEntities.next());
+				}
+			}
+			finally
+			{
+				rStorage.release();
+			}
+
+			aLock.writeLock().lock();
+
+			try
+			{
+				for (Map.Entry<Long, Entity> rChange :
+					 aBuildChanges.entrySet())
+				{
+					Entity rEntity = rChange.getValue();
+
+					if (rEntity != null)
+					{
+						add(aNewIndexes, rEntity);
+					}
+					else
+					{
+						for (AttributeIndex rIndex : aNewIndexes.values())
+						{
+							rIndex.remove(rChange.getKey());
+						}
+					}
+				}
+
+				aAttributeIndexes = aNewIndexes;
+				nBuildTime		  = System.currentTimeMillis();
+				bBuilt			  = true;
+				aVersion.incrementAndGet();
+			}
+			finally
+			{
+				aBuildChanges = null;
+				aLock.writeLock().unlock();
+			}
+		}
+		catch (StorageException e)
+		{
+			aLock.writeLock().lock();
+			aBuildChanges = null;
+			aLock.writeLock().unlock();
+
+			throw e;
+		}
+	}
+
+	/***************************************
+	 * Builds this index from all entities of the indexed type if that has not
+	 * been done yet or if the index is older than {@link #MAX_INDEX_AGE}. Only
+	 * one thread builds the index while other threads don't wait for it. They
+	 * will continue to use an existing index or perform their queries without
+	 * the index until it is available.
+	 *
+	 * @return TRUE if the index is available, FALSE if it is being built or
+	 *         if building it failed
+	 */
+	private boolean checkBuilt()
+	{
+		if ((!bBuilt ||
+			 System.currentTimeMillis() - nBuildTime > MAX_INDEX_AGE) &&
+			aBuilding.compareAndSet(false, true))
+		{
+			try
+			{
+				build();
+			}
+			catch (StorageException e)
+			{
+				Log.warnf(e, "Building text index failed: %s", this);
+			}
+			finally
+			{
+				aBuilding.set(false);
+			}
+		}
+
+		return bBuilt;
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * The trigram index of a single attribute.
+	 *
+	 * @author eso
+	 */
+	private static class AttributeIndex
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final Map<String, Set<Long>> aNgrams = new HashMap<>();
+		final Map<Long, String>		 aValues = new HashMap<>();
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * Adds the value of an entity.
+		 *
+		 * @param nId    The entity ID
+		 * @param sValue The lower-case value
+		 */
+		void add(long nId, String sValue)
+		{
+			aValues.put(nId, sValue);
+
+			for (String sNgram : getNgrams(sValue, true))
+			{
+				aNgrams.computeIfAbsent(sNgram, s -> new HashSet<>()).add(nId);
+			}
+		}
+
+		/***************************************
+		 * Removes the value of an entity.
+		 *
+		 * @param nId The entity ID
+		 */
+		void remove(long nId)
+		{
+			String sValue = aValues.remove(nId);
+
+			if (sValue != null)
+			{
+				for (String sNgram : getNgrams(sValue, true))
+				{
+					Set<Long> rIds = aNgrams.get(sNgram);
+
+					if (rIds != null && rIds.remove(nId) && rIds.isEmpty())
+					{
+						aNgrams.remove(sNgram);
+					}
+				}
+			}
+		}
+	}
+}
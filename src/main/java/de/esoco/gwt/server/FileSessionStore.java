@@ -0,0 +1,185 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.lib.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+
+/********************************************************************
+ * A {@link SessionStore} implementation that stores each session record in a
+ * file of a local directory. Records are first written to a temporary file
+ * that is then moved atomically to the record file so that concurrent readers
+ * will never see incomplete records. If the directory is shared between
+ * multiple nodes this store can serve as a simple replacement for a shared
+ * session store.
+ *
+ * @author eso
+ */
+public class FileSessionStore implements SessionStore
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/** The default maximum age of stored records in milliseconds (1 day). */
+	public static final long DEFAULT_MAX_RECORD_AGE = 24 * 60 * 60 * 1000;
+
+	private static final String RECORD_SUFFIX = ".session";
+	private static final String TEMP_SUFFIX   = ".tmp";
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final Path rDirectory;
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance that stores records in a certain directory. The
+	 * directory will be created if it doesn't exist.
+	 *
+	 * @param  rDirectory The record directory
+	 *
+	 * @throws IOException If creating the directory fails
+	 */
+	public FileSessionStore(File rDirectory) throws IOException
+	{
+		this.rDirectory = rDirectory.toPath();
+
+		Files.createDirectories(this.rDirectory);
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public SessionRecord load(String sSessionId) throws IOException
+	{
+		try (InputStream rIn =
+			 new BufferedInputStream(
+				 Files.newInputStream(getRecordPath(sSessionId))))
+		{
+			return SessionRecord.read(rIn);
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(String sSessionId) throws IOException
+	{
+		Files.deleteIfExists(getRecordPath(sSessionId));
+	}
+
+	/***************************************
+	 * Removes all records that have not been modified for a certain time.
+	 * Should be invoked regularly, e.g. on application start, to remove the
+	 * records of sessions that will not be restored anymore.
+	 *
+	 * @param nMaxAge The maximum record age in milliseconds
+	 */
+	public void removeExpiredRecords(long nMaxAge)
+	{
+		File[] rFiles = rDirectory.toFile().listFiles();
+
+		if (rFiles != null)
+		{
+			long nMinModified = System.currentTimeMillis() - nMaxAge;
+
+			for (File rFile : rFiles)
+			{
+				if (rFile.lastModified() < nMinModified && !rFile.delete())
+				{
+					Log.warnf("Could not delete session record %s", rFile);
+				}
+			}
+		}
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void store(String sSessionId, SessionRecord rRecord)
+		throws IOException
+	{
+		Path rTempFile =
+			Files.createTempFile(rDirectory, "session", TEMP_SUFFIX);
+
+		try
+		{
+			try (OutputStream rOut =
+				 new BufferedOutputStream(Files.newOutputStream(rTempFile)))
+			{
+				rRecord.write(rOut);
+			}
+
+			Files.move(rTempFile,
+					   getRecordPath(sSessionId),
+					   StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(rTempFile);
+		}
+	}
+
+	/***************************************
+	 * Returns the path of the record file for a certain session ID. All
+	 * characters that are not letters, digits, or hyphens will be replaced
+	 * with their hexadecimal code to create a safe and unique file name.
+	 *
+	 * @param  sSessionId The session ID
+	 *
+	 * @return The record path
+	 */
+	private Path getRecordPath(String sSessionId)
+	{
+		StringBuilder aName = new StringBuilder(sSessionId.length() + 8);
+
+		for (char c : sSessionId.toCharArray())
+		{
+			if (Character.isLetterOrDigit(c) || c == '-')
+			{
+				aName.append(c);
+			}
+			else
+			{
+				aName.append('_').append(Integer.toHexString(c)).append('_');
+			}
+		}
+
+		return rDirectory.resolve(aName.append(RECORD_SUFFIX).toString());
+	}
+}
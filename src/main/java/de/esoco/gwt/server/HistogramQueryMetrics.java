@@ -0,0 +1,164 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.PrintWriter;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/********************************************************************
+ * A {@link QueryMetrics} implementation that keeps a histogram of the
+ * durations for each combination of entity type and query phase in memory.
+ * The histogram buckets have exponentially growing upper bounds of 2^n
+ * microseconds. Measurements are not separated by storage adapter because
+ * adapters are created per session and would let the number of histograms grow
+ * without bounds.
+ *
+ * @author eso
+ */
+public class HistogramQueryMetrics implements QueryMetrics
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	private static final int BUCKET_COUNT = 25;
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final Map<String, Histogram> aHistograms =
+		new ConcurrentHashMap<>();
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Removes all recorded measurements.
+	 */
+	public void clear()
+	{
+		aHistograms.clear();
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void record(Phase  ePhase,
+					   String sEntityType,
+					   String sAdapterId,
+					   long   nNanos,
+					   int    nRows)
+	{
+		aHistograms.computeIfAbsent(sEntityType + " " + ePhase,
+									k -> new Histogram())
+				   .add(nNanos, nRows);
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeTo(PrintWriter rWriter)
+	{
+		for (Entry<String, Histogram> rEntry :
+			 new TreeMap<>(aHistograms).entrySet())
+		{
+			rWriter.print(rEntry.getKey());
+			rWriter.print(": ");
+			rEntry.getValue().writeTo(rWriter);
+			rWriter.println();
+		}
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * The histogram of a single query phase.
+	 *
+	 * @author eso
+	 */
+	private static class Histogram
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		private final LongAdder		  aCount	  = new LongAdder();
+		private final LongAdder		  aTotalNanos = new LongAdder();
+		private final LongAdder		  aTotalRows  = new LongAdder();
+		private final AtomicLong	  aMaxNanos   = new AtomicLong();
+		private final AtomicLongArray aBuckets    =
+			new AtomicLongArray(BUCKET_COUNT);
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * Adds a measurement to this histogram.
+		 *
+		 * @param nNanos The duration in nanoseconds
+		 * @param nRows  The number of processed rows
+		 */
+		void add(long nNanos, int nRows)
+		{
+			long nMicros = nNanos / 1000;
+			int  nBucket = 64 - Long.numberOfLeadingZeros(nMicros);
+
+			aCount.increment();
+			aTotalNanos.add(nNanos);
+			aTotalRows.add(nRows);
+			aMaxNanos.accumulateAndGet(nNanos, Math::max);
+			aBuckets.incrementAndGet(Math.min(nBucket, BUCKET_COUNT - 1));
+		}
+
+		/***************************************
+		 * Writes the summary and the non-empty buckets of this histogram.
+		 * Each bucket is written with the upper bound of it's durations.
+		 *
+		 * @param rWriter The writer to write to
+		 */
+		void writeTo(PrintWriter rWriter)
+		{
+			long nCount = aCount.sum();
+
+			rWriter.printf("count=%d, rows=%d, avg=%.3fms, max=%.3fms",
+						   nCount,
+						   aTotalRows.sum(),
+						   nCount > 0 ? aTotalNanos.sum() / 1e6 / nCount : 0.0,
+						   aMaxNanos.get() / 1e6);
+
+			for (int i = 0; i < BUCKET_COUNT; i++)
+			{
+				long nBucketCount = aBuckets.get(i);
+
+				if (nBucketCount > 0)
+				{
+					if (i < BUCKET_COUNT - 1)
+					{
+						rWriter.printf(", <%dus=%d", 1L << i, nBucketCount);
+					}
+					else
+					{
+						rWriter.printf(", more=%d", nBucketCount);
+					}
+				}
+			}
+		}
+	}
+}
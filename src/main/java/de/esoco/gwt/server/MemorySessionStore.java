@@ -0,0 +1,86 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/********************************************************************
+ * A {@link SessionStore} implementation that keeps session records in
+ * serialized form in memory. Records are serialized so that the stored state
+ * is independent of the live session objects, like with an external store.
+ * The stored records are lost when the application terminates.
+ *
+ * @author eso
+ */
+public class MemorySessionStore implements SessionStore
+{
+	//~ Instance fields --------------------------------------------------------
+
+	private final Map<String, byte[]> aRecords = new ConcurrentHashMap<>();
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public SessionRecord load(String sSessionId) throws IOException
+	{
+		byte[] rData = aRecords.get(sSessionId);
+
+		return rData != null
+			   ? SessionRecord.read(new ByteArrayInputStream(rData)) : null;
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(String sSessionId)
+	{
+		aRecords.remove(sSessionId);
+	}
+
+	/***************************************
+	 * Returns the number of records in this store.
+	 *
+	 * @return The record count
+	 */
+	public int size()
+	{
+		return aRecords.size();
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void store(String sSessionId, SessionRecord rRecord)
+		throws IOException
+	{
+		ByteArrayOutputStream aOutput = new ByteArrayOutputStream();
+
+		rRecord.write(aOutput);
+		aRecords.put(sSessionId, aOutput.toByteArray());
+	}
+}
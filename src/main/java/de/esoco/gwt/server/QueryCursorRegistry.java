@@ -0,0 +1,351 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.entity.Entity;
+
+import de.esoco.storage.QueryPredicate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/********************************************************************
+ * A registry for the query cursors of the storage adapters in a session. A
+ * query cursor contains a snapshot of the entity IDs in the result of a
+ * query so that subsequent query windows can be read by ID from the same
+ * result even if the queried data changes concurrently. Each storage adapter
+ * can have at most one cursor that is identified by the adapter ID.
+ *
+ * <p>The registry limits the total number of IDs in all cursors. If a new
+ * cursor would exceed this limit the least recently used cursors of other
+ * adapters will be discarded. Cursors that have not been accessed for longer
+ * than the idle timeout will be discarded too. Because there is a registry
+ * for each session the number of IDs in the cursors of all registries is
+ * also limited globally (see {@link #setMaxTotalRows(int)}). If a new cursor
+ * would exceed the global limit even after discarding the other cursors of
+ * it's registry it will be rejected. The cursors of a registry must be
+ * released with {@link #clear()} when the session ends.</p>
+ *
+ * <p>All methods are synchronized so that a registry can be shared between
+ * the threads that process the requests of a session.</p>
+ *
+ * @author eso
+ */
+public class QueryCursorRegistry
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/** The default maximum number of IDs in all cursors of a registry. */
+	public static final int DEFAULT_MAX_ROWS = 100000;
+
+	/** The default idle timeout of cursors in milliseconds. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	/** The default maximum number of IDs in the cursors of all registries. */
+	public static final int DEFAULT_MAX_TOTAL_ROWS = 1000000;
+
+	private static final AtomicInteger aTotalRowCount = new AtomicInteger();
+
+	private static volatile int nMaxTotalRows = DEFAULT_MAX_TOTAL_ROWS;
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final int  nMaxRows;
+	private final long nIdleTimeout;
+
+	private final Map<String, QueryCursor> aCursors =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	private int nRowCount = 0;
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance with the default limits.
+	 */
+	public QueryCursorRegistry()
+	{
+		this(DEFAULT_MAX_ROWS, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/***************************************
+	 * Creates a new instance.
+	 *
+	 * @param nMaxRows     The maximum number of IDs in all cursors
+	 * @param nIdleTimeout The time in milliseconds after which cursors that
+	 *                     have not been accessed will be discarded
+	 */
+	public QueryCursorRegistry(int nMaxRows, long nIdleTimeout)
+	{
+		this.nMaxRows     = nMaxRows;
+		this.nIdleTimeout = nIdleTimeout;
+	}
+
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Returns the total number of IDs in the cursors of all registries.
+	 *
+	 * @return The total row count
+	 */
+	public static int getTotalRowCount()
+	{
+		return aTotalRowCount.get();
+	}
+
+	/***************************************
+	 * Sets the maximum number of IDs in the cursors of all registries.
+	 *
+	 * @param nMaxRows The maximum total number of IDs
+	 */
+	public static void setMaxTotalRows(int nMaxRows)
+	{
+		nMaxTotalRows = nMaxRows;
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Removes all cursors of this registry. This must be invoked when the
+	 * registry is no longer used to release the IDs from the global limit.
+	 */
+	public synchronized void clear()
+	{
+		changeRowCount(-nRowCount);
+		aCursors.clear();
+	}
+
+	/***************************************
+	 * Returns the cursor of a certain adapter if it has been created for the
+	 * given query. A cursor of the adapter for a different query will be
+	 * discarded.
+	 *
+	 * @param  sAdapterId The ID of the storage adapter
+	 * @param  rSnapshot  The query parameters snapshot of the adapter
+	 * @param  sQueryKey  The key of the query constraints and sort fields
+	 *
+	 * @return The cursor or NULL if no matching cursor exists
+	 */
+	public synchronized QueryCursor getCursor(String sAdapterId,
+											  Object rSnapshot,
+											  String sQueryKey)
+	{
+		removeExpiredCursors();
+
+		QueryCursor rCursor = aCursors.get(sAdapterId);
+
+		if (rCursor != null)
+		{
+			if (rCursor.rSnapshot == rSnapshot &&
+				rCursor.sQueryKey.equals(sQueryKey))
+			{
+				rCursor.nLastAccess = System.currentTimeMillis();
+			}
+			else
+			{
+				removeCursor(sAdapterId);
+				rCursor = null;
+			}
+		}
+
+		return rCursor;
+	}
+
+	/***************************************
+	 * Returns the total number of IDs in the cursors of this registry.
+	 *
+	 * @return The row count
+	 */
+	public synchronized int getRowCount()
+	{
+		return nRowCount;
+	}
+
+	/***************************************
+	 * Registers a new cursor for a certain adapter and replaces any previous
+	 * cursor of the adapter. The least recently used cursors will be
+	 * discarded if necessary to stay within the row limit of this registry
+	 * and the global row limit.
+	 *
+	 * @param  sAdapterId The ID of the storage adapter
+	 * @param  aCursor    The new cursor
+	 *
+	 * @return TRUE if the cursor has been registered, FALSE if it exceeds the
+	 *         row limit of this registry or the global row limit
+	 */
+	public synchronized boolean putCursor(
+		String		sAdapterId,
+		QueryCursor aCursor)
+	{
+		removeCursor(sAdapterId);
+		removeExpiredCursors();
+
+		int nSize = aCursor.aIds.length;
+
+		if (nSize > nMaxRows)
+		{
+			return false;
+		}
+
+		Iterator<QueryCursor> rCursors = aCursors.values().iterator();
+
+		while ((nRowCount + nSize > nMaxRows ||
+				aTotalRowCount.get() + nSize > nMaxTotalRows) &&
+			   rCursors.hasNext())
+		{
+			changeRowCount(-rCursors.next().aIds.length);
+			rCursors.remove();
+		}
+
+		if (aTotalRowCount.get() + nSize > nMaxTotalRows)
+		{
+			return false;
+		}
+
+		aCursors.put(sAdapterId, aCursor);
+		changeRowCount(nSize);
+
+		return true;
+	}
+
+	/***************************************
+	 * Removes the cursor of a certain adapter.
+	 *
+	 * @param sAdapterId The ID of the storage adapter
+	 */
+	public synchronized void removeCursor(String sAdapterId)
+	{
+		QueryCursor rCursor = aCursors.remove(sAdapterId);
+
+		if (rCursor != null)
+		{
+			changeRowCount(-rCursor.aIds.length);
+		}
+	}
+
+	/***************************************
+	 * Removes certain IDs from a cursor, e.g. because the corresponding
+	 * entities have been deleted. The positions of the following IDs will be
+	 * shifted accordingly.
+	 *
+	 * @param sAdapterId The ID of the storage adapter
+	 * @param rCursor    The cursor to remove the IDs from
+	 * @param rIds       The IDs to remove
+	 */
+	@SuppressWarnings("boxing")
+	public synchronized void removeIds(String			sAdapterId,
+									   QueryCursor		rCursor,
+									   Collection<Long> rIds)
+	{
+		long[] rCurrentIds = rCursor.aIds;
+		long[] aNewIds     = new long[rCurrentIds.length];
+		int    nCount	   = 0;
+
+		for (long nId : rCurrentIds)
+		{
+			if (!rIds.contains(nId))
+			{
+				aNewIds[nCount++] = nId;
+			}
+		}
+
+		rCursor.aIds = Arrays.copyOf(aNewIds, nCount);
+
+		if (aCursors.get(sAdapterId) == rCursor)
+		{
+			changeRowCount(nCount - rCurrentIds.length);
+		}
+	}
+
+	/***************************************
+	 * Changes the row count of this registry and the global row count.
+	 *
+	 * @param nDelta The number of rows to add or remove
+	 */
+	private void changeRowCount(int nDelta)
+	{
+		nRowCount += nDelta;
+		aTotalRowCount.addAndGet(nDelta);
+	}
+
+	/***************************************
+	 * Removes all cursors that have exceeded the idle timeout.
+	 */
+	private void removeExpiredCursors()
+	{
+		long				  nExpired = System.currentTimeMillis() -
+										 nIdleTimeout;
+		Iterator<QueryCursor> rCursors = aCursors.values().iterator();
+
+		while (rCursors.hasNext())
+		{
+			QueryCursor rCursor = rCursors.next();
+
+			if (rCursor.nLastAccess < nExpired)
+			{
+				changeRowCount(-rCursor.aIds.length);
+				rCursors.remove();
+			}
+		}
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * A snapshot of the entity IDs in the result of a query.
+	 *
+	 * @author eso
+	 */
+	public static class QueryCursor
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final Object				 rSnapshot;
+		final String				 sQueryKey;
+		final QueryPredicate<Entity> qQuery;
+
+		volatile long[] aIds;
+
+		long nLastAccess = System.currentTimeMillis();
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param rSnapshot The query parameters snapshot of the adapter
+		 * @param sQueryKey The key of the query constraints and sort fields
+		 * @param qQuery    The full query the IDs have been read from
+		 * @param aIds      The IDs of the query result in query order
+		 */
+		QueryCursor(Object				   rSnapshot,
+					String				   sQueryKey,
+					QueryPredicate<Entity> qQuery,
+					long[]				   aIds)
+		{
+			this.rSnapshot = rSnapshot;
+			this.sQueryKey = sQueryKey;
+			this.qQuery    = qQuery;
+			this.aIds	   = aIds;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.PrintWriter;
+
+
+/********************************************************************
+ * An interface for registries that record the timings of storage queries.
+ * Implementations can be set with {@link
+ * DatabaseStorageAdapter#setQueryMetrics(QueryMetrics)} to forward the
+ * measurements to an application's monitoring system. The default
+ * implementation is {@link HistogramQueryMetrics}.
+ *
+ * <p>Implementations will be invoked concurrently from multiple request
+ * threads and must therefore be thread-safe.</p>
+ *
+ * @author eso
+ */
+public interface QueryMetrics
+{
+	//~ Enums ------------------------------------------------------------------
+
+	/********************************************************************
+	 * Enumeration of the phases of a storage query.
+	 */
+	public enum Phase
+	{
+		/** Parsing the constraints and creating the query predicate. */
+		CONSTRAINTS,
+
+		/** Executing the database query and reading the entities. */
+		QUERY,
+
+		/** Converting the entities into result rows. */
+		CONVERSION,
+
+		/** Counting the size of the query. */
+		COUNT,
+
+		/** The total query execution in the storage adapter. */
+		TOTAL,
+
+		/** The handling of a query request by the storage service. */
+		REQUEST,
+
+		/** The serialization of the query result for the client. */
+		SERIALIZATION
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Records the duration of a single phase of a query.
+	 *
+	 * @param ePhase      The query phase
+	 * @param sEntityType The name of the queried entity type
+	 * @param sAdapterId  The ID of the storage adapter that performed the
+	 *                    query (may be NULL)
+	 * @param nNanos      The duration of the phase in nanoseconds
+	 * @param nRows       The number of rows processed in the phase
+	 */
+	public void record(Phase  ePhase,
+					   String sEntityType,
+					   String sAdapterId,
+					   long   nNanos,
+					   int    nRows);
+
+	/***************************************
+	 * Writes a human-readable summary of the recorded metrics.
+	 *
+	 * @param rWriter The writer to write the summary to
+	 */
+	public void writeTo(PrintWriter rWriter);
+}
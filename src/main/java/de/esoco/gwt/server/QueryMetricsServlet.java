@@ -0,0 +1,171 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/********************************************************************
+ * A servlet that writes the query metrics that have been recorded by the
+ * registry of {@link DatabaseStorageAdapter} as plain text in response to GET
+ * requests. A POST request writes the metrics and then clears the histograms
+ * of a {@link HistogramQueryMetrics} registry. Because a reset discards the
+ * collected data of all users it is only performed if the authenticated user
+ * of the request has the role that is set in the servlet init parameter
+ * 'resetRole' (default: {@link #DEFAULT_RESET_ROLE}). Other POST requests
+ * will be rejected with the status code 403 (Forbidden).
+ *
+ * <p>To enable the servlet it must be added to the application's web.xml
+ * file. Because the metrics reveal information about the application data
+ * the servlet path should be protected by a security constraint that also
+ * authenticates the users that are allowed to reset the metrics:</p>
+ *
+ * <pre>
+    &lt;servlet&gt;
+        &lt;servlet-name&gt;queryMetrics&lt;/servlet-name&gt;
+        &lt;servlet-class&gt;
+            de.esoco.gwt.server.QueryMetricsServlet
+        &lt;/servlet-class&gt;
+        &lt;init-param&gt;
+            &lt;param-name&gt;resetRole&lt;/param-name&gt;
+            &lt;param-value&gt;admin&lt;/param-value&gt;
+        &lt;/init-param&gt;
+    &lt;/servlet&gt;
+    &lt;servlet-mapping&gt;
+        &lt;servlet-name&gt;queryMetrics&lt;/servlet-name&gt;
+        &lt;url-pattern&gt;/admin/query-metrics&lt;/url-pattern&gt;
+    &lt;/servlet-mapping&gt;
+ </pre>
+ *
+ * @author eso
+ */
+public class QueryMetricsServlet extends HttpServlet
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/** The default role that is required to reset the metrics. */
+	public static final String DEFAULT_RESET_ROLE = "admin";
+
+	private static final long serialVersionUID = 1L;
+
+	//~ Instance fields --------------------------------------------------------
+
+	private String sResetRole = DEFAULT_RESET_ROLE;
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Reads the role that is required to reset the metrics from the servlet
+	 * init parameters.
+	 *
+	 * @throws ServletException On servlet errors
+	 */
+	@Override
+	public void init() throws ServletException
+	{
+		String sRole = getInitParameter("resetRole");
+
+		if (sRole != null && !sRole.isEmpty())
+		{
+			sResetRole = sRole;
+		}
+	}
+
+	/***************************************
+	 * Writes the current query metrics to the response.
+	 *
+	 * @param  rRequest  The request
+	 * @param  rResponse The response
+	 *
+	 * @throws ServletException On servlet errors
+	 * @throws IOException      On I/O errors
+	 */
+	@Override
+	protected void doGet(
+		HttpServletRequest  rRequest,
+		HttpServletResponse rResponse) throws ServletException, IOException
+	{
+		writeMetrics(rResponse, false);
+	}
+
+	/***************************************
+	 * Writes the current query metrics to the response and resets them
+	 * afterwards if the user is authorized to do so.
+	 *
+	 * @param  rRequest  The request
+	 * @param  rResponse The response
+	 *
+	 * @throws ServletException On servlet errors
+	 * @throws IOException      On I/O errors
+	 */
+	@Override
+	protected void doPost(
+		HttpServletRequest  rRequest,
+		HttpServletResponse rResponse) throws ServletException, IOException
+	{
+		if (rRequest.getUserPrincipal() != null &&
+			rRequest.isUserInRole(sResetRole))
+		{
+			writeMetrics(rResponse, true);
+		}
+		else
+		{
+			rResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+		}
+	}
+
+	/***************************************
+	 * Writes the current query metrics to a response.
+	 *
+	 * @param  rResponse The response
+	 * @param  bReset    TRUE to reset the metrics after writing them
+	 *
+	 * @throws IOException On I/O errors
+	 */
+	private void writeMetrics(HttpServletResponse rResponse, boolean bReset)
+		throws IOException
+	{
+		QueryMetrics rMetrics = DatabaseStorageAdapter.getQueryMetrics();
+
+		rResponse.setContentType("text/plain");
+		rResponse.setCharacterEncoding("UTF-8");
+
+		PrintWriter rWriter = rResponse.getWriter();
+
+		if (rMetrics != null)
+		{
+			rMetrics.writeTo(rWriter);
+
+			if (bReset && rMetrics instanceof HistogramQueryMetrics)
+			{
+				((HistogramQueryMetrics) rMetrics).clear();
+			}
+		}
+		else
+		{
+			rWriter.println("Query metrics are disabled");
+		}
+
+		rWriter.flush();
+	}
+}
@@ -0,0 +1,482 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.entity.Entity;
+
+import de.esoco.lib.model.DataModel;
+
+import de.esoco.storage.QueryPredicate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/********************************************************************
+ * A bounded cache for the result rows of storage queries. Rows are cached per
+ * query key, i.e. a distinct combination of constraints and sort fields, and
+ * stored by their absolute index in the query result. A query window will be
+ * served from the cache if all rows in the window are available, which also
+ * covers identical and overlapping windows. The least recently used queries
+ * are evicted if the maximum number of cached queries is exceeded. Because
+ * the stored entities can change at any time the rows of a query expire
+ * after a maximum age and will then be queried again.
+ *
+ * <p>Independent from the rows the cache also stores the sizes of queries by
+ * a key that only depends on the query constraints because the size is the
+ * same for all sort orders. Query sizes are cached separately so that they
+ * can be re-used even if rows are not cached. Cached sizes expire after the
+ * same maximum age as rows and will then be counted again.</p>
+ *
+ * <p>Windows that have been queried in advance by a background prefetch can
+ * be marked as prefetched. If the rows of a query are discarded before a
+ * prefetched window has been requested the prefetch will be counted as
+ * wasted.</p>
+ *
+ * <p>All methods are synchronized so that a cache instance can be shared
+ * between threads.</p>
+ *
+ * @author eso
+ */
+class QueryResultCache
+{
+	//~ Instance fields --------------------------------------------------------
+
+	private final int  nMaxQueries;
+	private final long nMaxAge;
+	private int		   nMaxRows;
+	private long	   nWastedPrefetches;
+
+	private final Map<String, CachedQuery> aQueries;
+	private final Map<String, CachedCount> aCounts;
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance.
+	 *
+	 * @param nMaxQueries  The maximum number of distinct queries to cache
+	 * @param nMaxRows     The maximum number of rows to cache per query or
+	 *                     zero to disable caching
+	 * @param nMaxAge     The maximum age of cached rows and query sizes in
+	 *                    milliseconds
+	 */
+	public QueryResultCache(int nMaxQueries, int nMaxRows, long nMaxAge)
+	{
+		this.nMaxQueries = nMaxQueries;
+		this.nMaxRows    = nMaxRows;
+		this.nMaxAge     = nMaxAge;
+
+		aQueries =
+			new LinkedHashMap<String, CachedQuery>(nMaxQueries + 1, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+					Map.Entry<String, CachedQuery> rEldest)
+				{
+					boolean bRemove =
+						size() > QueryResultCache.this.nMaxQueries;
+
+					if (bRemove)
+					{
+						discard(rEldest.getValue());
+					}
+
+					return bRemove;
+				}
+			};
+
+		aCounts =
+			new LinkedHashMap<String, CachedCount>(nMaxQueries + 1, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+					Map.Entry<String, CachedCount> rEldest)
+				{
+					return size() > QueryResultCache.this.nMaxQueries;
+				}
+			};
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Removes all cached queries.
+	 */
+	public synchronized void clear()
+	{
+		removeQueries();
+		aCounts.clear();
+	}
+
+	/***************************************
+	 * Returns the cached size of a query with certain constraints. Sizes
+	 * that are older than the maximum count age will be removed and not be
+	 * returned.
+	 *
+	 * @param  sConstraintKey The key of the query constraints
+	 *
+	 * @return The query size or -1 if not cached or expired
+	 */
+	public synchronized int getCount(String sConstraintKey)
+	{
+		CachedCount rCount = aCounts.get(sConstraintKey);
+		int		    nCount = -1;
+
+		if (rCount != null)
+		{
+			if (System.currentTimeMillis() - rCount.nTime > nMaxAge)
+			{
+				aCounts.remove(sConstraintKey);
+			}
+			else
+			{
+				nCount = rCount.nCount;
+			}
+		}
+
+		return nCount;
+	}
+
+	/***************************************
+	 * Returns the query predicate that has been stored for a certain query key.
+	 *
+	 * @param  sQueryKey The query key
+	 *
+	 * @return The query predicate or NULL if the query is not cached
+	 */
+	public synchronized QueryPredicate<Entity> getQuery(String sQueryKey)
+	{
+		CachedQuery rQuery = getCachedQuery(sQueryKey);
+
+		return rQuery != null ? rQuery.qQuery : null;
+	}
+
+	/***************************************
+	 * Returns the size of a cached query.
+	 *
+	 * @param  sQueryKey The query key
+	 *
+	 * @return The query size or -1 if the query is not cached
+	 */
+	public synchronized int getQuerySize(String sQueryKey)
+	{
+		CachedQuery rQuery = getCachedQuery(sQueryKey);
+
+		return rQuery != null ? rQuery.nQuerySize : -1;
+	}
+
+	/***************************************
+	 * Returns the number of prefetched windows that have been discarded
+	 * before they have been requested.
+	 *
+	 * @return The number of wasted prefetches
+	 */
+	public synchronized long getWastedPrefetches()
+	{
+		return nWastedPrefetches;
+	}
+
+	/***************************************
+	 * Returns the rows of a query window if all of them are available in this
+	 * cache.
+	 *
+	 * @param  sQueryKey The query key
+	 * @param  nStart    The index of the first row in the window
+	 * @param  nLimit    The maximum number of rows in the window
+	 *
+	 * @return A new list containing the window rows or NULL if the window is
+	 *         not (completely) cached
+	 */
+	public synchronized List<DataModel<String>> getWindow(String sQueryKey,
+														  int    nStart,
+														  int    nLimit)
+	{
+		CachedQuery			    rQuery = getCachedQuery(sQueryKey);
+		List<DataModel<String>> aRows  = null;
+
+		if (rQuery != null)
+		{
+			int nEnd = Math.min(nStart + nLimit, rQuery.nQuerySize);
+
+			aRows = new ArrayList<>(Math.max(nEnd - nStart, 0));
+
+			for (int i = nStart; i < nEnd; i++)
+			{
+				DataModel<String> rRow = rQuery.aRows.get(i);
+
+				if (rRow == null)
+				{
+					aRows = null;
+
+					break;
+				}
+
+				aRows.add(rRow);
+			}
+		}
+
+		return aRows;
+	}
+
+	/***************************************
+	 * Marks a cached window as prefetched. Nothing will be done if the first
+	 * row of the window is not cached.
+	 *
+	 * @param sQueryKey The query key
+	 * @param nStart    The index of the first row in the window
+	 */
+	public synchronized void markPrefetched(String sQueryKey, int nStart)
+	{
+		CachedQuery rQuery = aQueries.get(sQueryKey);
+
+		if (rQuery != null && rQuery.aRows.containsKey(nStart))
+		{
+			rQuery.aPrefetchedStarts.add(nStart);
+		}
+	}
+
+	/***************************************
+	 * Stores the size of a query with certain constraints.
+	 *
+	 * @param sConstraintKey The key of the query constraints
+	 * @param nCount         The query size
+	 */
+	public synchronized void putCount(String sConstraintKey, int nCount)
+	{
+		aCounts.put(sConstraintKey,
+					new CachedCount(nCount, System.currentTimeMillis()));
+	}
+
+	/***************************************
+	 * Stores the rows of a query window in this cache. If the cache already
+	 * contains rows for the query and the query size has changed or the row
+	 * limit would be exceeded the existing rows will be discarded.
+	 *
+	 * @param sQueryKey  The query key
+	 * @param qQuery     The full query predicate the rows have been queried
+	 *                   with
+	 * @param nStart     The index of the first row
+	 * @param rRows      The window rows
+	 * @param nQuerySize The total size of the query
+	 */
+	public synchronized void putWindow(String				   sQueryKey,
+									   QueryPredicate<Entity>  qQuery,
+									   int					   nStart,
+									   List<DataModel<String>> rRows,
+									   int					   nQuerySize)
+	{
+		if (nMaxRows > 0 && rRows.size() <= nMaxRows)
+		{
+			CachedQuery rQuery = getCachedQuery(sQueryKey);
+
+			if (rQuery == null ||
+				rQuery.nQuerySize != nQuerySize ||
+				rQuery.aRows.size() + rRows.size() > nMaxRows)
+			{
+				if (rQuery != null)
+				{
+					discard(rQuery);
+				}
+
+				rQuery =
+					new CachedQuery(qQuery,
+									nQuerySize,
+									System.currentTimeMillis());
+				aQueries.put(sQueryKey, rQuery);
+			}
+
+			for (DataModel<String> rRow : rRows)
+			{
+				rQuery.aRows.put(nStart++, rRow);
+			}
+		}
+	}
+
+	/***************************************
+	 * Removes the cached size of a query with certain constraints so that it
+	 * will be counted again by the next query.
+	 *
+	 * @param sConstraintKey The key of the query constraints
+	 */
+	public synchronized void removeCount(String sConstraintKey)
+	{
+		aCounts.remove(sConstraintKey);
+	}
+
+	/***************************************
+	 * Removes the prefetched mark of a window because it has been requested.
+	 *
+	 * @param  sQueryKey The query key
+	 * @param  nStart    The index of the first row in the window
+	 *
+	 * @return TRUE if the window had been prefetched and not been requested
+	 *         before
+	 */
+	public synchronized boolean removePrefetched(String sQueryKey, int nStart)
+	{
+		CachedQuery rQuery = aQueries.get(sQueryKey);
+
+		return rQuery != null && rQuery.aPrefetchedStarts.remove(nStart);
+	}
+
+	/***************************************
+	 * Removes a cached query and all of its rows.
+	 *
+	 * @param sQueryKey The query key
+	 */
+	public synchronized void removeQuery(String sQueryKey)
+	{
+		CachedQuery rQuery = aQueries.remove(sQueryKey);
+
+		if (rQuery != null)
+		{
+			discard(rQuery);
+		}
+	}
+
+	/***************************************
+	 * Sets the maximum number of rows to cache per query. Setting this value
+	 * will also clear the cache.
+	 *
+	 * @param nMaxRows The maximum number of rows or zero to disable caching
+	 */
+	public synchronized void setMaxRows(int nMaxRows)
+	{
+		this.nMaxRows = nMaxRows;
+		removeQueries();
+	}
+
+	/***************************************
+	 * Counts the prefetched windows of a discarded query that have not been
+	 * requested as wasted.
+	 *
+	 * @param rQuery The discarded query
+	 */
+	private void discard(CachedQuery rQuery)
+	{
+		nWastedPrefetches += rQuery.aPrefetchedStarts.size();
+	}
+
+	/***************************************
+	 * Returns the cached data of a query. Queries that are older than the
+	 * maximum age will be removed and not be returned.
+	 *
+	 * @param  sQueryKey The query key
+	 *
+	 * @return The cached query or NULL if not cached or expired
+	 */
+	private CachedQuery getCachedQuery(String sQueryKey)
+	{
+		CachedQuery rQuery = aQueries.get(sQueryKey);
+
+		if (rQuery != null &&
+			System.currentTimeMillis() - rQuery.nTime > nMaxAge)
+		{
+			aQueries.remove(sQueryKey);
+			discard(rQuery);
+			rQuery = null;
+		}
+
+		return rQuery;
+	}
+
+	/***************************************
+	 * Removes all cached queries.
+	 */
+	private void removeQueries()
+	{
+		for (CachedQuery rQuery : aQueries.values())
+		{
+			discard(rQuery);
+		}
+
+		aQueries.clear();
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * Holds a cached query size together with the time it has been counted.
+	 *
+	 * @author eso
+	 */
+	private static class CachedCount
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final int  nCount;
+		final long nTime;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param nCount The query size
+		 * @param nTime  The time of the counting in milliseconds
+		 */
+		CachedCount(int nCount, long nTime)
+		{
+			this.nCount = nCount;
+			this.nTime  = nTime;
+		}
+	}
+
+	/********************************************************************
+	 * Holds the cached data of a single query.
+	 *
+	 * @author eso
+	 */
+	private static class CachedQuery
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final QueryPredicate<Entity>		  qQuery;
+		final int							  nQuerySize;
+		final long							  nTime;
+		final Map<Integer, DataModel<String>> aRows			    =
+			new HashMap<>();
+		final Set<Integer>					  aPrefetchedStarts =
+			new HashSet<>();
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param qQuery     The full query predicate
+		 * @param nQuerySize The query size
+		 * @param nTime      The time of the first query in milliseconds
+		 */
+		CachedQuery(QueryPredicate<Entity> qQuery, int nQuerySize, long nTime)
+		{
+			this.qQuery     = qQuery;
+			this.nQuerySize = nQuerySize;
+			this.nTime      = nTime;
+		}
+	}
+}
@@ -0,0 +1,593 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.data.SessionData;
+
+import de.esoco.lib.logging.Log;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.obrel.core.RelationType;
+
+
+/********************************************************************
+ * Moves the state of idle sessions from the heap to a {@link SessionStore} and
+ * restores it transparently on the next access of a session through the
+ * {@link SessionRegistry}. Only the values of the session relations that have
+ * been registered with {@link #addPassivatedType(RelationType)} and that are
+ * {@link Serializable} will be passivated. Other session state like running
+ * processes will remain in memory.
+ *
+ * <p>While a session is passivated the passivated relations are deleted from
+ * its {@link SessionData}. Only a lookup through {@link
+ * SessionRegistry#get(String)} (or the keyed lookup of the registry's session
+ * map) will restore them. Code that keeps a direct reference to session data,
+ * e.g. in a background job, or that iterates over {@link
+ * SessionRegistry#getSessions()} will see these relations as missing and must
+ * therefore look the session up in the registry again before accessing
+ * them.</p>
+ *
+ * <p>Sessions are passivated by a background thread if they have not been
+ * accessed for the idle timeout. If the heap usage exceeds the heap watermark
+ * all sessions that have been idle for at least the minimum idle time will be
+ * passivated too. When the passivator is stopped all sessions are passivated
+ * so that their state can be restored with {@link #restore(String, String)}
+ * after a restart or by another node that shares the session store. The login
+ * name of the session user is stored with the session state and a session
+ * will only be restored for the same user.</p>
+ *
+ * @author eso
+ */
+public class SessionPassivator
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/** The default idle timeout in milliseconds (30 minutes). */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000;
+
+	/** The default minimum idle time in milliseconds (5 minutes). */
+	public static final long DEFAULT_MIN_IDLE_TIME = 5 * 60 * 1000;
+
+	/** The default interval of the idle session checks in milliseconds. */
+	public static final long DEFAULT_CHECK_INTERVAL = 60 * 1000;
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final SessionRegistry rRegistry;
+	private final SessionStore    rStore;
+
+	private final List<RelationType<?>> aPassivatedTypes =
+		new CopyOnWriteArrayList<>();
+
+	private volatile long  nIdleTimeout   = DEFAULT_IDLE_TIMEOUT;
+	private volatile long  nMinIdleTime   = DEFAULT_MIN_IDLE_TIME;
+	private volatile float fHeapWatermark = 0;
+	private long		   nCheckInterval = DEFAULT_CHECK_INTERVAL;
+
+	private ScheduledExecutorService aScheduler;
+
+	private final LongAdder		  aPassivationCount = new LongAdder();
+	private final LongAdder		  aPassivationTime  = new LongAdder();
+	private final LongAccumulator aMaxPassivation   =
+		new LongAccumulator(Math::max, 0);
+	private final LongAdder		  aActivationCount  = new LongAdder();
+	private final LongAdder		  aActivationTime   = new LongAdder();
+	private final LongAccumulator aMaxActivation    =
+		new LongAccumulator(Math::max, 0);
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance for a certain session registry. The passivator
+	 * must be started with {@link #start()} to passivate sessions
+	 * automatically.
+	 *
+	 * @param rRegistry The registry of the sessions to passivate
+	 * @param rStore    The store to passivate sessions to
+	 */
+	public SessionPassivator(SessionRegistry rRegistry, SessionStore rStore)
+	{
+		this.rRegistry = rRegistry;
+		this.rStore    = rStore;
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Adds a session relation type to be passivated. Only relations with
+	 * {@link Serializable} values will be passivated.
+	 *
+	 * @param rType The relation type
+	 */
+	public void addPassivatedType(RelationType<?> rType)
+	{
+		aPassivatedTypes.add(rType);
+	}
+
+	/***************************************
+	 * Returns the number of sessions that have been activated.
+	 *
+	 * @return The activation count
+	 */
+	public long getActivationCount()
+	{
+		return aActivationCount.sum();
+	}
+
+	/***************************************
+	 * Returns the average duration of session activations.
+	 *
+	 * @return The average activation time in microseconds
+	 */
+	public long getAverageActivationTime()
+	{
+		long nCount = aActivationCount.sum();
+
+		return nCount > 0 ? aActivationTime.sum() / nCount / 1000 : 0;
+	}
+
+	/***************************************
+	 * Returns the average duration of session passivations.
+	 *
+	 * @return The average passivation time in microseconds
+	 */
+	public long getAveragePassivationTime()
+	{
+		long nCount = aPassivationCount.sum();
+
+		return nCount > 0 ? aPassivationTime.sum() / nCount / 1000 : 0;
+	}
+
+	/***************************************
+	 * Returns the maximum duration of session activations.
+	 *
+	 * @return The maximum activation time in microseconds
+	 */
+	public long getMaxActivationTime()
+	{
+		return aMaxActivation.get() / 1000;
+	}
+
+	/***************************************
+	 * Returns the maximum duration of session passivations.
+	 *
+	 * @return The maximum passivation time in microseconds
+	 */
+	public long getMaxPassivationTime()
+	{
+		return aMaxPassivation.get() / 1000;
+	}
+
+	/***************************************
+	 * Returns the number of sessions that have been passivated.
+	 *
+	 * @return The passivation count
+	 */
+	public long getPassivationCount()
+	{
+		return aPassivationCount.sum();
+	}
+
+	/***************************************
+	 * Passivates all sessions that have been idle for the idle timeout or, if
+	 * the heap usage exceeds the heap watermark, for the minimum idle time.
+	 * This method is invoked periodically after {@link #start()} has been
+	 * invoked but can also be invoked directly.
+	 */
+	public void passivateIdleSessions()
+	{
+		long nIdleTime = nIdleTimeout;
+
+		if (fHeapWatermark > 0 && getHeapUsage() > fHeapWatermark)
+		{
+			nIdleTime = Math.min(nIdleTime, nMinIdleTime);
+		}
+
+		passivateSessions(System.currentTimeMillis() - nIdleTime);
+	}
+
+	/***************************************
+	 * Restores a session from the session store that is not registered in the
+	 * session registry, e.g. because it has been passivated by another node or
+	 * before a restart of the application. The session will only be restored
+	 * if it is owned by the user with the given login name. The stored record
+	 * will be removed after it has been restored.
+	 *
+	 * @param  sSessionId The ID of the session to restore
+	 * @param  sLoginName The login name of the user that requests the session
+	 *
+	 * @return A new session data object containing the restored relations or
+	 *         NULL if no session has been stored for the given ID and user
+	 */
+	public SessionData restore(String sSessionId, String sLoginName)
+	{
+		SessionData aSessionData = new SessionData();
+
+		return sLoginName != null &&
+			   load(sSessionId, aSessionData, sLoginName) ? aSessionData
+														  : null;
+	}
+
+	/***************************************
+	 * Sets the interval in which idle sessions will be checked. Must be set
+	 * before the passivator is started.
+	 *
+	 * @param nMillis The check interval in milliseconds
+	 */
+	public void setCheckInterval(long nMillis)
+	{
+		nCheckInterval = nMillis;
+	}
+
+	/***************************************
+	 * Sets the heap watermark. If the fraction of the maximum heap that is in
+	 * use exceeds the watermark all sessions that have been idle for at least
+	 * the minimum idle time will be passivated.
+	 *
+	 * @param fWatermark The heap watermark between 0 and 1 or zero to disable
+	 *                   the heap check
+	 */
+	public void setHeapWatermark(float fWatermark)
+	{
+		fHeapWatermark = fWatermark;
+	}
+
+	/***************************************
+	 * Sets the time after which idle sessions will be passivated.
+	 *
+	 * @param nMillis The idle timeout in milliseconds
+	 */
+	public void setIdleTimeout(long nMillis)
+	{
+		nIdleTimeout = nMillis;
+	}
+
+	/***************************************
+	 * Sets the minimum time a session must have been idle to be passivated if
+	 * the heap watermark has been exceeded.
+	 *
+	 * @param nMillis The minimum idle time in milliseconds
+	 */
+	public void setMinIdleTime(long nMillis)
+	{
+		nMinIdleTime = nMillis;
+	}
+
+	/***************************************
+	 * Starts the periodic passivation of idle sessions in a background
+	 * thread.
+	 */
+	public synchronized void start()
+	{
+		if (aScheduler == null)
+		{
+			aScheduler =
+				Executors.newSingleThreadScheduledExecutor(rTask ->
+				{
+					Thread aThread = new Thread(rTask, "SessionPassivation");
+
+					aThread.setDaemon(true);
+
+					return aThread;
+				});
+
+			aScheduler.scheduleWithFixedDelay(this::checkSessions,
+											  nCheckInterval,
+											  nCheckInterval,
+											  TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/***************************************
+	 * Stops the periodic passivation of idle sessions and passivates all
+	 * sessions to keep their state in the session store.
+	 */
+	public synchronized void stop()
+	{
+		if (aScheduler != null)
+		{
+			aScheduler.shutdownNow();
+			aScheduler = null;
+		}
+
+		passivateSessions(Long.MAX_VALUE);
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("%s[passivated: %d (avg %d us, max %d us), " +
+							 "activated: %d (avg %d us, max %d us)]",
+							 getClass().getSimpleName(),
+							 getPassivationCount(),
+							 getAveragePassivationTime(),
+							 getMaxPassivationTime(),
+							 getActivationCount(),
+							 getAverageActivationTime(),
+							 getMaxActivationTime());
+	}
+
+	/***************************************
+	 * Activates a session if it has been passivated. Invoked by the registry
+	 * on each session access.
+	 *
+	 * @param  rEntry The registry entry of the session
+	 *
+	 * @return TRUE if the session is active, FALSE if the activation failed
+	 */
+	boolean activate(SessionRegistry.SessionEntry rEntry)
+	{
+		synchronized (rEntry)
+		{
+			String sStoreKey = rEntry.sStoreKey;
+
+			if (sStoreKey == null)
+			{
+				return true;
+			}
+
+			rEntry.sStoreKey = null;
+
+			return load(sStoreKey, rEntry.rSessionData, null);
+		}
+	}
+
+	/***************************************
+	 * Discards the passivated state of a session. Invoked by the registry if
+	 * a session is removed.
+	 *
+	 * @param rEntry The registry entry of the session
+	 */
+	void discard(SessionRegistry.SessionEntry rEntry)
+	{
+		synchronized (rEntry)
+		{
+			if (rEntry.sStoreKey != null)
+			{
+				removeRecord(rEntry.sStoreKey);
+				rEntry.sStoreKey = null;
+			}
+		}
+	}
+
+	/***************************************
+	 * Invoked periodically by the background thread to passivate idle
+	 * sessions.
+	 */
+	private void checkSessions()
+	{
+		try
+		{
+			passivateIdleSessions();
+		}
+		catch (Exception e)
+		{
+			Log.error("Session passivation failed", e);
+		}
+	}
+
+	/***************************************
+	 * Returns the fraction of the maximum heap that is currently in use.
+	 *
+	 * @return The heap usage between 0 and 1
+	 */
+	private float getHeapUsage()
+	{
+		Runtime rRuntime = Runtime.getRuntime();
+
+		long nUsed = rRuntime.totalMemory() - rRuntime.freeMemory();
+
+		return (float) nUsed / rRuntime.maxMemory();
+	}
+
+	/***************************************
+	 * Loads the passivated relations of a session from the session store and
+	 * removes the stored record. If an owner is given a record of a different
+	 * owner will be ignored and kept in the store.
+	 *
+	 * @param  sStoreKey    The key of the session in the store
+	 * @param  rSessionData The session data to set the relations in
+	 * @param  sOwner       The login name of the required owner or NULL to
+	 *                      skip the owner check
+	 *
+	 * @return TRUE if a session record has been loaded, FALSE if no record
+	 *         exists, if it has a different owner, or if loading failed
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean load(String		 sStoreKey,
+						 SessionData rSessionData,
+						 String		 sOwner)
+	{
+		long		  nStart = System.nanoTime();
+		SessionRecord rRecord;
+
+		try
+		{
+			rRecord = rStore.load(sStoreKey);
+		}
+		catch (IOException e)
+		{
+			Log.errorf(e, "Session activation failed: %s", sStoreKey);
+			removeRecord(sStoreKey);
+
+			return false;
+		}
+
+		if (rRecord == null)
+		{
+			return false;
+		}
+
+		if (sOwner != null && !sOwner.equals(rRecord.getOwner()))
+		{
+			Log.warnf("Session %s not restored for different user %s",
+					  sStoreKey,
+					  sOwner);
+
+			return false;
+		}
+
+		Map<String, Serializable> rValues = rRecord.getValues();
+
+		for (RelationType<?> rType : aPassivatedTypes)
+		{
+			Object rValue = rValues.get(rType.getName());
+
+			if (rValue != null)
+			{
+				rSessionData.set((RelationType<Object>) rType, rValue);
+			}
+		}
+
+		removeRecord(sStoreKey);
+
+		long nTime = System.nanoTime() - nStart;
+
+		aActivationCount.increment();
+		aActivationTime.add(nTime);
+		aMaxActivation.accumulate(nTime);
+
+		return true;
+	}
+
+	/***************************************
+	 * Passivates a session if it is still idle. The idle state is checked
+	 * again while holding the lock of the registry entry so that a session
+	 * that is accessed concurrently will not be passivated. The stored
+	 * relations are deleted from the session data so that they will only be
+	 * available again after the session has been activated by a lookup through
+	 * the registry (see the class documentation).
+	 *
+	 * @param rEntry         The registry entry of the session
+	 * @param nMinLastAccess The minimum last access time of active sessions
+	 */
+	private void passivate(
+		SessionRegistry.SessionEntry rEntry,
+		long						 nMinLastAccess)
+	{
+		synchronized (rEntry)
+		{
+			if (rEntry.sStoreKey != null ||
+				rEntry.nLastAccess >= nMinLastAccess)
+			{
+				return;
+			}
+
+			long		nStart		 = System.nanoTime();
+			String		sStoreKey    = rEntry.sSessionId;
+			SessionData rSessionData = rEntry.rSessionData;
+
+			Map<String, Serializable> aValues = new HashMap<>();
+			List<RelationType<?>>     aTypes  = new ArrayList<>();
+
+			for (RelationType<?> rType : aPassivatedTypes)
+			{
+				Object rValue = rSessionData.get(rType);
+
+				if (rValue instanceof Serializable)
+				{
+					aValues.put(rType.getName(), (Serializable) rValue);
+					aTypes.add(rType);
+				}
+			}
+
+			if (aValues.isEmpty())
+			{
+				return;
+			}
+
+			try
+			{
+				rStore.store(
+					sStoreKey,
+					new SessionRecord(
+						rSessionData.get(SessionData.SESSION_LOGIN_NAME),
+						aValues));
+			}
+			catch (IOException e)
+			{
+				Log.warnf(e, "Session passivation failed: %s", rSessionData);
+				removeRecord(sStoreKey);
+
+				return;
+			}
+
+			for (RelationType<?> rType : aTypes)
+			{
+				rSessionData.deleteRelation(rType);
+			}
+
+			rEntry.sStoreKey = sStoreKey;
+
+			long nTime = System.nanoTime() - nStart;
+
+			aPassivationCount.increment();
+			aPassivationTime.add(nTime);
+			aMaxPassivation.accumulate(nTime);
+		}
+	}
+
+	/***************************************
+	 * Passivates all sessions that have not been accessed since a certain
+	 * time.
+	 *
+	 * @param nMinLastAccess The minimum last access time of active sessions
+	 */
+	private void passivateSessions(long nMinLastAccess)
+	{
+		for (SessionRegistry.SessionEntry rEntry : rRegistry.getEntries())
+		{
+			if (rEntry.nLastAccess < nMinLastAccess)
+			{
+				passivate(rEntry, nMinLastAccess);
+			}
+		}
+	}
+
+	/***************************************
+	 * Removes a session record from the session store.
+	 *
+	 * @param sStoreKey The key of the session in the store
+	 */
+	private void removeRecord(String sStoreKey)
+	{
+		try
+		{
+			rStore.remove(sStoreKey);
+		}
+		catch (IOException e)
+		{
+			Log.warnf(e, "Could not remove session record %s", sStoreKey);
+		}
+	}
+}
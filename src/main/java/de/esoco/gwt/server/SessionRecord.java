@@ -0,0 +1,297 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/********************************************************************
+ * The stored state of a session that consists of the serializable values of
+ * session relations, mapped by the names of the relation types, and the login
+ * name of the user that owns the session. Records are written in a versioned
+ * format so that stores can detect records that have been written by an
+ * incompatible version of the application.
+ *
+ * <p>Because records may be read from a shared store only classes from the
+ * packages that have been allowed with {@link #allowPackage(String)} will be
+ * deserialized. By default these are the packages of the JDK collections and
+ * value types and the packages of esoco and ObjectRelations.</p>
+ *
+ * @author eso
+ */
+public class SessionRecord
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	/** The version of the record format that is written by this class. */
+	public static final int CURRENT_VERSION = 2;
+
+	private static final List<String> aAllowedPackages =
+		new CopyOnWriteArrayList<>(
+			Arrays.asList(
+				"java.lang",
+				"java.math",
+				"java.time",
+				"java.util",
+				"java.util.concurrent.*",
+				"de.esoco.*",
+				"org.obrel.*"));
+
+	//~ Instance fields --------------------------------------------------------
+
+	private final String				    sOwner;
+	private final Map<String, Serializable> aValues;
+
+	//~ Constructors -----------------------------------------------------------
+
+	/***************************************
+	 * Creates a new instance.
+	 *
+	 * @param sOwner  The login name of the user that owns the session or NULL
+	 *                for none
+	 * @param rValues A mapping from relation type names to relation values
+	 */
+	public SessionRecord(String sOwner, Map<String, Serializable> rValues)
+	{
+		this.sOwner = sOwner;
+		aValues     = new HashMap<>(rValues);
+	}
+
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Allows the deserialization of the classes in a certain package. A
+	 * package name that ends with '.*' allows all sub-packages too.
+	 *
+	 * @param sPackage The package name
+	 */
+	public static void allowPackage(String sPackage)
+	{
+		aAllowedPackages.add(sPackage);
+	}
+
+	/***************************************
+	 * Reads a session record from an input stream. Records of version 1 have
+	 * no owner.
+	 *
+	 * @param  rInput The input stream
+	 *
+	 * @return The session record
+	 *
+	 * @throws IOException If reading fails, if the record has an unsupported
+	 *                     version, or if it contains a class that is not
+	 *                     allowed
+	 */
+	@SuppressWarnings("unchecked")
+	public static SessionRecord read(InputStream rInput) throws IOException
+	{
+		ObjectInputStream rIn	   = new AllowedClassesInputStream(rInput);
+		int				  nVersion = rIn.readInt();
+		String			  sOwner   = null;
+
+		if (nVersion < 1 || nVersion > CURRENT_VERSION)
+		{
+			throw new IOException("Unsupported session record version: " +
+								  nVersion);
+		}
+
+		if (nVersion >= 2 && rIn.readBoolean())
+		{
+			sOwner = rIn.readUTF();
+		}
+
+		try
+		{
+			return new SessionRecord(sOwner,
+									 (Map<String, Serializable>)
+									 rIn.readObject());
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Incompatible session record", e);
+		}
+	}
+
+	/***************************************
+	 * Checks whether the deserialization of a certain class is allowed.
+	 *
+	 * @param  sClassName The class name, possibly an array type descriptor
+	 *
+	 * @return TRUE if the class is allowed
+	 */
+	static boolean isAllowed(String sClassName)
+	{
+		String sName = sClassName;
+
+		if (sName.startsWith("["))
+		{
+			sName = sName.substring(sName.lastIndexOf('[') + 1);
+
+			if (sName.length() == 1)
+			{
+				// array of a primitive type
+				return true;
+			}
+
+			sName = sName.substring(1, sName.length() - 1);
+		}
+
+		int    nPackageEnd = sName.lastIndexOf('.');
+		String sPackage    =
+			nPackageEnd > 0 ? sName.substring(0, nPackageEnd) : "";
+
+		for (String sAllowed : aAllowedPackages)
+		{
+			boolean bAllowed;
+
+			if (sAllowed.endsWith(".*"))
+			{
+				String sBase = sAllowed.substring(0, sAllowed.length() - 2);
+
+				bAllowed =
+					sPackage.equals(sBase) || sPackage.startsWith(sBase + ".");
+			}
+			else
+			{
+				bAllowed = sPackage.equals(sAllowed);
+			}
+
+			if (bAllowed)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Returns the login name of the user that owns the session of this record.
+	 *
+	 * @return The owner's login name or NULL for none
+	 */
+	public String getOwner()
+	{
+		return sOwner;
+	}
+
+	/***************************************
+	 * Returns the relation values of this record.
+	 *
+	 * @return A mapping from relation type names to relation values
+	 */
+	public Map<String, Serializable> getValues()
+	{
+		return Collections.unmodifiableMap(aValues);
+	}
+
+	/***************************************
+	 * Writes this record in the current version to an output stream.
+	 *
+	 * @param  rOutput The output stream
+	 *
+	 * @throws IOException If writing fails
+	 */
+	public void write(OutputStream rOutput) throws IOException
+	{
+		ObjectOutputStream rOut = new ObjectOutputStream(rOutput);
+
+		rOut.writeInt(CURRENT_VERSION);
+		rOut.writeBoolean(sOwner != null);
+
+		if (sOwner != null)
+		{
+			rOut.writeUTF(sOwner);
+		}
+
+		rOut.writeObject(aValues);
+		rOut.flush();
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * An object input stream that only resolves the classes that are allowed
+	 * by {@link SessionRecord#isAllowed(String)} and no proxy classes.
+	 *
+	 * @author eso
+	 */
+	private static class AllowedClassesInputStream extends ObjectInputStream
+	{
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param  rInput The input stream to read from
+		 *
+		 * @throws IOException If reading the stream header fails
+		 */
+		AllowedClassesInputStream(InputStream rInput) throws IOException
+		{
+			super(rInput);
+		}
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass rDescriptor)
+			throws IOException, ClassNotFoundException
+		{
+			String sName = rDescriptor.getName();
+
+			if (!isAllowed(sName))
+			{
+				throw new InvalidClassException(
+					sName,
+					"Not allowed in session records");
+			}
+
+			return super.resolveClass(rDescriptor);
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Class<?> resolveProxyClass(String[] rInterfaces)
+			throws IOException, ClassNotFoundException
+		{
+			throw new InvalidClassException("Proxy classes are not allowed " +
+											"in session records");
+		}
+	}
+}
@@ -0,0 +1,507 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.data.SessionData;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/********************************************************************
+ * A thread-safe registry of the {@link SessionData} of all authenticated
+ * client sessions, keyed by the HTTP session ID. Lookups are lock-free and
+ * updates only lock the affected bin of the underlying concurrent map so that
+ * the registry can be accessed by all request threads of a servlet context
+ * without additional synchronization. All state of a session is kept in a
+ * single entry of the map so that each update of the registry is atomic.
+ *
+ * <p>The registry also counts the sessions that have been added, removed, and
+ * re-keyed since it has been created. Together with the current size these
+ * counters allow to monitor the session churn of an application.</p>
+ *
+ * <p>If a {@link SessionPassivator} has been set the registry records the
+ * time of the last access to each session and activates passivated sessions
+ * when they are accessed through {@link #get(String)} or through the keyed
+ * lookup of the {@link #getSessionMap() session map}. The relations of a
+ * passivated session are deleted from its session data until it is
+ * activated again. Therefore code that needs these relations must always
+ * look up the session data through the registry instead of keeping a
+ * reference to it or iterating over the {@link #getSessions() sessions}, which
+ * will not activate passivated sessions.</p>
+ *
+ * @author eso
+ */
+public class SessionRegistry
+{
+	//~ Instance fields --------------------------------------------------------
+
+	private final Map<String, SessionEntry> aEntries =
+		new ConcurrentHashMap<>();
+
+	private final Map<String, SessionData> aSessionMap = new SessionMap();
+
+	private volatile SessionPassivator rPassivator;
+
+	private final LongAdder aAddedCount   = new LongAdder();
+	private final LongAdder aRemovedCount = new LongAdder();
+	private final LongAdder aRekeyedCount = new LongAdder();
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Returns the session data that is registered for a certain session ID.
+	 * If the session has been passivated it will be activated. If the
+	 * activation fails the session will be removed from this registry.
+	 *
+	 * @param  sSessionId The session ID
+	 *
+	 * @return The session data or NULL if no session is registered for the ID
+	 */
+	public SessionData get(String sSessionId)
+	{
+		SessionEntry rEntry = aEntries.get(sSessionId);
+
+		if (rEntry == null)
+		{
+			return null;
+		}
+
+		rEntry.nLastAccess = System.currentTimeMillis();
+
+		SessionPassivator rCurrentPassivator = rPassivator;
+
+		if (rCurrentPassivator != null &&
+			!rCurrentPassivator.activate(rEntry))
+		{
+			remove(sSessionId);
+
+			return null;
+		}
+
+		return rEntry.rSessionData;
+	}
+
+	/***************************************
+	 * Returns the number of sessions that have been added to this registry.
+	 *
+	 * @return The added session count
+	 */
+	public long getAddedCount()
+	{
+		return aAddedCount.sum();
+	}
+
+	/***************************************
+	 * Returns the session passivator of this registry.
+	 *
+	 * @return The session passivator or NULL for none
+	 */
+	public SessionPassivator getPassivator()
+	{
+		return rPassivator;
+	}
+
+	/***************************************
+	 * Returns the number of sessions that have been re-keyed in this registry.
+	 *
+	 * @return The re-keyed session count
+	 *
+	 * @see    #rekey(String, String, String)
+	 */
+	public long getRekeyedCount()
+	{
+		return aRekeyedCount.sum();
+	}
+
+	/***************************************
+	 * Returns the number of sessions that have been removed from this
+	 * registry.
+	 *
+	 * @return The removed session count
+	 */
+	public long getRemovedCount()
+	{
+		return aRemovedCount.sum();
+	}
+
+	/***************************************
+	 * Returns a live, weakly consistent view of the sessions of this registry
+	 * as a map from session IDs to session data. Putting and removing
+	 * sessions through the returned map will be delegated to the methods of
+	 * the registry. Looking up a session with {@link Map#get(Object)} will
+	 * activate it like {@link #get(String)} but the values returned by the
+	 * iteration of the map contain no passivated relations. This method is
+	 * only intended to publish the sessions to code that expects a map.
+	 *
+	 * @return The session map
+	 */
+	public Map<String, SessionData> getSessionMap()
+	{
+		return aSessionMap;
+	}
+
+	/***************************************
+	 * Returns a live, weakly consistent view of all registered sessions.
+	 * Passivated sessions will not be activated by this view and therefore
+	 * don't contain the passivated relations. Code that needs these must
+	 * query the session data with {@link #get(String)}.
+	 *
+	 * @return The registered session data
+	 */
+	public Collection<SessionData> getSessions()
+	{
+		return aSessionMap.values();
+	}
+
+	/***************************************
+	 * Registers the session data for a certain session ID. An existing
+	 * registration for the same ID will be replaced.
+	 *
+	 * @param sSessionId   The session ID
+	 * @param rSessionData The session data
+	 */
+	public void put(String sSessionId, SessionData rSessionData)
+	{
+		SessionEntry aEntry    = new SessionEntry(sSessionId, rSessionData);
+		SessionEntry rPrevious = aEntries.put(sSessionId, aEntry);
+
+		if (rPrevious == null)
+		{
+			aAddedCount.increment();
+		}
+		else
+		{
+			discard(rPrevious);
+		}
+	}
+
+	/***************************************
+	 * Moves the session data that is registered for a previous session ID to
+	 * a new session ID. The previous registration is removed atomically so
+	 * that concurrent invocations for the same ID will move the session data
+	 * only once. If session data is already registered for the new ID it will
+	 * be kept and the previous session data will be discarded.
+	 *
+	 * <p>The previous session will only be moved if it belongs to the user
+	 * with the given login name. Otherwise it remains registered and the
+	 * session data for the new ID will be returned unchanged.</p>
+	 *
+	 * <p>If no session is registered for the previous ID but a session
+	 * passivator has been set the session will be restored from the session
+	 * store if it belongs to the same user. This allows clients to continue
+	 * sessions that have been stored by another node or before a restart of
+	 * the application.</p>
+	 *
+	 * @param  sPreviousId The previous session ID
+	 * @param  sNewId      The new session ID
+	 * @param  sLoginName  The login name of the user that requests the session
+	 *
+	 * @return The session data that is registered for the new ID after the
+	 *         invocation or NULL for none
+	 */
+	public SessionData rekey(String sPreviousId,
+							 String sNewId,
+							 String sLoginName)
+	{
+		SessionEntry rPrevious = aEntries.get(sPreviousId);
+
+		if (rPrevious != null)
+		{
+			String sOwner =
+				rPrevious.rSessionData.get(SessionData.SESSION_LOGIN_NAME);
+
+			if (sLoginName == null || !sLoginName.equals(sOwner) ||
+				!aEntries.remove(sPreviousId, rPrevious))
+			{
+				return get(sNewId);
+			}
+
+			rPrevious.sSessionId = sNewId;
+		}
+		else
+		{
+			SessionPassivator rCurrentPassivator = rPassivator;
+			SessionData		  rRestored			 =
+				rCurrentPassivator != null
+				? rCurrentPassivator.restore(sPreviousId, sLoginName) : null;
+
+			if (rRestored == null)
+			{
+				return get(sNewId);
+			}
+
+			rPrevious = new SessionEntry(sNewId, rRestored);
+		}
+
+		SessionEntry rCurrent = aEntries.putIfAbsent(sNewId, rPrevious);
+
+		aRekeyedCount.increment();
+
+		if (rCurrent != null)
+		{
+			aRemovedCount.increment();
+			discard(rPrevious);
+		}
+
+		return get(sNewId);
+	}
+
+	/***************************************
+	 * Removes the session data for a certain session ID.
+	 *
+	 * @param  sSessionId The session ID
+	 *
+	 * @return The removed session data or NULL if no session had been
+	 *         registered for the ID
+	 */
+	public SessionData remove(String sSessionId)
+	{
+		SessionEntry rEntry		  = aEntries.remove(sSessionId);
+		SessionData  rSessionData = null;
+
+		if (rEntry != null)
+		{
+			aRemovedCount.increment();
+			discard(rEntry);
+			rSessionData = rEntry.rSessionData;
+		}
+
+		return rSessionData;
+	}
+
+	/***************************************
+	 * Sets the session passivator of this registry.
+	 *
+	 * @param rPassivator The session passivator or NULL for none
+	 */
+	public void setPassivator(SessionPassivator rPassivator)
+	{
+		this.rPassivator = rPassivator;
+	}
+
+	/***************************************
+	 * Returns the number of currently registered sessions.
+	 *
+	 * @return The session count
+	 */
+	public int size()
+	{
+		return aEntries.size();
+	}
+
+	/***************************************
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("%s[size: %d, added: %d, removed: %d, rekeyed: %d]",
+							 getClass().getSimpleName(),
+							 size(),
+							 getAddedCount(),
+							 getRemovedCount(),
+							 getRekeyedCount());
+	}
+
+	/***************************************
+	 * Returns a live, weakly consistent view of the entries of this registry.
+	 *
+	 * @return The registry entries
+	 */
+	Collection<SessionEntry> getEntries()
+	{
+		return aEntries.values();
+	}
+
+	/***************************************
+	 * Discards the passivated state of a registry entry that is no longer
+	 * needed.
+	 *
+	 * @param rEntry The registry entry
+	 */
+	private void discard(SessionEntry rEntry)
+	{
+		SessionPassivator rCurrentPassivator = rPassivator;
+
+		if (rCurrentPassivator != null)
+		{
+			rCurrentPassivator.discard(rEntry);
+		}
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * A registry entry that holds the data and the passivation state of a
+	 * session. The passivation state, i.e. the key under which the session
+	 * has been passivated in the session store, is guarded by the entry's
+	 * monitor.
+	 *
+	 * @author eso
+	 */
+	static class SessionEntry
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final SessionData rSessionData;
+		volatile String   sSessionId;
+		volatile long     nLastAccess = System.currentTimeMillis();
+		String			  sStoreKey;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param sSessionId   The current session ID
+		 * @param rSessionData The session data
+		 */
+		SessionEntry(String sSessionId, SessionData rSessionData)
+		{
+			this.sSessionId   = sSessionId;
+			this.rSessionData = rSessionData;
+		}
+	}
+
+	/********************************************************************
+	 * A map view of the registry entries that maps session IDs to the
+	 * session data. Modifications are delegated to the registry methods.
+	 *
+	 * @author eso
+	 */
+	private class SessionMap extends AbstractMap<String, SessionData>
+	{
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean containsKey(Object rKey)
+		{
+			return aEntries.containsKey(rKey);
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Set<Entry<String, SessionData>> entrySet()
+		{
+			return new AbstractSet<Entry<String, SessionData>>()
+			{
+				@Override
+				public Iterator<Entry<String, SessionData>> iterator()
+				{
+					Iterator<Entry<String, SessionEntry>> rEntries =
+						aEntries.entrySet().iterator();
+
+					return new Iterator<Entry<String, SessionData>>()
+					{
+						private String sCurrentId;
+
+						@Override
+						public boolean hasNext()
+						{
+							return rEntries.hasNext();
+						}
+
+						@Override
+						public Entry<String, SessionData> next()
+						{
+							Entry<String, SessionEntry> rEntry =
+								rEntries.next();
+
+							sCurrentId = rEntry.getKey();
+
+							return new SimpleImmutableEntry<>(
+								sCurrentId,
+								rEntry.getValue().rSessionData);
+						}
+
+						@Override
+						public void remove()
+						{
+							if (sCurrentId == null)
+							{
+								throw new IllegalStateException();
+							}
+
+							SessionRegistry.this.remove(sCurrentId);
+							sCurrentId = null;
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return aEntries.size();
+				}
+			};
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public SessionData get(Object rKey)
+		{
+			return rKey instanceof String
+				   ? SessionRegistry.this.get((String) rKey) : null;
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public SessionData put(String sKey, SessionData rValue)
+		{
+			SessionEntry rPrevious = aEntries.get(sKey);
+
+			SessionRegistry.this.put(sKey, rValue);
+
+			return rPrevious != null ? rPrevious.rSessionData : null;
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public SessionData remove(Object rKey)
+		{
+			return rKey instanceof String
+				   ? SessionRegistry.this.remove((String) rKey) : null;
+		}
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int size()
+		{
+			return aEntries.size();
+		}
+	}
+}
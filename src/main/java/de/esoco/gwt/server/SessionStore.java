@@ -0,0 +1,71 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.IOException;
+
+
+/********************************************************************
+ * A service provider interface for the storage of session state outside of
+ * the heap of a servlet container. A session store holds {@link
+ * SessionRecord SessionRecords} by session ID. It is used by the {@link
+ * SessionPassivator} to passivate idle sessions and to restore sessions that
+ * have been stored by another node or before a restart of the application.
+ * Implementations that access a store which is shared between multiple nodes
+ * allow to scale out an application without sticky sessions.
+ *
+ * <p>Implementations must be thread-safe.</p>
+ *
+ * @author eso
+ */
+public interface SessionStore
+{
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Loads the record of a certain session.
+	 *
+	 * @param  sSessionId The session ID
+	 *
+	 * @return The session record or NULL if no record has been stored for the
+	 *         session ID
+	 *
+	 * @throws IOException If loading the record fails
+	 */
+	public SessionRecord load(String sSessionId) throws IOException;
+
+	/***************************************
+	 * Removes the record of a certain session if it exists.
+	 *
+	 * @param  sSessionId The session ID
+	 *
+	 * @throws IOException If removing the record fails
+	 */
+	public void remove(String sSessionId) throws IOException;
+
+	/***************************************
+	 * Stores the record of a certain session. An existing record for the same
+	 * session ID will be replaced.
+	 *
+	 * @param  sSessionId The session ID
+	 * @param  rRecord    The session record
+	 *
+	 * @throws IOException If storing the record fails
+	 */
+	public void store(String sSessionId, SessionRecord rRecord)
+		throws IOException;
+}
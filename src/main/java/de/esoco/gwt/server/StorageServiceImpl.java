@@ -21,6 +21,8 @@ import de.esoco.data.DownloadData;
 import de.esoco.data.FileType;
 import de.esoco.data.SessionData;
 import de.esoco.data.document.TabularDocumentWriter;
+import de.esoco.data.element.DataElement;
+import de.esoco.data.element.DataElementList;
 import de.esoco.data.element.QueryResultElement;
 import de.esoco.data.element.StringDataElement;
 import de.esoco.data.storage.StorageAdapter;
@@ -29,33 +31,62 @@ import de.esoco.data.storage.StorageAdapterRegistry;
 
 import de.esoco.entity.Entity;
 
+import de.esoco.gwt.server.QueryMetrics.Phase;
 import de.esoco.gwt.shared.AuthenticationException;
 import de.esoco.gwt.shared.ServiceException;
 import de.esoco.gwt.shared.StorageService;
 
 import de.esoco.lib.expression.Functions;
+import de.esoco.lib.logging.Log;
 import de.esoco.lib.model.ColumnDefinition;
 import de.esoco.lib.model.DataModel;
+import de.esoco.lib.property.SortDirection;
 
 import de.esoco.storage.StorageException;
 import de.esoco.storage.StorageManager;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import java.math.BigDecimal;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.obrel.core.RelationType;
 import org.obrel.core.RelationTypes;
 
+import com.google.gwt.user.server.rpc.RemoteServiceServlet;
+
 import static de.esoco.lib.property.ContentProperties.FILE_NAME;
+import static de.esoco.lib.property.StorageProperties.QUERY_LIMIT;
+import static de.esoco.lib.property.StorageProperties.QUERY_SEARCH;
+import static de.esoco.lib.property.StorageProperties.QUERY_SORT;
+import static de.esoco.lib.property.StorageProperties.QUERY_START;
 
 import static org.obrel.core.RelationTypes.newMapType;
+import static org.obrel.core.RelationTypes.newType;
 
 
 /********************************************************************
@@ -69,12 +100,52 @@ public abstract class StorageServiceImpl<E extends Entity>
 {
 	//~ Static fields/initializers ---------------------------------------------
 
+	/**
+	 * The name under which the serialization of query batch results is
+	 * recorded in the query metrics instead of an entity type name.
+	 */
+	public static final String QUERY_BATCH_METRICS_NAME = "QueryBatch";
+
 	private static final long serialVersionUID = 1L;
 
 	// relation type to store the storage adapters for a session
 	private static final RelationType<Map<StorageAdapterId, StorageAdapter>> STORAGE_ADAPTER_MAP =
 		newMapType(false);
 
+	// relation type to store the query cursor registry for a session
+	private static final RelationType<QueryCursorRegistry> QUERY_CURSOR_REGISTRY =
+		newType();
+
+	// relation type to store the table exports of a session that have not
+	// been downloaded yet
+	private static final RelationType<Set<TableDownloadProducer>> SESSION_EXPORTS =
+		newType();
+
+	private static final int DOWNLOAD_CHUNK_SIZE	   = 1000;
+	private static final int QUERY_BATCH_THREADS	   = 4;
+	private static final int MAX_PENDING_BATCH_QUERIES = 64;
+	private static final int EXPORT_THREADS			   = 2;
+	private static final int MAX_PENDING_EXPORTS	   = 16;
+
+	private static final ExecutorService aQueryBatchExecutor =
+		createExecutor(
+			"QueryBatch",
+			QUERY_BATCH_THREADS,
+			MAX_PENDING_BATCH_QUERIES,
+			new ThreadPoolExecutor.CallerRunsPolicy());
+
+	private static final ExecutorService aExportExecutor =
+		createExecutor(
+			"TableExport",
+			EXPORT_THREADS,
+			MAX_PENDING_EXPORTS,
+			new ThreadPoolExecutor.AbortPolicy());
+
+	// the query timing of the current request thread for the measurement of
+	// the result serialization
+	private static final ThreadLocal<QueryTiming> aQueryTiming =
+		new ThreadLocal<>();
+
 	private static long nNextStorageAdapterId = 1;
 
 	static
@@ -86,6 +157,11 @@ public abstract class StorageServiceImpl<E extends Entity>
 
 	private Set<String> aInvalidStorageAdapters;
 
+	private final Map<String, TableDownloadProducer> aRunningExports =
+		new HashMap<>();
+
+	private volatile ClientNotificationService rNotificationService;
+
 	//~ Constructors -----------------------------------------------------------
 
 	/***************************************
@@ -98,6 +174,51 @@ public abstract class StorageServiceImpl<E extends Entity>
 			this);
 	}
 
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Creates a bounded executor with daemon threads for the background tasks
+	 * of this service.
+	 *
+	 * @param  sThreadName    The name of the executor threads
+	 * @param  nThreads       The maximum number of threads
+	 * @param  nMaxPending    The maximum number of pending tasks
+	 * @param  rRejectHandler The handler for tasks that exceed the maximum
+	 *                        number of pending tasks
+	 *
+	 * @return The new executor
+	 */
+	private static ExecutorService createExecutor(
+		String					 sThreadName,
+		int						 nThreads,
+		int						 nMaxPending,
+		RejectedExecutionHandler rRejectHandler)
+	{
+		ThreadFactory fCreateThread =
+			rTask ->
+			{
+				Thread aThread = new Thread(rTask, sThreadName);
+
+				aThread.setDaemon(true);
+
+				return aThread;
+			};
+
+		ThreadPoolExecutor aExecutor =
+			new ThreadPoolExecutor(
+				nThreads,
+				nThreads,
+				60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(nMaxPending),
+				fCreateThread,
+				rRejectHandler);
+
+		aExecutor.allowCoreThreadTimeOut(true);
+
+		return aExecutor;
+	}
+
 	//~ Methods ----------------------------------------------------------------
 
 	/***************************************
@@ -111,7 +232,20 @@ public abstract class StorageServiceImpl<E extends Entity>
 	}
 
 	/***************************************
-	 * Handles the {@link StorageService#PREPARE_DOWNLOAD} command.
+	 * Handles the {@link StorageService#PREPARE_DOWNLOAD} command. The query
+	 * will not be executed by this method. Instead the download data will
+	 * contain a {@link DownloadProducer} that queries the rows in chunks in a
+	 * background job and writes the resulting document to a temporary file.
+	 * The file will be copied to the download response when the download is
+	 * requested (after waiting for the job to finish if necessary) and then
+	 * deleted. If the same download is requested again while
+	 * the job is still running the URL of the running job will be returned.
+	 * If a notification service has been set with {@link
+	 * #setNotificationService(ClientNotificationService)} it will be used to
+	 * notify the clients of the current session of the job progress. If the
+	 * storage adapter is a {@link DatabaseStorageAdapter} the rows will be
+	 * queried from a copy of it so that the export doesn't interfere with the
+	 * interactive queries of the adapter.
 	 *
 	 * @param  rQueryParams A data element list containing the query parameters
 	 *
@@ -125,16 +259,27 @@ public abstract class StorageServiceImpl<E extends Entity>
 		String		   sAdapterId = rQueryParams.getName();
 		String		   sFileName  = rQueryParams.getProperty(FILE_NAME, null);
 		StorageAdapter rAdapter   = checkStorageAdapter(sAdapterId);
+		String		   sSessionId =
+			getThreadLocalRequest().getSession().getId();
 
-		QueryResultElement<DataModel<String>> rQueryData =
-			rAdapter.performQuery(rQueryParams);
+		// adapter IDs are only unique in a session, therefore jobs must only
+		// be shared with requests from the same session
+		String sJobKey =
+			String.format(
+				"%s|%s|%s|%s|%s|%s|%s",
+				sSessionId,
+				sAdapterId,
+				sFileName,
+				rQueryParams.getProperty(QUERY_SEARCH, null),
+				rQueryParams.getProperty(QUERY_SORT, null),
+				rQueryParams.getIntProperty(QUERY_START, 0),
+				rQueryParams.getIntProperty(QUERY_LIMIT, 0));
 
-		TabularDocumentWriter<byte[]> aDocumentWriter =
-			createTableDownloadDocumentWriter();
+		FileType eFileType = createTableDownloadDocumentWriter().getFileType();
 
-		List<ColumnDefinition> rColumns = rAdapter.getColumns();
+		List<String> aColumnTitles = new ArrayList<>();
 
-		for (ColumnDefinition rColumn : rColumns)
+		for (ColumnDefinition rColumn : rAdapter.getColumns())
 		{
 			String sColumnTitle = rColumn.getTitle();
 
@@ -144,60 +289,51 @@ public abstract class StorageServiceImpl<E extends Entity>
 					getResourceString(sColumnTitle.substring(1), null);
 			}
 
-			aDocumentWriter.addValue(sColumnTitle);
+			aColumnTitles.add(sColumnTitle);
 		}
 
-		for (DataModel<String> rRow : rQueryData)
-		{
-			int nColumn = 0;
-
-			aDocumentWriter.newRow();
-
-			for (String sValue : rRow)
-			{
-				ColumnDefinition rColumn = rColumns.get(nColumn++);
-				Object			 rValue  = null;
-
-				if (sValue != null)
-				{
-					if (sValue.startsWith("$"))
-					{
-						rValue = getResourceString(sValue.substring(1), null);
-					}
-					else if (rColumn.getDatatype().endsWith("Date"))
-					{
-						rValue = new Date(Long.parseLong(sValue));
-					}
-					else if (rColumn.getDatatype().endsWith("BigDecimal"))
-					{
-						rValue = new BigDecimal(sValue);
-					}
-					else
-					{
-						rValue = sValue;
-					}
-				}
-
-				aDocumentWriter.addValue(rValue);
-			}
-		}
+		StorageAdapter rExportAdapter =
+			rAdapter instanceof DatabaseStorageAdapter
+			? ((DatabaseStorageAdapter) rAdapter).createExportAdapter()
+			: rAdapter;
 
-		byte[] aDocumentData = aDocumentWriter.createDocument();
+		TableDownloadProducer aProducer =
+			new TableDownloadProducer(rExportAdapter,
+									  rQueryParams,
+									  aColumnTitles,
+									  sSessionId,
+									  getSessionExports());
 
 		DownloadData aDownloadData =
 			new DownloadData(
 				sFileName != null ? sFileName : "download.xls",
-				aDocumentWriter.getFileType(),
-				Functions.<FileType, byte[]>value(aDocumentData),
+				eFileType,
+				Functions.<FileType, DownloadProducer>value(aProducer),
 				true);
 
-		return new StringDataElement(
-			"DownloadUrl",
-			prepareDownload(aDownloadData));
+		String sDownloadUrl;
+
+		synchronized (aRunningExports)
+		{
+			TableDownloadProducer rRunningExport =
+				aRunningExports.get(sJobKey);
+
+			if (rRunningExport == null)
+			{
+				rRunningExport = aProducer;
+				aProducer.start(sJobKey, aDownloadData);
+			}
+
+			sDownloadUrl = rRunningExport.sDownloadUrl;
+		}
+
+		return new StringDataElement("DownloadUrl", sDownloadUrl);
 	}
 
 	/***************************************
-	 * Handles the {@link StorageService#QUERY} command.
+	 * Handles the {@link StorageService#QUERY} command. The duration of the
+	 * request handling and of the serialization of the result will be recorded
+	 * in the query metrics registry of {@link DatabaseStorageAdapter}.
 	 *
 	 * @param  rQueryParams A data element list containing the query parameters
 	 *
@@ -209,9 +345,162 @@ public abstract class StorageServiceImpl<E extends Entity>
 		StringDataElement rQueryParams) throws Exception
 	{
 		String		   sAdapterId = rQueryParams.getName();
+		long		   nStartTime = System.nanoTime();
 		StorageAdapter rAdapter   = checkStorageAdapter(sAdapterId);
 
-		return rAdapter.performQuery(rQueryParams);
+		QueryResultElement<DataModel<String>> aResult =
+			rAdapter.performQuery(rQueryParams);
+
+		QueryTiming aTiming =
+			recordRequestTime(
+				rAdapter,
+				sAdapterId,
+				aResult.getElementCount(),
+				nStartTime);
+
+		if (aTiming != null)
+		{
+			aQueryTiming.set(aTiming);
+		}
+
+		return aResult;
+	}
+
+	/***************************************
+	 * Handles the {@link StorageService#QUERY_BATCH} command. The storage
+	 * adapters of all queries are resolved first because they are stored in
+	 * the session of the current request. Queries that don't depend on the
+	 * request context, i.e. queries of {@link DatabaseStorageAdapter
+	 * DatabaseStorageAdapters} without hierarchical children, are then
+	 * executed concurrently by background threads while the other queries
+	 * are executed in the request thread. A query that fails doesn't affect
+	 * the other queries of the batch. Instead of a result it's position in
+	 * the result list will contain an error element as described in {@link
+	 * StorageService#QUERY_BATCH}.
+	 *
+	 * <p>Like for single queries the request duration of each query will be
+	 * recorded in the query metrics registry. The serialization of the
+	 * complete batch result will be recorded for the entity type name
+	 * {@link #QUERY_BATCH_METRICS_NAME}.</p>
+	 *
+	 * @param  rQueries The list of query data elements
+	 *
+	 * @return A data element list containing the query results or errors in
+	 *         the order of the queries
+	 *
+	 * @throws Exception If executing the queries fails
+	 */
+	public DataElementList handleQueryBatch(DataElementList rQueries)
+		throws Exception
+	{
+		int  nCount		= rQueries.getElementCount();
+		long nStartTime = System.nanoTime();
+
+		List<StorageAdapter>		 aAdapters = new ArrayList<>(nCount);
+		List<DataElement<?>>		 aResults  = new ArrayList<>(nCount);
+		List<Future<DataElement<?>>> aFutures  = new ArrayList<>(nCount);
+
+		for (DataElement<?> rQuery : rQueries)
+		{
+			StorageAdapter rAdapter = null;
+			DataElement<?> rError   = null;
+
+			try
+			{
+				rAdapter = checkStorageAdapter(rQuery.getName());
+			}
+			catch (ServiceException | StorageException e)
+			{
+				rError = createQueryError(rQuery, e);
+			}
+
+			aAdapters.add(rAdapter);
+			aResults.add(rError);
+			aFutures.add(null);
+		}
+
+		try
+		{
+			for (int i = 0; i < nCount; i++)
+			{
+				StorageAdapter    rAdapter     = aAdapters.get(i);
+				StringDataElement rQueryParams =
+					(StringDataElement) rQueries.getElement(i);
+
+				if (rAdapter != null && isContextFree(rAdapter, rQueryParams))
+				{
+					aFutures.set(
+						i,
+						aQueryBatchExecutor.submit(
+							() ->
+								performBatchQuery(
+									rAdapter,
+									rQueryParams,
+									nStartTime)));
+				}
+			}
+
+			for (int i = 0; i < nCount; i++)
+			{
+				StorageAdapter rAdapter = aAdapters.get(i);
+
+				if (rAdapter != null && aFutures.get(i) == null)
+				{
+					aResults.set(
+						i,
+						performBatchQuery(
+							rAdapter,
+							(StringDataElement) rQueries.getElement(i),
+							nStartTime));
+				}
+			}
+
+			for (int i = 0; i < nCount; i++)
+			{
+				Future<DataElement<?>> rFuture = aFutures.get(i);
+
+				if (rFuture != null)
+				{
+					aResults.set(i, rFuture.get());
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			Throwable eCause = e.getCause();
+
+			throw eCause instanceof Exception ? (Exception) eCause : e;
+		}
+		finally
+		{
+			// stop the remaining queries if the batch has been interrupted
+			for (Future<?> rFuture : aFutures)
+			{
+				if (rFuture != null)
+				{
+					rFuture.cancel(true);
+				}
+			}
+		}
+
+		if (DatabaseStorageAdapter.getQueryMetrics() != null)
+		{
+			int nRows = 0;
+
+			for (DataElement<?> rResult : aResults)
+			{
+				if (rResult instanceof QueryResultElement)
+				{
+					nRows +=
+						((QueryResultElement<?>) rResult).getElementCount();
+				}
+			}
+
+			aQueryTiming.set(
+				new QueryTiming(QUERY_BATCH_METRICS_NAME, null, nRows));
+		}
+
+		return new DataElementList("QueryBatch", aResults);
 	}
 
 	/***************************************
@@ -228,9 +517,33 @@ public abstract class StorageServiceImpl<E extends Entity>
 
 		rAdapterMap.put(aId, rAdapter);
 
+		if (rAdapter instanceof DatabaseStorageAdapter)
+		{
+			DatabaseStorageAdapter rDbAdapter =
+				(DatabaseStorageAdapter) rAdapter;
+
+			rDbAdapter.setAdapterId(aId.toString());
+			rDbAdapter.setCursorRegistry(getQueryCursorRegistry());
+		}
+
 		return aId;
 	}
 
+	/***************************************
+	 * Sets the service that is used to notify clients of the progress of
+	 * table download jobs. The notifications are strings of the form
+	 * <code>&lt;type&gt; &lt;download URL&gt; &lt;row count&gt;</code> where
+	 * the type is one of {@link StorageService#EXPORT_PROGRESS}, {@link
+	 * StorageService#EXPORT_FINISHED}, or {@link
+	 * StorageService#EXPORT_FAILED}.
+	 *
+	 * @param rService The notification service or NULL for none
+	 */
+	public void setNotificationService(ClientNotificationService rService)
+	{
+		rNotificationService = rService;
+	}
+
 	/***************************************
 	 * Subclasses that want to provide a download option from UI tables must
 	 * implement this method to return an implementation of {@link
@@ -244,9 +557,102 @@ public abstract class StorageServiceImpl<E extends Entity>
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/***************************************
+	 * Can be implemented by subclasses to return a {@link
+	 * TabularDocumentWriter} that writes the document of a table download
+	 * incrementally to an output stream while the rows are added. This
+	 * allows to export large tables without creating the complete document
+	 * in memory. The writer must create documents of the same file type as
+	 * the writer returned by {@link #createTableDownloadDocumentWriter()}.
+	 * The default implementation returns NULL which causes the document to be
+	 * created with the latter and then written to the output stream.
+	 *
+	 * @param  rOutput The output stream to write the document to
+	 *
+	 * @return The streaming document writer or NULL for none
+	 */
+	protected TabularDocumentWriter<?> createTableDownloadDocumentWriter(
+		OutputStream rOutput)
+	{
+		return null;
+	}
+
+	/***************************************
+	 * Overridden to release the query cursors and to discard the table
+	 * exports of the ending session that have not been downloaded.
+	 *
+	 * @see AuthenticatedServiceImpl#endSession(SessionData)
+	 */
+	@Override
+	protected void endSession(SessionData rSessionData)
+	{
+		QueryCursorRegistry rRegistry = rSessionData.get(QUERY_CURSOR_REGISTRY);
+
+		Set<TableDownloadProducer> rExports = rSessionData.get(SESSION_EXPORTS);
+
+		if (rRegistry != null)
+		{
+			rRegistry.clear();
+		}
+
+		if (rExports != null)
+		{
+			for (TableDownloadProducer rExport : rExports)
+			{
+				rExport.discard();
+			}
+		}
+
+		super.endSession(rSessionData);
+	}
+
+	/***************************************
+	 * Overridden to record the serialization time of query results.
+	 *
+	 * @see #handleQuery(StringDataElement)
+	 */
+	@Override
+	protected void onAfterResponseSerialized(String sSerializedResponse)
+	{
+		QueryTiming  rTiming  = aQueryTiming.get();
+		QueryMetrics rMetrics = DatabaseStorageAdapter.getQueryMetrics();
+
+		if (rTiming != null)
+		{
+			aQueryTiming.remove();
+
+			if (rMetrics != null)
+			{
+				rMetrics.record(
+					Phase.SERIALIZATION,
+					rTiming.sEntityType,
+					rTiming.sAdapterId,
+					System.nanoTime() - rTiming.nStartTime,
+					rTiming.nRows);
+			}
+		}
+
+		super.onAfterResponseSerialized(sSerializedResponse);
+	}
+
+	/***************************************
+	 * Overridden to discard a query timing that remained from a previous
+	 * request because the serialization of it's result failed.
+	 *
+	 * @see RemoteServiceServlet#onBeforeRequestDeserialized(String)
+	 */
+	@Override
+	protected void onBeforeRequestDeserialized(String sSerializedRequest)
+	{
+		aQueryTiming.remove();
+
+		super.onBeforeRequestDeserialized(sSerializedRequest);
+	}
+
 	/***************************************
 	 * Retrieves a storage adapter for a certain adapter ID and throws an
-	 * exception if the ID is invalid.
+	 * exception if the ID is invalid. IDs of child adapters will be resolved
+	 * through their parent adapters.
 	 *
 	 * @param  sId The storage adapter ID
 	 *
@@ -258,7 +664,7 @@ public abstract class StorageServiceImpl<E extends Entity>
 	private StorageAdapter checkStorageAdapter(String sId)
 		throws ServiceException, StorageException
 	{
-		StorageAdapter rStorageAdapter = getStorageAdapter(sId);
+		StorageAdapter rStorageAdapter = resolveStorageAdapter(sId);
 
 		if (rStorageAdapter == null)
 		{
@@ -286,6 +692,108 @@ public abstract class StorageServiceImpl<E extends Entity>
 		return rStorageAdapter;
 	}
 
+	/***************************************
+	 * Logs the error of a failed query in a query batch and creates the
+	 * element that indicates the error in the batch result.
+	 *
+	 * @param  rQuery The query data element
+	 * @param  e      The error exception
+	 *
+	 * @return The error element
+	 */
+	private StringDataElement createQueryError(
+		DataElement<?> rQuery,
+		Exception	   e)
+	{
+		String sMessage = e.getMessage();
+
+		Log.warnf(e, "Batch query failed: %s", rQuery.getName());
+
+		return new StringDataElement(
+			QUERY_ERROR,
+			sMessage != null ? sMessage : e.getClass().getSimpleName());
+	}
+
+	/***************************************
+	 * Returns the query cursor registry for the current session. The registry
+	 * is shared by all storage adapters of the session so that the memory
+	 * used by query cursors is limited per session.
+	 *
+	 * @return The query cursor registry
+	 *
+	 * @throws StorageException If the client is not authenticated
+	 */
+	private QueryCursorRegistry getQueryCursorRegistry() throws StorageException
+	{
+		SessionData rSessionData;
+
+		try
+		{
+			rSessionData = getSessionData();
+		}
+		catch (AuthenticationException e)
+		{
+			throw new StorageException(e);
+		}
+
+		QueryCursorRegistry rRegistry = rSessionData.get(QUERY_CURSOR_REGISTRY);
+
+		if (rRegistry == null)
+		{
+			rRegistry = new QueryCursorRegistry();
+			rSessionData.set(QUERY_CURSOR_REGISTRY, rRegistry);
+		}
+
+		return rRegistry;
+	}
+
+	/***************************************
+	 * Returns the name of the entity type that is queried by a storage
+	 * adapter for the recording of query metrics.
+	 *
+	 * @param  rAdapter The storage adapter
+	 *
+	 * @return The entity type name or the adapter class name if the entity
+	 *         type is not known
+	 */
+	private String getQueryTypeName(StorageAdapter rAdapter)
+	{
+		Class<?> rType = null;
+
+		if (rAdapter instanceof DatabaseStorageAdapter)
+		{
+			rType = ((DatabaseStorageAdapter) rAdapter).getQueryType();
+		}
+
+		return rType != null ? rType.getSimpleName()
+							 : rAdapter.getClass().getSimpleName();
+	}
+
+	/***************************************
+	 * Returns the set of the table exports of the current session that have
+	 * not been downloaded yet.
+	 *
+	 * @return The set of session exports
+	 *
+	 * @throws AuthenticationException If the client is not authenticated
+	 */
+	private Set<TableDownloadProducer> getSessionExports()
+		throws AuthenticationException
+	{
+		SessionData rSessionData = getSessionData();
+
+		Set<TableDownloadProducer> rExports =
+			rSessionData.get(SESSION_EXPORTS);
+
+		if (rExports == null)
+		{
+			rExports = ConcurrentHashMap.newKeySet();
+			rSessionData.set(SESSION_EXPORTS, rExports);
+		}
+
+		return rExports;
+	}
+
 	/***************************************
 	 * Returns the storage adapter map for the current session.
 	 *
@@ -318,4 +826,694 @@ public abstract class StorageServiceImpl<E extends Entity>
 
 		return rAdapterMap;
 	}
+
+	/***************************************
+	 * Checks whether a query of a query batch can be performed without the
+	 * context of the current request and can therefore be executed by a
+	 * background thread. This is the case for queries of {@link
+	 * DatabaseStorageAdapter DatabaseStorageAdapters} that don't create child
+	 * data models which may need to access the session.
+	 *
+	 * @param  rAdapter     The storage adapter of the query
+	 * @param  rQueryParams The query parameters
+	 *
+	 * @return TRUE if the query can be performed in a background thread
+	 */
+	private boolean isContextFree(
+		StorageAdapter    rAdapter,
+		StringDataElement rQueryParams)
+	{
+		return rAdapter instanceof DatabaseStorageAdapter &&
+			   (!((DatabaseStorageAdapter) rAdapter).isHierarchical() ||
+				rQueryParams.getProperty(SKIP_CHILDREN, Boolean.FALSE));
+	}
+
+	/***************************************
+	 * Performs a single query of a query batch and records the duration
+	 * since the start of the batch as the request time of the query. If the
+	 * query fails the error will be logged and returned as an error element.
+	 *
+	 * @param  rAdapter     The storage adapter to perform the query with
+	 * @param  rQueryParams The query parameters
+	 * @param  nStartTime   The start time of the batch in nanoseconds
+	 *
+	 * @return The query result or an error element if the query failed
+	 */
+	private DataElement<?> performBatchQuery(
+		StorageAdapter    rAdapter,
+		StringDataElement rQueryParams,
+		long			  nStartTime)
+	{
+		try
+		{
+			QueryResultElement<DataModel<String>> aResult =
+				rAdapter.performQuery(rQueryParams);
+
+			recordRequestTime(
+				rAdapter,
+				rQueryParams.getName(),
+				aResult.getElementCount(),
+				nStartTime);
+
+			return aResult;
+		}
+		catch (Exception e)
+		{
+			return createQueryError(rQueryParams, e);
+		}
+	}
+
+	/***************************************
+	 * Records the request duration of a query in the query metrics registry
+	 * of {@link DatabaseStorageAdapter}.
+	 *
+	 * @param  rAdapter   The storage adapter that performed the query
+	 * @param  sAdapterId The storage adapter ID
+	 * @param  nRows      The number of result rows
+	 * @param  nStartTime The start time of the request in nanoseconds
+	 *
+	 * @return A query timing that can be used to record the serialization of
+	 *         the result or NULL if no query metrics are recorded
+	 */
+	private QueryTiming recordRequestTime(StorageAdapter rAdapter,
+										  String		 sAdapterId,
+										  int			 nRows,
+										  long			 nStartTime)
+	{
+		QueryMetrics rMetrics = DatabaseStorageAdapter.getQueryMetrics();
+		QueryTiming  aTiming  = null;
+
+		if (rMetrics != null)
+		{
+			aTiming =
+				new QueryTiming(getQueryTypeName(rAdapter), sAdapterId, nRows);
+
+			rMetrics.record(
+				Phase.REQUEST,
+				aTiming.sEntityType,
+				sAdapterId,
+				aTiming.nStartTime - nStartTime,
+				nRows);
+		}
+
+		return aTiming;
+	}
+
+	/***************************************
+	 * Resolves a storage adapter ID. If the ID refers to a child adapter of a
+	 * {@link DatabaseStorageAdapter} the parent adapter will be resolved
+	 * (recursively) and then queried for the child adapter which will be
+	 * created if necessary.
+	 *
+	 * @param  sId The storage adapter ID
+	 *
+	 * @return The storage adapter or NULL if the ID could not be resolved
+	 *
+	 * @throws StorageException If retrieving the storage adapter fails
+	 */
+	private StorageAdapter resolveStorageAdapter(String sId)
+		throws StorageException
+	{
+		int nSeparator =
+			sId.lastIndexOf(DatabaseStorageAdapter.CHILD_ADAPTER_SEPARATOR);
+
+		StorageAdapter rStorageAdapter = null;
+
+		if (nSeparator > 0)
+		{
+			StorageAdapter rParent =
+				resolveStorageAdapter(sId.substring(0, nSeparator));
+
+			if (rParent instanceof DatabaseStorageAdapter)
+			{
+				try
+				{
+					long nParentId =
+						Long.parseLong(sId.substring(nSeparator + 1));
+
+					rStorageAdapter =
+						((DatabaseStorageAdapter) rParent).getChildAdapter(
+							nParentId);
+				}
+				catch (NumberFormatException e)
+				{
+					// invalid ID, return NULL
+				}
+			}
+		}
+		else
+		{
+			rStorageAdapter = getStorageAdapter(sId);
+		}
+
+		return rStorageAdapter;
+	}
+
+	//~ Inner Classes ----------------------------------------------------------
+
+	/********************************************************************
+	 * Enumeration of the cell types in table downloads. Each type converts
+	 * the string values of a column into the value for the document writer.
+	 *
+	 * @author eso
+	 */
+	private enum CellType
+	{
+		TEXT
+		{
+			@Override
+			Object convert(String sValue)
+			{
+				return sValue;
+			}
+		},
+		DATE
+		{
+			@Override
+			Object convert(String sValue)
+			{
+				return new Date(Long.parseLong(sValue));
+			}
+		},
+		DECIMAL
+		{
+			@Override
+			Object convert(String sValue)
+			{
+				return new BigDecimal(sValue);
+			}
+		};
+
+		//~ Static methods -----------------------------------------------------
+
+		/***************************************
+		 * Returns the cell type for a certain column.
+		 *
+		 * @param  rColumn The column definition
+		 *
+		 * @return The cell type
+		 */
+		static CellType of(ColumnDefinition rColumn)
+		{
+			String sDatatype = rColumn.getDatatype();
+
+			if (sDatatype != null && sDatatype.endsWith("Date"))
+			{
+				return DATE;
+			}
+			else if (sDatatype != null && sDatatype.endsWith("BigDecimal"))
+			{
+				return DECIMAL;
+			}
+			else
+			{
+				return TEXT;
+			}
+		}
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * Converts a non-null cell value.
+		 *
+		 * @param  sValue The string value of the cell
+		 *
+		 * @return The converted value
+		 */
+		abstract Object convert(String sValue);
+	}
+
+	/********************************************************************
+	 * Holds the data of a query result that is needed to record the duration
+	 * of it's serialization.
+	 *
+	 * @author eso
+	 */
+	private static class QueryTiming
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		final String sEntityType;
+		final String sAdapterId;
+		final int    nRows;
+		final long   nStartTime = System.nanoTime();
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance that starts the timing.
+		 *
+		 * @param sEntityType The name of the queried entity type
+		 * @param sAdapterId  The storage adapter ID
+		 * @param nRows       The number of result rows
+		 */
+		QueryTiming(String sEntityType, String sAdapterId, int nRows)
+		{
+			this.sEntityType = sEntityType;
+			this.sAdapterId  = sAdapterId;
+			this.nRows		 = nRows;
+		}
+	}
+
+	/********************************************************************
+	 * A download producer that queries the rows of a table download in chunks
+	 * from a storage adapter and writes them with a tabular document writer.
+	 * The rows are queried without hierarchical children because only the top
+	 * level rows are exported. The document is created by a background job
+	 * that is started by {@link #start(String, DownloadData)} and stored in a
+	 * temporary file so that it doesn't occupy memory until it is downloaded.
+	 * The file is streamed to the download response and deleted afterwards.
+	 * Exports that have not been downloaded when the session ends will be
+	 * discarded, including their files. If the job cannot be started because
+	 * too many exports are pending or if the download is requested again the
+	 * document will be created when the download is requested.
+	 *
+	 * @author eso
+	 */
+	private class TableDownloadProducer implements DownloadProducer
+	{
+		//~ Instance fields ----------------------------------------------------
+
+		private final StorageAdapter    rAdapter;
+		private final StringDataElement rQueryParams;
+		private final List<String>	    rColumnTitles;
+		private final String		    sSessionId;
+
+		private final Set<TableDownloadProducer> rSessionExports;
+
+		private final Map<String, String> aResources = new HashMap<>();
+
+		private volatile String		  sJobKey;
+		private volatile String		  sDownloadUrl;
+		private volatile Future<Path> aDocument;
+		private volatile int		  nExportedRows;
+
+		private Path    aFile;
+		private boolean bDiscarded = false;
+
+		//~ Constructors -------------------------------------------------------
+
+		/***************************************
+		 * Creates a new instance.
+		 *
+		 * @param rAdapter        The storage adapter to query the rows from
+		 * @param rQueryParams    The query parameters of the download
+		 * @param rColumnTitles   The (resolved) column titles
+		 * @param sSessionId      The ID of the HTTP session that requested the
+		 *                        download
+		 * @param rSessionExports The exports of the session that requested
+		 *                        the download
+		 */
+		TableDownloadProducer(StorageAdapter			 rAdapter,
+							  StringDataElement			 rQueryParams,
+							  List<String>				 rColumnTitles,
+							  String					 sSessionId,
+							  Set<TableDownloadProducer> rSessionExports)
+		{
+			this.rAdapter		 = rAdapter;
+			this.rQueryParams    = rQueryParams;
+			this.rColumnTitles   = rColumnTitles;
+			this.sSessionId	     = sSessionId;
+			this.rSessionExports = rSessionExports;
+		}
+
+		//~ Methods ------------------------------------------------------------
+
+		/***************************************
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void writeTo(OutputStream rOutput) throws Exception
+		{
+			Future<Path> rDocument = aDocument;
+			Path		 rFile     = null;
+
+			aDocument = null;
+
+			if (rDocument != null)
+			{
+				try
+				{
+					rFile = rDocument.get();
+				}
+				catch (ExecutionException e)
+				{
+					Throwable eCause = e.getCause();
+
+					throw eCause instanceof Exception ? (Exception) eCause : e;
+				}
+			}
+
+			if (rFile == null)
+			{
+				rFile = createDocument();
+			}
+
+			try
+			{
+				Files.copy(rFile, rOutput);
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					aFile = null;
+				}
+
+				Files.deleteIfExists(rFile);
+				rSessionExports.remove(this);
+			}
+		}
+
+		/***************************************
+		 * Discards this export because it will not be downloaded. A running
+		 * job will be cancelled and the document file will be deleted.
+		 */
+		void discard()
+		{
+			Future<Path> rDocument = aDocument;
+			Path		 rFile;
+
+			synchronized (this)
+			{
+				bDiscarded = true;
+				rFile	   = aFile;
+				aFile	   = null;
+			}
+
+			if (rDocument != null)
+			{
+				rDocument.cancel(true);
+			}
+
+			if (rFile != null)
+			{
+				try
+				{
+					Files.deleteIfExists(rFile);
+				}
+				catch (IOException e)
+				{
+					Log.warnf(e, "Could not delete export file %s", rFile);
+				}
+			}
+
+			finishJob();
+			rSessionExports.remove(this);
+		}
+
+		/***************************************
+		 * Registers this instance as the running job for a job key, starts
+		 * the background job that creates the download document, and then
+		 * prepares the download. This must be invoked while holding the lock
+		 * of the running exports after it has been checked that no job is
+		 * running for the job key. Concurrent requests for the same job will
+		 * therefore always find this instance with the download URL and the
+		 * started document job.
+		 *
+		 * @param  sJobKey       The key that identifies the job in the running
+		 *                       exports
+		 * @param  rDownloadData The download data to prepare
+		 *
+		 * @throws Exception If preparing the download fails
+		 */
+		void start(String sJobKey, DownloadData rDownloadData) throws Exception
+		{
+			this.sJobKey = sJobKey;
+
+			aRunningExports.put(sJobKey, this);
+			rSessionExports.add(this);
+
+			try
+			{
+				aDocument = aExportExecutor.submit(this::createDocument);
+			}
+			catch (RejectedExecutionException e)
+			{
+				Log.warnf("Too many exports, %s will be created on download",
+						  rDownloadData.getFileName());
+				finishJob();
+			}
+
+			try
+			{
+				sDownloadUrl = prepareDownload(rDownloadData);
+			}
+			catch (Exception e)
+			{
+				discard();
+				throw e;
+			}
+		}
+
+		/***************************************
+		 * Queries the download rows and writes the download document to a
+		 * temporary file. If this export is discarded while the document is
+		 * created the file will be deleted.
+		 *
+		 * @return The path of the document file
+		 *
+		 * @throws Exception If querying the rows or creating the document fails
+		 */
+		private Path createDocument() throws Exception
+		{
+			boolean bSuccess = false;
+
+			try
+			{
+				Path aTempFile = Files.createTempFile("download", null);
+
+				synchronized (this)
+				{
+					if (!bDiscarded)
+					{
+						aFile = aTempFile;
+					}
+				}
+
+				try
+				{
+					try (OutputStream aOutput =
+						 new BufferedOutputStream(
+							 Files.newOutputStream(aTempFile)))
+					{
+						writeDocument(aOutput);
+					}
+
+					synchronized (this)
+					{
+						bSuccess = !bDiscarded;
+					}
+				}
+				finally
+				{
+					if (!bSuccess)
+					{
+						Files.deleteIfExists(aTempFile);
+					}
+				}
+
+				return aTempFile;
+			}
+			finally
+			{
+				notifyClients(bSuccess ? EXPORT_FINISHED : EXPORT_FAILED);
+				finishJob();
+			}
+		}
+
+		/***************************************
+		 * Removes this job from the running exports.
+		 */
+		private void finishJob()
+		{
+			if (sJobKey != null)
+			{
+				synchronized (aRunningExports)
+				{
+					aRunningExports.remove(sJobKey, this);
+				}
+			}
+		}
+
+		/***************************************
+		 * Returns the resource string for a resource value. Resource strings
+		 * are looked up once per distinct key and then taken from an internal
+		 * map because a download typically contains the same resource values
+		 * (e.g. of enum columns) in many rows.
+		 *
+		 * @param  sValue The resource value, including the resource prefix
+		 *
+		 * @return The resource string or NULL if not found
+		 */
+		private String getResource(String sValue)
+		{
+			String sResource = aResources.get(sValue);
+
+			if (sResource == null && !aResources.containsKey(sValue))
+			{
+				sResource = getResourceString(sValue.substring(1), null);
+				aResources.put(sValue, sResource);
+			}
+
+			return sResource;
+		}
+
+		/***************************************
+		 * Sends a notification about the state of this job to the clients of
+		 * the session that requested the download if a notification service
+		 * has been set.
+		 *
+		 * @param sType The notification type
+		 */
+		private void notifyClients(String sType)
+		{
+			ClientNotificationService rService = rNotificationService;
+
+			if (rService != null && sDownloadUrl != null)
+			{
+				rService.notifyClients(
+					sSessionId,
+					String.format(
+						"%s %s %d",
+						sType,
+						sDownloadUrl,
+						nExportedRows));
+			}
+		}
+
+		/***************************************
+		 * Queries the download rows in chunks and writes them to a new
+		 * document writer. The rows of each chunk are released after they
+		 * have been written. If the service provides a streaming document
+		 * writer the rows will be written directly to the output stream.
+		 * Otherwise the document will be written after all rows have been
+		 * added.
+		 *
+		 * @param  rOutput The output stream to write the document to
+		 *
+		 * @throws Exception If querying the rows or creating the document fails
+		 */
+		private void writeDocument(OutputStream rOutput) throws Exception
+		{
+			TabularDocumentWriter<?> aDocumentWriter =
+				createTableDownloadDocumentWriter(rOutput);
+
+			boolean bStreaming = aDocumentWriter != null;
+
+			if (!bStreaming)
+			{
+				aDocumentWriter = createTableDownloadDocumentWriter();
+			}
+
+			List<ColumnDefinition> rColumns   = rAdapter.getColumns();
+			CellType[]			   aCellTypes = new CellType[rColumns.size()];
+
+			Map<String, String>		   rConstraints =
+				rQueryParams.getProperty(QUERY_SEARCH, null);
+			Map<String, SortDirection> rSortFields  =
+				rQueryParams.getProperty(QUERY_SORT, null);
+
+			int nStart = rQueryParams.getIntProperty(QUERY_START, 0);
+			int nEnd   = nStart + rQueryParams.getIntProperty(QUERY_LIMIT, 0);
+			int nLimit;
+			int nRows;
+
+			nExportedRows = 0;
+
+			for (String sColumnTitle : rColumnTitles)
+			{
+				aDocumentWriter.addValue(sColumnTitle);
+			}
+
+			for (int i = 0; i < aCellTypes.length; i++)
+			{
+				aCellTypes[i] = CellType.of(rColumns.get(i));
+			}
+
+			StringDataElement aChunkParams =
+				new StringDataElement(rQueryParams.getName(), null);
+
+			if (rConstraints != null)
+			{
+				aChunkParams.setProperty(QUERY_SEARCH, rConstraints);
+			}
+
+			if (rSortFields != null)
+			{
+				aChunkParams.setProperty(QUERY_SORT, rSortFields);
+			}
+
+			aChunkParams.setProperty(SKIP_CHILDREN, Boolean.TRUE);
+
+			do
+			{
+				nLimit = Math.min(DOWNLOAD_CHUNK_SIZE, nEnd - nStart);
+				nRows  = 0;
+
+				aChunkParams.setProperty(QUERY_START, nStart);
+				aChunkParams.setProperty(QUERY_LIMIT, nLimit);
+
+				QueryResultElement<DataModel<String>> rChunk =
+					rAdapter.performQuery(aChunkParams);
+
+				for (DataModel<String> rRow : rChunk)
+				{
+					writeRow(aDocumentWriter, aCellTypes, rRow);
+					nRows++;
+				}
+
+				nExportedRows += nRows;
+				notifyClients(EXPORT_PROGRESS);
+
+				// continue following chunks from the last row of the previous
+				aChunkParams.setProperty(KEYSET_PAGING, Boolean.TRUE);
+				nStart += nRows;
+			}
+			while (nRows > 0 && nRows == nLimit && nStart < nEnd);
+
+			Object rDocument = aDocumentWriter.createDocument();
+
+			if (!bStreaming)
+			{
+				rOutput.write((byte[]) rDocument);
+			}
+		}
+
+		/***************************************
+		 * Writes a single row to a document writer.
+		 *
+		 * @param rDocumentWriter The document writer
+		 * @param rCellTypes      The cell types of the columns
+		 * @param rRow            The row to write
+		 */
+		private void writeRow(TabularDocumentWriter<?> rDocumentWriter,
+							  CellType[]			   rCellTypes,
+							  DataModel<String>		   rRow)
+		{
+			int nColumn = 0;
+
+			rDocumentWriter.newRow();
+
+			for (String sValue : rRow)
+			{
+				CellType eCellType = rCellTypes[nColumn++];
+				Object   rValue    = null;
+
+				if (sValue != null)
+				{
+					if (!sValue.isEmpty() && sValue.charAt(0) == '$')
+					{
+						rValue = getResource(sValue);
+					}
+					else
+					{
+						rValue = eCellType.convert(sValue);
+					}
+				}
+
+				rDocumentWriter.addValue(rValue);
+			}
+		}
+	}
 }
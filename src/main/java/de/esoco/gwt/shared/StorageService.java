@@ -16,6 +16,7 @@
 //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 package de.esoco.gwt.shared;
 
+import de.esoco.data.element.DataElementList;
 import de.esoco.data.element.QueryResultElement;
 import de.esoco.data.element.StringDataElement;
 import de.esoco.data.element.StringMapDataElement;
@@ -23,6 +24,7 @@ import de.esoco.data.element.StringMapDataElement;
 import de.esoco.lib.model.DataModel;
 import de.esoco.lib.model.FilterableDataModel;
 import de.esoco.lib.property.ContentProperties;
+import de.esoco.lib.property.PropertyName;
 import de.esoco.lib.property.SortDirection;
 import de.esoco.lib.property.StorageProperties;
 
@@ -43,6 +45,103 @@ public interface StorageService extends AuthenticatedService
 	/** An error token for exceptions to indicate the ID a locked entity. */
 	public static final String ERROR_LOCKED_ENTITY_ID = "LockedEntityId";
 
+	/**
+	 * The name of the data elements that indicate failed queries in the result
+	 * of the {@link #QUERY_BATCH} command.
+	 */
+	public static final String QUERY_ERROR = "QueryError";
+
+	/**
+	 * A boolean query property that indicates that a query continues directly
+	 * after the window of the previous query with the same constraints and
+	 * sorting. This allows the server to select the following rows by their
+	 * sort key values (keyset pagination) instead of skipping all preceding
+	 * rows. The server ignores this property and uses offset paging if a sort
+	 * attribute of the query may contain NULL values.
+	 */
+	public static final PropertyName<Boolean> KEYSET_PAGING =
+		PropertyName.newBooleanName("KeysetPaging");
+
+	/**
+	 * A boolean query property that indicates that the query rows should be
+	 * returned without the child rows of hierarchical entities. This is
+	 * intended for bulk queries like data exports that only process the top
+	 * level rows.
+	 */
+	public static final PropertyName<Boolean> SKIP_CHILDREN =
+		PropertyName.newBooleanName("SkipChildren");
+
+	/**
+	 * A boolean query property that requests only the changes of a query
+	 * window relative to the rows that have previously been sent for the same
+	 * window. The server keeps a hash of each row that it has returned and
+	 * the result will only contain the rows that have been updated or
+	 * inserted since then. The result of such a query will have the property
+	 * {@link #DELTA_ROW_COUNT} set. The query must contain the {@link
+	 * #DELTA_VERSION} of the last result that the client has received. If it
+	 * doesn't match the rows that the server has recorded the result will
+	 * contain all rows of the window.
+	 */
+	public static final PropertyName<Boolean> DELTA_REFRESH =
+		PropertyName.newBooleanName("DeltaRefresh");
+
+	/**
+	 * An integer property of query results that is set if the result has been
+	 * queried with {@link #DELTA_REFRESH}. It contains the total number of
+	 * rows in the refreshed window while the result only contains the changed
+	 * rows. Rows of the previous window at or after this count have been
+	 * removed.
+	 */
+	public static final PropertyName<Integer> DELTA_ROW_COUNT =
+		PropertyName.newIntegerName("DeltaRowCount");
+
+	/**
+	 * An integer property of query results that identifies the rows that the
+	 * server has recorded as sent after the query. A client must set the
+	 * version of the last result it has received on it's next query of the
+	 * same data model. If a query contains another version, e.g. because a
+	 * result has been lost, the server discards the recorded rows so that
+	 * the next {@link #DELTA_REFRESH} will return the complete window.
+	 */
+	public static final PropertyName<Integer> DELTA_VERSION =
+		PropertyName.newIntegerName("DeltaVersion");
+
+	/**
+	 * A boolean query property that requests a server-side cursor for the
+	 * query. On the first query the server reads the IDs of the complete
+	 * query result into a snapshot and serves the following windows of the
+	 * same query from it. Scrolling through such a query will therefore not
+	 * skip or repeat rows if the data is modified concurrently. The server
+	 * may ignore this property if the query is too large.
+	 */
+	public static final PropertyName<Boolean> QUERY_CURSOR =
+		PropertyName.newBooleanName("QueryCursor");
+
+	/**
+	 * The type of client notifications that report the number of rows that
+	 * have been exported by a table download job so far. Export notifications
+	 * have the form <code>&lt;type&gt; &lt;download URL&gt; &lt;row
+	 * count&gt;</code>.
+	 */
+	public static final String EXPORT_PROGRESS = "ExportProgress";
+
+	/**
+	 * The type of client notifications that report that a table download job
+	 * has finished and the download URL can be opened without waiting.
+	 */
+	public static final String EXPORT_FINISHED = "ExportFinished";
+
+	/** The type of client notifications that report a failed export. */
+	public static final String EXPORT_FAILED = "ExportFailed";
+
+	/**
+	 * A boolean property of query results that is set if the query size in the
+	 * result is only an estimate and more rows may be available after the end
+	 * of the estimated size.
+	 */
+	public static final PropertyName<Boolean> MORE_ROWS_AVAILABLE =
+		PropertyName.newBooleanName("MoreRowsAvailable");
+
 	//- Commands ---------------------------------------------------------------
 
 	/**
@@ -68,6 +167,16 @@ public interface StorageService extends AuthenticatedService
 	 *   <li>{@link StorageProperties#QUERY_SORT}: A mapping from column IDs to
 	 *     a {@link SortDirection} (Default: null, i.e. no specific
 	 *     sorting).</li>
+	 *   <li>{@link #KEYSET_PAGING}: TRUE if the query continues after the
+	 *     window of the previous query (Default: FALSE).</li>
+	 *   <li>{@link #SKIP_CHILDREN}: TRUE if the rows should not contain the
+	 *     children of hierarchical entities (Default: FALSE).</li>
+	 *   <li>{@link #DELTA_REFRESH}: TRUE if only the changed rows of the
+	 *     window should be returned (Default: FALSE).</li>
+	 *   <li>{@link #DELTA_VERSION}: The delta version of the last query
+	 *     result that the client has received (Default: none).</li>
+	 *   <li>{@link #QUERY_CURSOR}: TRUE if the windows of the query should be
+	 *     read from a snapshot of the query result (Default: FALSE).</li>
 	 * </ul>
 	 *
 	 * <p>This command returns a {@link QueryResultElement} that contains string
@@ -78,6 +187,21 @@ public interface StorageService extends AuthenticatedService
 								QueryResultElement<DataModel<String>>> QUERY =
 		Command.newInstance("QUERY");
 
+	/**
+	 * A command that executes multiple queries with a single request. The
+	 * argument is a {@link DataElementList} that contains the query data
+	 * elements, each of which is the same as the argument of the {@link
+	 * #QUERY} command. The queries will be executed concurrently on the
+	 * server. The command returns a {@link DataElementList} that contains the
+	 * {@link QueryResultElement QueryResultElements} of the queries in the
+	 * same order as the query data elements. If a query fails the list will
+	 * contain a {@link StringDataElement} with the name {@link #QUERY_ERROR}
+	 * at it's position instead. The value of that element is the error
+	 * message. The results of the other queries are not affected.
+	 */
+	public static final Command<DataElementList, DataElementList> QUERY_BATCH =
+		Command.newInstance("QUERY_BATCH");
+
 	/**
 	 * A command to prepare the download of data for a certain storage query.
 	 * The input argument is the exactly the same data element as that of the
@@ -86,7 +210,11 @@ public interface StorageService extends AuthenticatedService
 	 * prepared download.
 	 *
 	 * <p>The command return value is a string data element containing the
-	 * relative download URL for the generated data.</p>
+	 * relative download URL for the generated data. The command returns
+	 * immediately while the data is generated by a background job on the
+	 * server. The URL also identifies this job in the export notifications
+	 * (see {@link #EXPORT_PROGRESS}). Requesting the URL before the job has
+	 * finished will wait for the data.</p>
 	 */
 	public static final Command<StringDataElement, StringDataElement> PREPARE_DOWNLOAD =
 		Command.newInstance("PREPARE_DOWNLOAD");
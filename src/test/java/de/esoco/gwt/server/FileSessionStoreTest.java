@@ -0,0 +1,109 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/********************************************************************
+ * Test case for {@link FileSessionStore}.
+ *
+ * @author eso
+ */
+public class FileSessionStoreTest
+{
+	//~ Instance fields --------------------------------------------------------
+
+	/** The directory for the session records. */
+	@Rule
+	public TemporaryFolder aFolder = new TemporaryFolder();
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Test that session IDs are escaped into unique file names inside of the
+	 * store directory.
+	 *
+	 * @throws IOException If accessing the store fails
+	 */
+	@Test
+	public void testFileNameEscaping() throws IOException
+	{
+		File			 rDirectory = aFolder.getRoot();
+		FileSessionStore aStore     = new FileSessionStore(rDirectory);
+
+		aStore.store("../a/b", createRecord("1"));
+		aStore.store("a_2f_b", createRecord("2"));
+		aStore.store("abc-123", createRecord("3"));
+
+		assertEquals(new HashSet<>(Arrays.asList("_2e__2e__2f_a_2f_b.session",
+												 "a_5f_2f_5f_b.session",
+												 "abc-123.session")),
+					 new HashSet<>(Arrays.asList(rDirectory.list())));
+
+		assertEquals("1", aStore.load("../a/b").getValues().get("Value"));
+		assertEquals("2", aStore.load("a_2f_b").getValues().get("Value"));
+		assertEquals("3", aStore.load("abc-123").getValues().get("Value"));
+	}
+
+	/***************************************
+	 * Test the removal of records.
+	 *
+	 * @throws IOException If accessing the store fails
+	 */
+	@Test
+	public void testRemove() throws IOException
+	{
+		FileSessionStore aStore = new FileSessionStore(aFolder.getRoot());
+
+		aStore.store("S1", createRecord("1"));
+		aStore.remove("S1");
+		aStore.remove("S2");
+
+		assertNull(aStore.load("S1"));
+		assertEquals(0, aFolder.getRoot().list().length);
+	}
+
+	/***************************************
+	 * Creates a session record with a single value.
+	 *
+	 * @param  sValue The value
+	 *
+	 * @return The new record
+	 */
+	private SessionRecord createRecord(String sValue)
+	{
+		Map<String, Serializable> aValues =
+			Collections.singletonMap("Value", sValue);
+
+		return new SessionRecord("user", aValues);
+	}
+}
@@ -0,0 +1,103 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.gwt.server.QueryMetrics.Phase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/********************************************************************
+ * Test case for {@link HistogramQueryMetrics}.
+ *
+ * @author eso
+ */
+public class HistogramQueryMetricsTest
+{
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Returns the output of a metrics instance.
+	 *
+	 * @param  rMetrics The metrics
+	 *
+	 * @return The output string
+	 */
+	private static String getOutput(HistogramQueryMetrics rMetrics)
+	{
+		StringWriter aOutput = new StringWriter();
+
+		rMetrics.writeTo(new PrintWriter(aOutput));
+
+		return aOutput.toString();
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Test the assignment of durations to the histogram buckets.
+	 */
+	@Test
+	public void testBuckets()
+	{
+		HistogramQueryMetrics aMetrics = new HistogramQueryMetrics();
+
+		aMetrics.record(Phase.QUERY, "Test", null, 500, 1);
+		aMetrics.record(Phase.QUERY, "Test", null, 1500, 2);
+		aMetrics.record(Phase.QUERY, "Test", null, 1900, 3);
+		aMetrics.record(Phase.QUERY, "Test", null, 3000000, 4);
+		aMetrics.record(Phase.QUERY, "Test", null, Long.MAX_VALUE / 2, 5);
+
+		String sOutput = getOutput(aMetrics);
+
+		assertTrue(sOutput.startsWith("Test QUERY: count=5, rows=15"));
+		assertTrue(sOutput.contains(", <1us=1,"));
+		assertTrue(sOutput.contains(", <2us=2,"));
+		assertTrue(sOutput.contains(", <4096us=1,"));
+		assertTrue(sOutput.contains(", more=1"));
+	}
+
+	/***************************************
+	 * Test that phases and entity types are recorded separately and that
+	 * clearing removes all measurements.
+	 */
+	@Test
+	public void testSeparationAndClear()
+	{
+		HistogramQueryMetrics aMetrics = new HistogramQueryMetrics();
+
+		aMetrics.record(Phase.QUERY, "A", "1", 1000, 1);
+		aMetrics.record(Phase.COUNT, "A", "2", 1000, 1);
+		aMetrics.record(Phase.QUERY, "B", "3", 1000, 1);
+
+		String[] rLines = getOutput(aMetrics).trim().split("\\R");
+
+		assertEquals(3, rLines.length);
+		assertTrue(rLines[0].startsWith("A COUNT: count=1"));
+		assertTrue(rLines[1].startsWith("A QUERY: count=1"));
+		assertTrue(rLines[2].startsWith("B QUERY: count=1"));
+
+		aMetrics.clear();
+		assertEquals("", getOutput(aMetrics));
+	}
+}
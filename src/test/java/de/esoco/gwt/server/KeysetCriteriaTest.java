@@ -0,0 +1,126 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.entity.Entity;
+
+import de.esoco.lib.expression.Predicate;
+import de.esoco.lib.property.SortDirection;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.obrel.core.RelatedObject;
+import org.obrel.core.RelationType;
+import org.obrel.core.RelationTypes;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static org.obrel.core.RelationTypes.newType;
+
+
+/********************************************************************
+ * Test case for the keyset criteria of {@link DatabaseStorageAdapter}.
+ *
+ * @author eso
+ */
+public class KeysetCriteriaTest
+{
+	//~ Static fields/initializers ---------------------------------------------
+
+	private static final RelationType<Integer> TEST_NUMBER = newType();
+	private static final RelationType<String>  TEST_NAME   = newType();
+
+	static
+	{
+		RelationTypes.init(KeysetCriteriaTest.class);
+	}
+
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Evaluates keyset criteria for a row with certain sort key values.
+	 *
+	 * @param  pCriteria The keyset criteria
+	 * @param  nNumber   The number value of the row
+	 * @param  sName     The name value of the row
+	 *
+	 * @return The result of the evaluation
+	 */
+	@SuppressWarnings({ "boxing", "unchecked" })
+	private static boolean follows(Predicate<? super Entity> pCriteria,
+								   int						 nNumber,
+								   String					 sName)
+	{
+		RelatedObject aRow = new RelatedObject();
+
+		aRow.set(TEST_NUMBER, nNumber);
+		aRow.set(TEST_NAME, sName);
+
+		return ((Predicate<Object>) pCriteria).evaluate(aRow);
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Test criteria for a sort key with mixed sort directions.
+	 */
+	@Test
+	@SuppressWarnings("boxing")
+	public void testMixedDirections()
+	{
+		Map<RelationType<?>, SortDirection> aSortKey = new LinkedHashMap<>();
+
+		aSortKey.put(TEST_NUMBER, SortDirection.ASCENDING);
+		aSortKey.put(TEST_NAME, SortDirection.DESCENDING);
+
+		Predicate<? super Entity> pCriteria =
+			DatabaseStorageAdapter.createKeysetCriteria(aSortKey,
+														Arrays.asList(5, "m"));
+
+		assertTrue(follows(pCriteria, 6, "z"));
+		assertTrue(follows(pCriteria, 6, "a"));
+		assertTrue(follows(pCriteria, 5, "a"));
+		assertFalse(follows(pCriteria, 5, "m"));
+		assertFalse(follows(pCriteria, 5, "z"));
+		assertFalse(follows(pCriteria, 4, "a"));
+	}
+
+	/***************************************
+	 * Test criteria for a sort key with a single attribute.
+	 */
+	@Test
+	@SuppressWarnings("boxing")
+	public void testSingleAttribute()
+	{
+		Map<RelationType<?>, SortDirection> aSortKey = new LinkedHashMap<>();
+
+		aSortKey.put(TEST_NUMBER, SortDirection.DESCENDING);
+
+		Predicate<? super Entity> pCriteria =
+			DatabaseStorageAdapter.createKeysetCriteria(aSortKey,
+														Arrays.asList(5));
+
+		assertTrue(follows(pCriteria, 4, "a"));
+		assertFalse(follows(pCriteria, 5, "a"));
+		assertFalse(follows(pCriteria, 6, "a"));
+	}
+}
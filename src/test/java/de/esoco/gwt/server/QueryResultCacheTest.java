@@ -0,0 +1,232 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import de.esoco.lib.model.DataModel;
+import de.esoco.lib.model.ListDataModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/********************************************************************
+ * Test case for {@link QueryResultCache}.
+ *
+ * @author eso
+ */
+public class QueryResultCacheTest
+{
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Creates a list of result rows with a single value each.
+	 *
+	 * @param  rValues The row values
+	 *
+	 * @return The row list
+	 */
+	private static List<DataModel<String>> createRows(String... rValues)
+	{
+		List<DataModel<String>> aRows = new ArrayList<>();
+
+		for (String sValue : rValues)
+		{
+			aRows.add(new ListDataModel<String>(sValue, Arrays.asList(sValue)));
+		}
+
+		return aRows;
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Test that the least recently used query sizes are evicted.
+	 */
+	@Test
+	public void testCountEviction()
+	{
+		QueryResultCache aCache = new QueryResultCache(2, 100, 60000);
+
+		aCache.putCount("C1", 1);
+		aCache.putCount("C2", 2);
+
+		// access C1 so that C2 becomes the least recently used size
+		assertEquals(1, aCache.getCount("C1"));
+
+		aCache.putCount("C3", 3);
+
+		assertEquals(1, aCache.getCount("C1"));
+		assertEquals(-1, aCache.getCount("C2"));
+		assertEquals(3, aCache.getCount("C3"));
+	}
+
+	/***************************************
+	 * Test that cached query sizes expire after the maximum count age.
+	 *
+	 * @throws InterruptedException If the test is interrupted
+	 */
+	@Test
+	public void testCountExpiration() throws InterruptedException
+	{
+		QueryResultCache aCache = new QueryResultCache(4, 100, 50);
+
+		aCache.putCount("C", 42);
+		assertEquals(42, aCache.getCount("C"));
+
+		Thread.sleep(100);
+		assertEquals(-1, aCache.getCount("C"));
+
+		aCache.putCount("C", 43);
+		assertEquals(43, aCache.getCount("C"));
+
+		aCache.removeCount("C");
+		assertEquals(-1, aCache.getCount("C"));
+	}
+
+	/***************************************
+	 * Test that the least recently used queries are evicted.
+	 */
+	@Test
+	public void testLruEviction()
+	{
+		QueryResultCache aCache = new QueryResultCache(2, 100, 60000);
+
+		aCache.putWindow("Q1", null, 0, createRows("a"), 1);
+		aCache.putWindow("Q2", null, 0, createRows("b"), 1);
+
+		// access Q1 so that Q2 becomes the least recently used query
+		assertEquals(1, aCache.getQuerySize("Q1"));
+
+		aCache.putWindow("Q3", null, 0, createRows("c"), 1);
+
+		assertEquals(1, aCache.getQuerySize("Q1"));
+		assertEquals(-1, aCache.getQuerySize("Q2"));
+		assertEquals(1, aCache.getQuerySize("Q3"));
+	}
+
+	/***************************************
+	 * Test that prefetched windows are counted as wasted if they are
+	 * discarded without being requested.
+	 */
+	@Test
+	public void testPrefetches()
+	{
+		QueryResultCache aCache = new QueryResultCache(1, 100, 60000);
+
+		aCache.putWindow("Q1", null, 0, createRows("a"), 4);
+		aCache.putWindow("Q1", null, 1, createRows("b"), 4);
+		aCache.putWindow("Q1", null, 2, createRows("c"), 4);
+		aCache.markPrefetched("Q1", 1);
+		aCache.markPrefetched("Q1", 2);
+		aCache.markPrefetched("Q1", 3);
+
+		assertTrue(aCache.removePrefetched("Q1", 1));
+		assertFalse(aCache.removePrefetched("Q1", 1));
+		assertFalse(aCache.removePrefetched("Q1", 3));
+
+		// evicts Q1 with the unused prefetch of the window at index 2
+		aCache.putWindow("Q2", null, 0, createRows("d"), 2);
+		aCache.markPrefetched("Q2", 0);
+
+		assertEquals(1, aCache.getWastedPrefetches());
+
+		aCache.clear();
+		assertEquals(2, aCache.getWastedPrefetches());
+	}
+
+	/***************************************
+	 * Test that cached queries expire after the maximum age.
+	 *
+	 * @throws InterruptedException If the test is interrupted
+	 */
+	@Test
+	public void testQueryExpiration() throws InterruptedException
+	{
+		QueryResultCache aCache = new QueryResultCache(4, 100, 50);
+
+		aCache.putWindow("Q", null, 0, createRows("a", "b"), 2);
+		assertEquals(2, aCache.getWindow("Q", 0, 2).size());
+
+		Thread.sleep(100);
+		assertNull(aCache.getWindow("Q", 0, 2));
+		assertEquals(-1, aCache.getQuerySize("Q"));
+	}
+
+	/***************************************
+	 * Test that the rows of a query are discarded if the row limit or the
+	 * query size changes or if caching is disabled.
+	 */
+	@Test
+	public void testRowLimits()
+	{
+		QueryResultCache aCache = new QueryResultCache(2, 3, 60000);
+
+		aCache.putWindow("Q", null, 0, createRows("a", "b"), 10);
+		aCache.putWindow("Q", null, 2, createRows("c", "d"), 10);
+
+		assertNull(aCache.getWindow("Q", 0, 2));
+		assertEquals(2, aCache.getWindow("Q", 2, 2).size());
+
+		aCache.putWindow("Q", null, 4, createRows("e"), 11);
+
+		assertNull(aCache.getWindow("Q", 2, 2));
+		assertEquals(11, aCache.getQuerySize("Q"));
+
+		aCache.setMaxRows(0);
+		aCache.putWindow("Q", null, 0, createRows("a"), 1);
+
+		assertEquals(-1, aCache.getQuerySize("Q"));
+	}
+
+	/***************************************
+	 * Test the lookup of complete and incomplete windows.
+	 */
+	@Test
+	public void testWindows()
+	{
+		QueryResultCache aCache = new QueryResultCache(2, 100, 60000);
+
+		aCache.putWindow("Q", null, 0, createRows("a", "b", "c"), 5);
+
+		List<DataModel<String>> rWindow = aCache.getWindow("Q", 1, 2);
+
+		assertEquals(2, rWindow.size());
+		assertEquals("b", rWindow.get(0).getElement(0));
+		assertEquals("c", rWindow.get(1).getElement(0));
+
+		assertNull(aCache.getWindow("Q", 2, 2));
+		assertNull(aCache.getWindow("X", 0, 1));
+
+		aCache.putWindow("Q", null, 3, createRows("d", "e"), 5);
+
+		// windows are limited to the query size
+		assertEquals(2, aCache.getWindow("Q", 3, 10).size());
+
+		aCache.removeQuery("Q");
+
+		assertNull(aCache.getWindow("Q", 0, 1));
+		assertEquals(-1, aCache.getQuerySize("Q"));
+	}
+}
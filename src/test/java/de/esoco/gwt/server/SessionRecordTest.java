@@ -0,0 +1,179 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-gwt' project.
+// Copyright 2019 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.gwt.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.net.URL;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/********************************************************************
+ * Test case for {@link SessionRecord}.
+ *
+ * @author eso
+ */
+public class SessionRecordTest
+{
+	//~ Static methods ---------------------------------------------------------
+
+	/***************************************
+	 * Writes a record in a certain format version.
+	 *
+	 * @param  nVersion The version
+	 * @param  rValues  The record values
+	 *
+	 * @return The record data
+	 *
+	 * @throws IOException If writing fails
+	 */
+	private static byte[] writeVersion(int nVersion, Object rValues)
+		throws IOException
+	{
+		ByteArrayOutputStream aData = new ByteArrayOutputStream();
+		ObjectOutputStream    aOut  = new ObjectOutputStream(aData);
+
+		aOut.writeInt(nVersion);
+
+		if (nVersion >= 2)
+		{
+			aOut.writeBoolean(false);
+		}
+
+		aOut.writeObject(rValues);
+		aOut.flush();
+
+		return aData.toByteArray();
+	}
+
+	//~ Methods ----------------------------------------------------------------
+
+	/***************************************
+	 * Test the class allow-list of the record deserialization.
+	 */
+	@Test
+	public void testAllowedClasses()
+	{
+		assertTrue(SessionRecord.isAllowed("java.lang.String"));
+		assertTrue(SessionRecord.isAllowed("java.util.HashMap"));
+		assertTrue(SessionRecord.isAllowed("[Ljava.lang.String;"));
+		assertTrue(SessionRecord.isAllowed("[[I"));
+		assertTrue(SessionRecord.isAllowed("de.esoco.data.SessionData"));
+		assertTrue(
+			SessionRecord.isAllowed("java.util.concurrent.locks.ReentrantLock"));
+		assertFalse(SessionRecord.isAllowed("java.lang.reflect.Proxy"));
+		assertFalse(SessionRecord.isAllowed("java.net.URL"));
+		assertFalse(SessionRecord.isAllowed("[Ljava.net.URL;"));
+		assertFalse(SessionRecord.isAllowed("de.esocoevil.Gadget"));
+		assertFalse(SessionRecord.isAllowed("I"));
+	}
+
+	/***************************************
+	 * Test that records with classes that are not allowed are rejected.
+	 *
+	 * @throws IOException If writing the record fails
+	 */
+	@Test(expected = IOException.class)
+	public void testDisallowedClass() throws IOException
+	{
+		Map<String, Serializable> aValues = new HashMap<>();
+
+		aValues.put("URL", new URL("http://localhost/"));
+
+		SessionRecord.read(new ByteArrayInputStream(writeVersion(2, aValues)));
+	}
+
+	/***************************************
+	 * Test writing and reading a record in the current version.
+	 *
+	 * @throws IOException If writing or reading fails
+	 */
+	@Test
+	public void testReadWrite() throws IOException
+	{
+		Map<String, Serializable> aValues = new HashMap<>();
+
+		aValues.put("Name", "Test");
+		aValues.put("Count", Integer.valueOf(42));
+
+		ByteArrayOutputStream aData = new ByteArrayOutputStream();
+
+		new SessionRecord("user", aValues).write(aData);
+
+		SessionRecord aRecord =
+			SessionRecord.read(new ByteArrayInputStream(aData.toByteArray()));
+
+		assertEquals("user", aRecord.getOwner());
+		assertEquals(aValues, aRecord.getValues());
+
+		aData.reset();
+		new SessionRecord(null, aValues).write(aData);
+
+		aRecord =
+			SessionRecord.read(new ByteArrayInputStream(aData.toByteArray()));
+
+		assertNull(aRecord.getOwner());
+		assertEquals(aValues, aRecord.getValues());
+	}
+
+	/***************************************
+	 * Test that records of unsupported versions are rejected.
+	 *
+	 * @throws IOException If writing the record fails
+	 */
+	@Test(expected = IOException.class)
+	public void testUnsupportedVersion() throws IOException
+	{
+		SessionRecord.read(
+			new ByteArrayInputStream(
+				writeVersion(SessionRecord.CURRENT_VERSION + 1,
+							 new HashMap<>())));
+	}
+
+	/***************************************
+	 * Test that records of version 1 can still be read.
+	 *
+	 * @throws IOException If writing or reading fails
+	 */
+	@Test
+	public void testVersion1() throws IOException
+	{
+		Map<String, Serializable> aValues = new HashMap<>();
+
+		aValues.put("Name", "Test");
+
+		SessionRecord aRecord =
+			SessionRecord.read(
+				new ByteArrayInputStream(writeVersion(1, aValues)));
+
+		assertNull(aRecord.getOwner());
+		assertEquals(aValues, aRecord.getValues());
+	}
+}